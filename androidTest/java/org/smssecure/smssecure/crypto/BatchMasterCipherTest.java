@@ -0,0 +1,83 @@
+package org.smssecure.smssecure.crypto;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.util.Base64;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchMasterCipherTest extends SMSSecureTestCase {
+
+  private MasterSecret masterSecret;
+  private MasterCipher masterCipher;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                         new SecretKeySpec(new byte[20], "HmacSHA1"));
+    this.masterCipher = new MasterCipher(masterSecret);
+  }
+
+  public void testDecryptsSmallBatchInOrder() throws Exception {
+    List<String> plaintexts = Arrays.asList("first", "", "a third, longer message", "Café ☕");
+
+    assertThat(new BatchMasterCipher(masterSecret).decryptBodies(encrypt(plaintexts)))
+        .containsExactly(plaintexts.toArray(new String[plaintexts.size()]));
+  }
+
+  public void testDecryptsLargeBatchInOrder() throws Exception {
+    List<String> plaintexts = new LinkedList<>();
+
+    for (int i=0;i<BatchMasterCipher.DEFAULT_BATCH_SIZE;i++) {
+      StringBuilder plaintext = new StringBuilder();
+      for (int j=0;j<=i;j++) plaintext.append((char)('a' + (j % 26)));
+
+      plaintexts.add(plaintext.toString());
+    }
+
+    assertThat(new BatchMasterCipher(masterSecret).decryptBodies(encrypt(plaintexts)))
+        .containsExactly(plaintexts.toArray(new String[plaintexts.size()]));
+  }
+
+  public void testFailedBodiesAreNull() throws Exception {
+    byte[] tampered = MasterCipherEngine.getInstance(masterSecret).encrypt("tampered".getBytes());
+    tampered[tampered.length - 1] ^= 0x01;
+
+    List<String> ciphertexts = new LinkedList<>();
+    ciphertexts.add(masterCipher.encryptBody("before"));
+    ciphertexts.add(Base64.encodeBytes(tampered));
+    ciphertexts.add("not base64!");
+    ciphertexts.add(masterCipher.encryptBody("after"));
+
+    assertThat(new BatchMasterCipher(masterSecret).decryptBodies(ciphertexts))
+        .containsExactly("before", null, null, "after");
+  }
+
+  public void testArenasAreReusedAcrossBatches() throws Exception {
+    BatchMasterCipher batchCipher = new BatchMasterCipher(masterSecret);
+    char[]            longBody    = new char[1024];
+
+    Arrays.fill(longBody, 'x');
+
+    assertThat(batchCipher.decryptBodies(encrypt(Arrays.asList(new String(longBody), "short"))))
+        .containsExactly(new String(longBody), "short");
+    assertThat(batchCipher.decryptBodies(encrypt(Arrays.asList("one", "two"))))
+        .containsExactly("one", "two");
+  }
+
+  private List<String> encrypt(List<String> plaintexts) {
+    List<String> ciphertexts = new LinkedList<>();
+
+    for (String plaintext : plaintexts) {
+      ciphertexts.add(masterCipher.encryptBody(plaintext));
+    }
+
+    return ciphertexts;
+  }
+}
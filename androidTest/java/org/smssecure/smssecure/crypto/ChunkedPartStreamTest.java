@@ -0,0 +1,107 @@
+package org.smssecure.smssecure.crypto;
+
+import junit.framework.AssertionFailedError;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChunkedPartStreamTest extends SMSSecureTestCase {
+
+  private MasterSecret masterSecret;
+  private File         file;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                         new SecretKeySpec(new byte[20], "HmacSHA1"));
+    this.file         = File.createTempFile("part", ".mms", getInstrumentation().getTargetContext().getCacheDir());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  public void testRoundTrip() throws Exception {
+    for (int length : new int[] {0, 1, PartChunkCipher.CHUNK_SIZE, PartChunkCipher.CHUNK_SIZE * 3 + 17}) {
+      byte[] plaintext = createPlaintext(length);
+      writePart(plaintext);
+
+      ChunkedDecryptingPartInputStream in = new ChunkedDecryptingPartInputStream(file, masterSecret);
+
+      assertThat(in.getLength()).isEqualTo(length);
+      assertThat(Util.readFully(in)).isEqualTo(plaintext);
+    }
+  }
+
+  public void testSeek() throws Exception {
+    byte[] plaintext = createPlaintext(PartChunkCipher.CHUNK_SIZE * 2 + 100);
+    writePart(plaintext);
+
+    ChunkedDecryptingPartInputStream in     = new ChunkedDecryptingPartInputStream(file, masterSecret);
+    byte[]                           buffer = new byte[50];
+
+    in.seek(PartChunkCipher.CHUNK_SIZE * 2 + 25);
+    assertThat(in.read(buffer)).isEqualTo(50);
+    assertThat(buffer).isEqualTo(Arrays.copyOfRange(plaintext, PartChunkCipher.CHUNK_SIZE * 2 + 25,
+                                                    PartChunkCipher.CHUNK_SIZE * 2 + 75));
+
+    in.seek(10);
+    assertThat(in.skip(PartChunkCipher.CHUNK_SIZE)).isEqualTo(PartChunkCipher.CHUNK_SIZE);
+    assertThat(in.read()).isEqualTo(plaintext[PartChunkCipher.CHUNK_SIZE + 10] & 0xFF);
+    in.close();
+  }
+
+  public void testLegacyFormatDetected() throws Exception {
+    OutputStream out = new EncryptingPartOutputStream(file, masterSecret);
+    out.write(createPlaintext(100));
+    out.close();
+
+    assertThat(ChunkedDecryptingPartInputStream.isChunkedFormat(file)).isFalse();
+  }
+
+  public void testTruncatedPartRejected() throws Exception {
+    writePart(createPlaintext(PartChunkCipher.CHUNK_SIZE * 2 + 100));
+
+    RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+    truncated.setLength(PartChunkCipher.HEADER_LENGTH + PartChunkCipher.FULL_CHUNK_LENGTH * 2);
+    truncated.close();
+
+    ChunkedDecryptingPartInputStream in = new ChunkedDecryptingPartInputStream(file, masterSecret);
+
+    try {
+      in.seek(PartChunkCipher.CHUNK_SIZE + 1);
+      in.read();
+      throw new AssertionFailedError("should have rejected truncated part");
+    } catch (IOException e) {
+      // success
+    }
+  }
+
+  private void writePart(byte[] plaintext) throws IOException {
+    OutputStream out = new ChunkedEncryptingPartOutputStream(file, masterSecret);
+    out.write(plaintext);
+    out.close();
+  }
+
+  private byte[] createPlaintext(int length) {
+    byte[] plaintext = new byte[length];
+
+    for (int i=0;i<length;i++) {
+      plaintext[i] = (byte)(i * 31);
+    }
+
+    return plaintext;
+  }
+}
@@ -0,0 +1,62 @@
+package org.smssecure.smssecure.crypto;
+
+import junit.framework.AssertionFailedError;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MasterCipherEngineTest extends SMSSecureTestCase {
+
+  private MasterSecret masterSecret;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                         new SecretKeySpec(new byte[20], "HmacSHA1"));
+  }
+
+  public void testRoundTrip() throws Exception {
+    MasterCipherEngine engine    = MasterCipherEngine.getInstance(masterSecret);
+    byte[]             plaintext = "this is a test message".getBytes();
+    byte[]             encrypted = engine.encrypt(plaintext);
+
+    assertThat(encrypted.length).isEqualTo(MasterCipherEngine.getEncryptedLength(plaintext.length));
+    assertThat(engine.decrypt(encrypted, 0, encrypted.length)).isEqualTo(plaintext);
+    assertThat(new MasterCipher(masterSecret).decryptBytes(encrypted)).isEqualTo(plaintext);
+  }
+
+  public void testOffsetBuffers() throws Exception {
+    MasterCipherEngine engine    = MasterCipherEngine.getInstance(masterSecret);
+    byte[]             plaintext = "xxxxoffset plaintextxxxx".getBytes();
+    byte[]             encrypted = new byte[MasterCipherEngine.getEncryptedLength(16) + 8];
+    int                length    = engine.encrypt(plaintext, 4, 16, encrypted, 8);
+    byte[]             output    = new byte[MasterCipherEngine.getMaxDecryptedLength(length) + 3];
+    int                decrypted = engine.decrypt(encrypted, 8, length, output, 3);
+
+    assertThat(decrypted).isEqualTo(16);
+    assertThat(new String(output, 3, decrypted)).isEqualTo("offset plaintext");
+  }
+
+  public void testTamperedMac() throws Exception {
+    MasterCipherEngine engine    = MasterCipherEngine.getInstance(masterSecret);
+    byte[]             encrypted = engine.encrypt("tamper".getBytes());
+
+    encrypted[encrypted.length - 1] ^= 0x01;
+
+    try {
+      engine.decrypt(encrypted, 0, encrypted.length);
+      throw new AssertionFailedError("should have thrown on bad MAC");
+    } catch (InvalidMessageException ime) {
+      // success
+    }
+  }
+
+  public void testSharedInstance() throws Exception {
+    assertThat(MasterCipherEngine.getInstance(masterSecret)).isSameAs(MasterCipherEngine.getInstance(masterSecret));
+  }
+}
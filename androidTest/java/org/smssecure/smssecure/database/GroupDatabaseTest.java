@@ -0,0 +1,136 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.util.GroupUtil;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GroupDatabaseTest extends SMSSecureTestCase {
+
+  private static final byte[] GROUP_ID         = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+  private static final byte[] OTHER_GROUP_ID   = {16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+  private static final String AMBIGUOUS_NUMBER = "222-3333";
+  private static final String SPECIFIC_NUMBER  = "+49 444 222 3333";
+  private static final String SECOND_NUMBER    = "+1 555 123 4567";
+  private static final String THIRD_NUMBER     = "+1 555 765 4321";
+
+  private SQLiteOpenHelper helper;
+  private GroupDatabase    database;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    helper   = new SQLiteOpenHelper(getInstrumentation().getTargetContext(), null, null, 1) {
+      @Override
+      public void onCreate(SQLiteDatabase db) {
+        db.execSQL(GroupDatabase.CREATE_TABLE);
+        db.execSQL(GroupDatabase.CREATE_MEMBERS_TABLE);
+
+        for (String statement : GroupDatabase.CREATE_INDEXS) db.execSQL(statement);
+      }
+
+      @Override
+      public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+    };
+    database = new GroupDatabase(getInstrumentation().getTargetContext(), helper);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    helper.close();
+    super.tearDown();
+  }
+
+  public void testUpdateMembersOnlyTouchesChangedRows() {
+    database.create(GROUP_ID, "group", Arrays.asList(SPECIFIC_NUMBER, SECOND_NUMBER), null, null);
+
+    long kept = getMemberRowId(GROUP_ID, SPECIFIC_NUMBER);
+
+    database.updateMembers(GROUP_ID, Arrays.asList(AMBIGUOUS_NUMBER, THIRD_NUMBER));
+
+    assertThat(getMemberAddresses(GROUP_ID)).containsExactly(SPECIFIC_NUMBER, THIRD_NUMBER);
+    assertThat(getMemberRowId(GROUP_ID, SPECIFIC_NUMBER)).isEqualTo(kept);
+    assertThat(database.getGroup(GROUP_ID).getMembers()).containsExactly(SPECIFIC_NUMBER, THIRD_NUMBER);
+  }
+
+  public void testRemoveDeletesOnlyThatMember() {
+    database.create(GROUP_ID, "group", Arrays.asList(SPECIFIC_NUMBER, SECOND_NUMBER), null, null);
+    database.create(OTHER_GROUP_ID, "other", Arrays.asList(SPECIFIC_NUMBER), null, null);
+
+    database.remove(GROUP_ID, AMBIGUOUS_NUMBER);
+
+    assertThat(getMemberAddresses(GROUP_ID)).containsExactly(SECOND_NUMBER);
+    assertThat(getMemberAddresses(OTHER_GROUP_ID)).containsExactly(SPECIFIC_NUMBER);
+    assertThat(database.getGroup(GROUP_ID).getMembers()).containsExactly(SECOND_NUMBER);
+  }
+
+  public void testUpgradeCopiesMemberLists() {
+    SQLiteDatabase db = SQLiteDatabase.create(null);
+
+    try {
+      db.execSQL(GroupDatabase.CREATE_TABLE);
+      insertLegacyGroup(db, GROUP_ID, SPECIFIC_NUMBER + "," + SECOND_NUMBER + "," + AMBIGUOUS_NUMBER);
+      insertLegacyGroup(db, OTHER_GROUP_ID, "");
+
+      new DatabaseFactory.DatabaseHelper(getInstrumentation().getTargetContext(), null, null, 20)
+                         .onUpgrade(db, 19, 20);
+
+      assertThat(getMemberAddresses(db, GROUP_ID)).containsExactly(SPECIFIC_NUMBER, SECOND_NUMBER);
+      assertThat(getMemberAddresses(db, OTHER_GROUP_ID)).isEmpty();
+    } finally {
+      db.close();
+    }
+  }
+
+  private void insertLegacyGroup(SQLiteDatabase db, byte[] groupId, String members) {
+    ContentValues values = new ContentValues();
+    values.put("group_id", GroupUtil.getEncodedId(groupId));
+    values.put("members", members);
+
+    db.insert("groups", null, values);
+  }
+
+  private List<String> getMemberAddresses(byte[] groupId) {
+    return getMemberAddresses(helper.getReadableDatabase(), groupId);
+  }
+
+  private List<String> getMemberAddresses(SQLiteDatabase db, byte[] groupId) {
+    List<String> addresses = new LinkedList<>();
+    Cursor       cursor    = db.query("group_members", new String[] {"address"}, "group_id = ?",
+                                      new String[] {GroupUtil.getEncodedId(groupId)}, null, null, "_id ASC");
+
+    try {
+      while (cursor.moveToNext()) {
+        addresses.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return addresses;
+  }
+
+  private long getMemberRowId(byte[] groupId, String address) {
+    Cursor cursor = helper.getReadableDatabase().query("group_members", new String[] {"_id"},
+                                                       "group_id = ? AND address = ?",
+                                                       new String[] {GroupUtil.getEncodedId(groupId), address},
+                                                       null, null, null);
+
+    try {
+      assertThat(cursor.moveToFirst()).isTrue();
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+}
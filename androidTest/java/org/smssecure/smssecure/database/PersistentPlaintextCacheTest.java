@@ -0,0 +1,130 @@
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.util.SMSSecurePreferences;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersistentPlaintextCacheTest extends SMSSecureTestCase {
+
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private Context                  context;
+  private MasterSecret             masterSecret;
+  private PersistentPlaintextCache cache;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    context      = getInstrumentation().getTargetContext();
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[20], "HmacSHA1"));
+
+    PreferenceManager.getDefaultSharedPreferences(context).edit()
+                     .putBoolean(SMSSecurePreferences.PERSISTENT_PLAINTEXT_CACHE_PREF, true)
+                     .commit();
+
+    cache = PersistentPlaintextCache.getInstance(context);
+    PersistentPlaintextCache.invalidate(context);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    PersistentPlaintextCache.invalidate(context);
+    PreferenceManager.getDefaultSharedPreferences(context).edit()
+                     .remove(SMSSecurePreferences.PERSISTENT_PLAINTEXT_CACHE_PREF)
+                     .commit();
+    super.tearDown();
+  }
+
+  public void testRoundTripSurvivesReopen() throws Exception {
+    cache.put(masterSecret, 1, "ciphertext", "plaintext");
+
+    assertThat(awaitPlaintext(1, "ciphertext")).isEqualTo("plaintext");
+
+    cache.close();
+
+    assertThat(cache.get(masterSecret, 1, "ciphertext")).isEqualTo("plaintext");
+  }
+
+  public void testMismatchedCiphertextIsRejected() throws Exception {
+    cache.put(masterSecret, 1, "ciphertext", "plaintext");
+
+    assertThat(awaitPlaintext(1, "ciphertext")).isEqualTo("plaintext");
+    assertThat(cache.get(masterSecret, 1, "other ciphertext")).isNull();
+
+    cache.put(masterSecret, 1, "other ciphertext", "other plaintext");
+
+    assertThat(awaitPlaintext(1, "other ciphertext")).isEqualTo("other plaintext");
+    assertThat(cache.get(masterSecret, 1, "ciphertext")).isNull();
+  }
+
+  public void testTruncatedTrailingRecordIsDropped() throws Exception {
+    cache.put(masterSecret, 1, "first", "first plaintext");
+    cache.put(masterSecret, 2, "second", "second plaintext");
+
+    assertThat(awaitPlaintext(2, "second")).isEqualTo("second plaintext");
+
+    cache.close();
+    truncateCacheFile(3);
+
+    assertThat(cache.get(masterSecret, 1, "first")).isEqualTo("first plaintext");
+    assertThat(cache.get(masterSecret, 2, "second")).isNull();
+
+    cache.put(masterSecret, 3, "third", "third plaintext");
+
+    assertThat(awaitPlaintext(3, "third")).isEqualTo("third plaintext");
+  }
+
+  public void testRemovedMessagesStayRemovedAfterReopen() throws Exception {
+    cache.put(masterSecret, 1, "first", "first plaintext");
+    cache.put(masterSecret, 2, "second", "second plaintext");
+
+    assertThat(awaitPlaintext(2, "second")).isEqualTo("second plaintext");
+
+    cache.remove(Collections.singleton(1L));
+    cache.put(masterSecret, 3, "third", "third plaintext");
+
+    assertThat(awaitPlaintext(3, "third")).isEqualTo("third plaintext");
+    assertThat(cache.get(masterSecret, 1, "first")).isNull();
+
+    cache.close();
+
+    assertThat(cache.get(masterSecret, 1, "first")).isNull();
+    assertThat(cache.get(masterSecret, 2, "second")).isEqualTo("second plaintext");
+  }
+
+  private String awaitPlaintext(long messageId, String ciphertext) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+    while (System.currentTimeMillis() < deadline) {
+      String plaintext = cache.get(masterSecret, messageId, ciphertext);
+
+      if (plaintext != null) return plaintext;
+      Thread.sleep(10);
+    }
+
+    return null;
+  }
+
+  private void truncateCacheFile(int bytes) throws Exception {
+    RandomAccessFile file = new RandomAccessFile(new File(context.getCacheDir(), "plaintext_cache"), "rw");
+
+    try {
+      file.setLength(file.length() - bytes);
+    } finally {
+      file.close();
+    }
+  }
+}
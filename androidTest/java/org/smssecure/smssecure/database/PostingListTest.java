@@ -0,0 +1,56 @@
+package org.smssecure.smssecure.database;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PostingListTest extends SMSSecureTestCase {
+
+  private static final long START_DATE = 1420070400000L;
+
+  public void testSerializedPostingsRoundTripInOrder() {
+    Random      random   = new Random(1);
+    PostingList postings = new PostingList();
+
+    for (int i=0;i<1000;i++) {
+      postings.add(START_DATE + random.nextInt(86400) * 1000L, random.nextInt(100000) << 1);
+    }
+
+    PostingList copy = PostingList.deserialize(postings.serialize());
+
+    assertThat(copy.size()).isEqualTo(postings.size());
+
+    for (int i=0;i<copy.size();i++) {
+      assertThat(copy.getDate(i)).isEqualTo(postings.getDate(i));
+      assertThat(copy.getRef(i)).isEqualTo(postings.getRef(i));
+
+      if (i > 0) assertThat(copy.getDate(i)).isGreaterThanOrEqualTo(copy.getDate(i - 1));
+    }
+  }
+
+  public void testSplitKeepsNewerPostingsTogether() {
+    PostingList postings = new PostingList();
+
+    for (int i=0;i<100;i++) {
+      postings.add(START_DATE + i, i << 1);
+    }
+
+    PostingList upper = postings.split();
+
+    assertThat(postings.size()).isEqualTo(50);
+    assertThat(upper.size()).isEqualTo(50);
+    assertThat(upper.getDate(0)).isGreaterThan(postings.getDate(postings.size() - 1));
+    assertThat(upper.remove(START_DATE + 99, 99 << 1)).isTrue();
+    assertThat(upper.remove(START_DATE + 99, 99 << 1)).isFalse();
+  }
+
+  public void testPrefixQueriesNeedVerification() {
+    assertThat(SearchTokenizer.getQueryToken("resta")).isEqualTo("rest");
+    assertThat(SearchTokenizer.getQueryToken("re")).isNull();
+    assertThat(SearchTokenizer.getIndexTokens("Café")).contains("caf", "cafe");
+    assertThat(SearchTokenizer.matches("Dinner at the Café?", SearchTokenizer.getTerms("cafe din"))).isTrue();
+    assertThat(SearchTokenizer.matches("Dinner at the Café?", SearchTokenizer.getTerms("cafes"))).isFalse();
+  }
+}
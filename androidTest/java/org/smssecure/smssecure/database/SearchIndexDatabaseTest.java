@@ -0,0 +1,187 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.SearchIndexDatabase.SearchResult;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SearchIndexDatabaseTest extends SMSSecureTestCase {
+
+  private static final long START_DATE = 1420070400000L;
+  private static final long THREAD_ID  = 1;
+  private static final long TYPE       = MmsSmsColumns.Types.BASE_INBOX_TYPE |
+                                         MmsSmsColumns.Types.ENCRYPTION_SYMMETRIC_BIT;
+
+  private MasterSecret        masterSecret;
+  private SQLiteOpenHelper    helper;
+  private SearchIndexDatabase database;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[20], "HmacSHA1"));
+    helper       = new SQLiteOpenHelper(getInstrumentation().getTargetContext(), null, null, 1) {
+      @Override
+      public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SmsDatabase.CREATE_TABLE);
+        db.execSQL(MmsDatabase.CREATE_TABLE);
+
+        for (String statement : SearchIndexDatabase.CREATE_TABLES) db.execSQL(statement);
+        for (String statement : SearchIndexDatabase.CREATE_INDEXS) db.execSQL(statement);
+      }
+
+      @Override
+      public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+    };
+    database     = new SearchIndexDatabase(getInstrumentation().getTargetContext(), helper);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    helper.close();
+    super.tearDown();
+  }
+
+  public void testSearchMatchesEveryTermNewestFirst() {
+    long dinner = insert(THREAD_ID, START_DATE, "Dinner at the Café?");
+    long closed = insert(THREAD_ID, START_DATE + 1, "the cafe is closed");
+    insert(THREAD_ID, START_DATE + 2, "lunch instead");
+
+    assertThat(getMessageIds("cafe din")).containsExactly(dinner);
+    assertThat(getMessageIds("cafe")).containsExactly(closed, dinner);
+    assertThat(getMessageIds("cafes")).isEmpty();
+    assertThat(getMessageIds("breakfast")).isEmpty();
+  }
+
+  public void testSearchProbesSplitBlocksByDate() {
+    List<Long> rare = new LinkedList<>();
+
+    for (int i=0;i<1500;i++) {
+      String body = i % 100 == 0 ? "common rarity " + i : "common filler " + i;
+      long   id   = insert(THREAD_ID, START_DATE + i * 1000L, body);
+
+      if (i % 100 == 0) rare.add(0, id);
+    }
+
+    assertThat(getPostingBlockCount()).isGreaterThan(3);
+    assertThat(getMessageIds("rarity common")).isEqualTo(rare);
+    assertThat(getMessageIds("common rarity")).isEqualTo(rare);
+  }
+
+  public void testFirstDateFollowsOldestPosting() {
+    for (int i=0;i<600;i++) {
+      insert(THREAD_ID, START_DATE + i * 1000L, "common " + i);
+    }
+
+    long older = insert(THREAD_ID, START_DATE - 1000, "common older rarity");
+
+    assertThat(getMinimumFirstDate()).isEqualTo(START_DATE - 1000);
+    assertThat(getMessageIds("rarity common")).containsExactly(older);
+
+    database.removeMessage(SearchIndexDatabase.SMS, older);
+
+    assertThat(getMinimumFirstDate()).isEqualTo(START_DATE);
+    assertThat(getMessageIds("rarity")).isEmpty();
+    assertThat(getMessageIds("common")).hasSize(600);
+  }
+
+  public void testReindexReplacesPostings() {
+    long id = insert(THREAD_ID, START_DATE, "meet at the station");
+
+    updateBody(id, "meet at the airport");
+    database.indexMessage(masterSecret, SearchIndexDatabase.SMS, id, "meet at the airport");
+
+    assertThat(getMessageIds("station")).isEmpty();
+    assertThat(getMessageIds("airport meet")).containsExactly(id);
+
+    database.removeMessage(SearchIndexDatabase.SMS, id);
+
+    assertThat(getMessageIds("airport")).isEmpty();
+    assertThat(getPostingBlockCount()).isEqualTo(0);
+  }
+
+  public void testTrimAndThreadDeletionRemovePostings() {
+    insert(THREAD_ID, START_DATE, "holiday photos");
+
+    long kept  = insert(THREAD_ID, START_DATE + 1000, "holiday plans");
+    long other = insert(THREAD_ID + 1, START_DATE, "holiday snaps");
+
+    database.removeMessagesInThreadBeforeDate(SearchIndexDatabase.SMS, THREAD_ID, START_DATE + 1000);
+
+    assertThat(getMessageIds("holiday")).containsExactly(kept, other);
+    assertThat(getMessageIds("photos")).isEmpty();
+
+    database.removeThreads(SearchIndexDatabase.SMS, Collections.singleton(THREAD_ID));
+
+    assertThat(getMessageIds("holiday")).containsExactly(other);
+
+    database.removeAll(SearchIndexDatabase.SMS);
+
+    assertThat(getMessageIds("holiday")).isEmpty();
+    assertThat(getPostingBlockCount()).isEqualTo(0);
+  }
+
+  private long insert(long threadId, long date, String body) {
+    ContentValues values = new ContentValues();
+    values.put(MmsSmsColumns.THREAD_ID, threadId);
+    values.put(SmsDatabase.DATE_RECEIVED, date);
+    values.put(SmsDatabase.TYPE, TYPE);
+    values.put(MmsSmsColumns.BODY, new MasterCipher(masterSecret).encryptBody(body));
+
+    long id = helper.getWritableDatabase().insert(SmsDatabase.TABLE_NAME, null, values);
+    database.indexMessage(masterSecret, SearchIndexDatabase.SMS, id, body);
+
+    return id;
+  }
+
+  private void updateBody(long id, String body) {
+    ContentValues values = new ContentValues();
+    values.put(MmsSmsColumns.BODY, new MasterCipher(masterSecret).encryptBody(body));
+
+    helper.getWritableDatabase().update(SmsDatabase.TABLE_NAME, values, Database.ID_WHERE, new String[] {id + ""});
+  }
+
+  private List<Long> getMessageIds(String query) {
+    List<Long> ids = new LinkedList<>();
+
+    for (SearchResult result : database.search(masterSecret, query, 1000)) {
+      ids.add(result.getMessageId());
+    }
+
+    return ids;
+  }
+
+  private int getPostingBlockCount() {
+    return (int)queryLong("SELECT COUNT(*) FROM search_postings");
+  }
+
+  private long getMinimumFirstDate() {
+    return queryLong("SELECT MIN(first_date) FROM search_postings");
+  }
+
+  private long queryLong(String query) {
+    Cursor cursor = helper.getReadableDatabase().rawQuery(query, null);
+
+    try {
+      assertThat(cursor.moveToFirst()).isTrue();
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package org.smssecure.smssecure.mms;
+
+import org.apache.http.client.methods.HttpGetHC4;
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.mms.LegacyMmsConnection.Apn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LegacyMmsConnectionTest extends SMSSecureTestCase {
+
+  private static final byte[] RESPONSE_BODY = "retrieve-conf".getBytes();
+
+  private ServerSocket  server;
+  private AtomicInteger connections;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.server      = new ServerSocket(0);
+    this.connections = new AtomicInteger(0);
+
+    new Thread(new StandInMmsc()).start();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    MmsConnectionPool.getInstance().close();
+    server.close();
+  }
+
+  public void testConnectionsReusedAcrossTransfers() throws Exception {
+    Apn apn = new Apn("http://127.0.0.1:" + server.getLocalPort() + "/mms", "", "", "", "");
+
+    for (int i=0;i<5;i++) {
+      LegacyMmsConnection connection = new LegacyMmsConnection(getInstrumentation().getTargetContext(), apn) {};
+      byte[]              response   = connection.execute(new HttpGetHC4(apn.getMmsc() + "/" + i));
+
+      assertThat(response).isEqualTo(RESPONSE_BODY);
+    }
+
+    assertThat(connections.get()).isEqualTo(1);
+  }
+
+  private class StandInMmsc implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = server.accept();
+          connections.incrementAndGet();
+
+          new Thread() {
+            @Override
+            public void run() {
+              serve(socket);
+            }
+          }.start();
+        }
+      } catch (IOException e) {
+        // server closed
+      }
+    }
+
+    private void serve(Socket socket) {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        OutputStream   out    = socket.getOutputStream();
+        String         line;
+
+        while ((line = reader.readLine()) != null) {
+          if (!line.isEmpty()) continue;
+
+          out.write(("HTTP/1.1 200 OK\r\n" +
+                     "Content-Type: application/vnd.wap.mms-message\r\n" +
+                     "Content-Length: " + RESPONSE_BODY.length + "\r\n" +
+                     "Connection: keep-alive\r\n\r\n").getBytes());
+          out.write(RESPONSE_BODY);
+          out.flush();
+        }
+
+        socket.close();
+      } catch (IOException e) {
+        // client went away
+      }
+    }
+  }
+}
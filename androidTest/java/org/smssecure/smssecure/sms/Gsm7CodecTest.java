@@ -0,0 +1,66 @@
+package org.smssecure.smssecure.sms;
+
+import android.telephony.SmsMessage;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class Gsm7CodecTest extends SMSSecureTestCase {
+
+  private final SecureRandom random = new SecureRandom();
+
+  public void testRoundTrip() throws Exception {
+    for (int length=0;length<=300;length++) {
+      byte[] data    = new byte[length];
+      random.nextBytes(data);
+
+      String encoded = SmsTransportCodec.GSM7.encode(data);
+
+      assertThat(encoded.length()).isEqualTo(SmsTransportCodec.GSM7.getEncodedLength(length));
+      assertThat(SmsTransportCodec.GSM7.decode(encoded)).isEqualTo(data);
+    }
+  }
+
+  public void testEncodesToSingleSeptetCharacters() throws Exception {
+    byte[] data = new byte[SmsTransportCodec.GSM7.getMaxBytesForCharacters(SmsTransportDetails.SMS_SIZE)];
+    random.nextBytes(data);
+
+    String encoded = SmsTransportCodec.GSM7.encode(data);
+    int[]  length  = SmsMessage.calculateLength(encoded, false);
+
+    assertThat(length[0]).isEqualTo(1);
+    assertThat(length[1]).isEqualTo(encoded.length());
+    assertThat(length[3]).isEqualTo(SmsMessage.ENCODING_7BIT);
+  }
+
+  public void testRejectsForeignCharacters() throws Exception {
+    try {
+      SmsTransportCodec.GSM7.decode("abc@");
+      fail("Decoded a character outside the alphabet");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testSendsFewerSegmentsThanBase64() {
+    SmsTransportDetails base64 = new SmsTransportDetails(SmsTransportCodec.BASE64);
+    SmsTransportDetails gsm7   = new SmsTransportDetails(SmsTransportCodec.GSM7);
+
+    int base64Segments = 0;
+    int gsm7Segments   = 0;
+
+    for (int bytes=1;bytes<=1000;bytes++) {
+      assertThat(gsm7.getMessageCountForBytes(bytes)).isLessThanOrEqualTo(base64.getMessageCountForBytes(bytes));
+
+      base64Segments += base64.getMessageCountForBytes(bytes);
+      gsm7Segments   += gsm7.getMessageCountForBytes(bytes);
+    }
+
+    assertThat(gsm7.getBaseMaxBytes()).isGreaterThan(base64.getBaseMaxBytes());
+    assertThat(gsm7Segments).isLessThan(base64Segments);
+  }
+}
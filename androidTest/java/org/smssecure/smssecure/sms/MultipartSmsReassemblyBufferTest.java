@@ -0,0 +1,66 @@
+package org.smssecure.smssecure.sms;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.protocol.WirePrefix;
+import org.smssecure.smssecure.util.Base64;
+import org.smssecure.smssecure.util.Conversions;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MultipartSmsReassemblyBufferTest extends SMSSecureTestCase {
+
+  public void testReassemblesInterleavedMessages() throws Exception {
+    MultipartSmsReassemblyBuffer buffer = new MultipartSmsReassemblyBuffer();
+
+    assertThat(buffer.add(createFragment("+14152222222", 1, 0, 2))).isNull();
+    assertThat(buffer.add(createFragment("+14153333333", 1, 1, 2))).isNull();
+    assertThat(buffer.add(createFragment("+14152222222", 1, 1, 2))).isNotNull();
+    assertThat(buffer.add(createFragment("+14153333333", 1, 0, 2))).isNotNull();
+
+    assertThat(buffer.getCompletedCount()).isEqualTo(2);
+    assertThat(buffer.getPendingCount()).isEqualTo(0);
+    assertThat(buffer.getBufferedBytes()).isEqualTo(0);
+  }
+
+  public void testSweepExpiresIncompleteMessages() throws Exception {
+    MultipartSmsReassemblyBuffer buffer = new MultipartSmsReassemblyBuffer(0, TimeUnit.DAYS.toMillis(1));
+
+    buffer.add(createFragment("+14152222222", 7, 0, 3));
+    buffer.sweep();
+
+    assertThat(buffer.getExpiredCount()).isEqualTo(1);
+    assertThat(buffer.getPendingCount()).isEqualTo(0);
+    assertThat(buffer.getBufferedBytes()).isEqualTo(0);
+  }
+
+  public void testEvictsOldestPastLimit() throws Exception {
+    MultipartSmsReassemblyBuffer buffer = new MultipartSmsReassemblyBuffer(TimeUnit.HOURS.toMillis(1), 150);
+
+    buffer.add(createFragment("+14152222222", 1, 0, 3));
+    Thread.sleep(5);
+    buffer.add(createFragment("+14153333333", 1, 0, 3));
+
+    assertThat(buffer.getEvictedCount()).isEqualTo(1);
+    assertThat(buffer.getPendingCount()).isEqualTo(1);
+  }
+
+  private MultipartSmsTransportMessage createFragment(String sender, int identifier, int index, int count)
+      throws Exception
+  {
+    byte[] fragment = new byte[100];
+
+    fragment[0] = Conversions.intsToByteHighAndLow(2, 2);
+    fragment[1] = Conversions.intsToByteHighAndLow(index, count);
+    fragment[2] = (byte)identifier;
+
+    String encoded = Base64.encodeBytesWithoutPadding(fragment);
+    String body    = WirePrefix.calculateEncryptedMesagePrefix(encoded) + encoded;
+
+    return new MultipartSmsTransportMessage(new IncomingTextMessage(sender, 1, System.currentTimeMillis(), body,
+                                                                    Optional.<TextSecureGroup>absent()));
+  }
+}
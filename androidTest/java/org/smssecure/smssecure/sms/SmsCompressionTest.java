@@ -0,0 +1,40 @@
+package org.smssecure.smssecure.sms;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SmsCompressionTest extends SMSSecureTestCase {
+
+  private static final String LONG_MESSAGE =
+      "Hey, are you coming to dinner tonight? Let me know what time you think you'll be here, " +
+      "I'm not sure if we should wait for you or just start without you. Talk to you later!";
+
+  private final SmsTransportDetails transportDetails = new SmsTransportDetails();
+
+  public void testCompressedBodyRoundTrips() throws Exception {
+    byte[] compressed = SmsCompression.compress(LONG_MESSAGE.getBytes());
+    byte[] padded     = transportDetails.getPaddedMessageBody(compressed);
+
+    assertThat(compressed.length).isLessThan(LONG_MESSAGE.length());
+    assertThat(transportDetails.getMessageCountForBytes(compressed.length))
+        .isLessThan(transportDetails.getMessageCountForBytes(LONG_MESSAGE.length()));
+    assertThat(new String(transportDetails.getMessageBody(padded))).isEqualTo(LONG_MESSAGE);
+    assertThat(transportDetails.getAdvertisedCapabilities(padded) & SecureSmsCapabilities.COMPRESSION)
+        .isEqualTo(SecureSmsCapabilities.COMPRESSION);
+  }
+
+  public void testPlaintextBodyAdvertisesWithoutChangingStrippedBody() throws Exception {
+    byte[] padded = transportDetails.getPaddedMessageBody("hello".getBytes());
+
+    assertThat(new String(transportDetails.getStrippedPaddingMessageBody(padded))).isEqualTo("hello");
+    assertThat(new String(transportDetails.getMessageBody(padded))).isEqualTo("hello");
+    assertThat(transportDetails.getAdvertisedCapabilities(padded) & SecureSmsCapabilities.COMPRESSION)
+        .isEqualTo(SecureSmsCapabilities.COMPRESSION);
+  }
+
+  public void testIncompressibleBodyIsLeftAlone() throws Exception {
+    assertThat(SmsCompression.compress("ok".getBytes())).isNull();
+    assertThat(SmsCompression.getCompressedLength("ok".getBytes())).isEqualTo(2);
+  }
+}
@@ -0,0 +1,40 @@
+package org.smssecure.smssecure.util;
+
+import junit.framework.AssertionFailedError;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class Base64Test extends SMSSecureTestCase {
+
+  public void testDecodeIntoBufferMatchesDecode() throws Exception {
+    for (int length=0;length<40;length++) {
+      byte[] data = new byte[length];
+      for (int i=0;i<length;i++) data[i] = (byte)(i * 37 + length);
+
+      String encoded     = Base64.encodeBytes(data);
+      byte[] destination = new byte[3 + encoded.length() * 3 / 4];
+
+      Arrays.fill(destination, (byte)0x55);
+
+      int decoded = Base64.decode(encoded, destination, 3);
+
+      assertThat(decoded).isEqualTo(length);
+      assertThat(Arrays.copyOfRange(destination, 3, 3 + decoded)).isEqualTo(Base64.decode(encoded));
+      assertThat(Arrays.copyOfRange(destination, 0, 3)).isEqualTo(new byte[] {0x55, 0x55, 0x55});
+    }
+  }
+
+  public void testDecodeIntoBufferRejectsBadCharacters() throws Exception {
+    try {
+      Base64.decode("abc!", new byte[3], 0);
+      throw new AssertionFailedError("should have thrown on a bad character");
+    } catch (IOException ioe) {
+      // success
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package org.smssecure.smssecure.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+import junit.framework.AssertionFailedError;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BitmapUtilTest extends SMSSecureTestCase {
+
+  private Bitmap bitmap;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    Random random = new Random(42);
+    int[]  pixels = new int[256 * 256];
+
+    for (int i=0;i<pixels.length;i++) {
+      pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+
+    bitmap = Bitmap.createBitmap(pixels, 256, 256, Bitmap.Config.ARGB_8888);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    bitmap.recycle();
+    super.tearDown();
+  }
+
+  public void testCompressToSizeUsesMaximumQualityWhenItFits() throws Exception {
+    int maximumSize = getCompressedSize(95);
+
+    assertThat(BitmapUtil.compressToSize(bitmap, maximumSize, null).length).isEqualTo(maximumSize);
+  }
+
+  public void testCompressToSizeFindsQualityBetweenLimits() throws Exception {
+    int maxSize = getCompressedSize(70);
+    int result  = BitmapUtil.compressToSize(bitmap, maxSize, null).length;
+
+    assertThat(result).isLessThanOrEqualTo(maxSize);
+    assertThat(result).isGreaterThan(getCompressedSize(50));
+  }
+
+  public void testCompressToSizeFailsBelowMinimumQuality() throws Exception {
+    try {
+      BitmapUtil.compressToSize(bitmap, getCompressedSize(50) - 1, null);
+      throw new AssertionFailedError("should have thrown on a size below the minimum quality");
+    } catch (IOException ioe) {
+      // success
+    }
+  }
+
+  private int getCompressedSize(int quality) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    bitmap.compress(CompressFormat.JPEG, quality, baos);
+
+    return baos.size();
+  }
+}
@@ -0,0 +1,57 @@
+package org.smssecure.smssecure.util;
+
+import junit.framework.AssertionFailedError;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NumberCanonicalizerTest extends SMSSecureTestCase {
+  private static final String LOCAL_NUMBER = "+15555555555";
+
+  private static final String[] NUMBERS = {"(555) 555-5555", "555-5555", "(123) 555-5555",
+                                           "+442079460000", "07700 900123", "911"};
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    NumberCanonicalizer.getInstance().invalidate();
+  }
+
+  public void testMatchesFormatter() throws Exception {
+    NumberCanonicalizer canonicalizer = NumberCanonicalizer.getInstance();
+
+    for (String number : NUMBERS) {
+      String expected = PhoneNumberFormatter.formatNumber(number, LOCAL_NUMBER);
+
+      assertThat(canonicalizer.canonicalize(number, LOCAL_NUMBER)).isEqualTo(expected);
+      assertThat(canonicalizer.canonicalize(number, LOCAL_NUMBER)).isEqualTo(expected);
+    }
+  }
+
+  public void testRepeatedLookupsHit() throws Exception {
+    NumberCanonicalizer canonicalizer = NumberCanonicalizer.getInstance();
+    long                hits          = canonicalizer.getHitCount();
+
+    canonicalizer.canonicalize("555-5555", LOCAL_NUMBER);
+    canonicalizer.canonicalize("555-5555", LOCAL_NUMBER);
+    canonicalizer.canonicalize("555-5555", "+442079460000");
+
+    assertThat(canonicalizer.getHitCount() - hits).isEqualTo(1);
+  }
+
+  public void testInvalidNumberIsRemembered() throws Exception {
+    NumberCanonicalizer canonicalizer = NumberCanonicalizer.getInstance();
+
+    for (int i=0;i<2;i++) {
+      try {
+        canonicalizer.canonicalize("person@domain.com", LOCAL_NUMBER);
+        throw new AssertionFailedError("should have thrown on email");
+      } catch (InvalidNumberException ine) {
+        // success
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.smssecure.smssecure.util;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StripedLRUCacheTest extends SMSSecureTestCase {
+
+  private static final StripedLRUCache.Weigher<String, String> STRING_WEIGHER =
+      new StripedLRUCache.Weigher<String, String>() {
+        @Override
+        public int weigh(String key, String value) {
+          return value.length();
+        }
+      };
+
+  public void testEvictsLeastRecentlyUsedByWeight() throws Exception {
+    StripedLRUCache<String, String> cache = new StripedLRUCache<>(10, 1, STRING_WEIGHER);
+
+    cache.put("a", "aaaa");
+    cache.put("b", "bbbb");
+    assertThat(cache.get("a")).isEqualTo("aaaa");
+
+    cache.put("c", "cccc");
+
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.get("a")).isEqualTo("aaaa");
+    assertThat(cache.get("c")).isEqualTo("cccc");
+    assertThat(cache.getWeight()).isEqualTo(8);
+    assertThat(cache.getEvictionCount()).isEqualTo(1);
+  }
+
+  public void testReplaceUpdatesWeight() throws Exception {
+    StripedLRUCache<String, String> cache = new StripedLRUCache<>(100, 4, STRING_WEIGHER);
+
+    cache.put("a", "aaaa");
+    cache.put("a", "aa");
+    assertThat(cache.getWeight()).isEqualTo(2);
+
+    cache.remove("a");
+    assertThat(cache.getWeight()).isEqualTo(0);
+  }
+
+  public void testReweighTracksValueChangedInPlace() throws Exception {
+    StripedLRUCache.Weigher<String, StringBuilder> weigher = new StripedLRUCache.Weigher<String, StringBuilder>() {
+      @Override
+      public int weigh(String key, StringBuilder value) {
+        return value.length();
+      }
+    };
+
+    StripedLRUCache<String, StringBuilder> cache = new StripedLRUCache<>(10, 1, weigher);
+    StringBuilder                          a     = new StringBuilder("a");
+    StringBuilder                          b     = new StringBuilder("b");
+
+    cache.put("a", a);
+    cache.put("b", b);
+
+    a.append("aaaaaaaaa");
+    cache.reweigh("a", a);
+
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.getWeight()).isEqualTo(10);
+    assertThat(cache.getEvictionCount()).isEqualTo(1);
+
+    cache.reweigh("a", new StringBuilder("a"));
+    assertThat(cache.getWeight()).isEqualTo(10);
+  }
+
+  public void testCounters() throws Exception {
+    StripedLRUCache<String, String> cache = new StripedLRUCache<>(100, 4, STRING_WEIGHER);
+
+    cache.put("a", "aaaa");
+    cache.get("a");
+    cache.get("b");
+
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,94 @@
+package org.smssecure.smssecure.util;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TaskSchedulerTest extends SMSSecureTestCase {
+
+  public void testWithdrawnTaskRunsWhenObservedAgain() throws Exception {
+    TaskScheduler  scheduler = TaskScheduler.getInstance();
+    CountDownLatch blocker   = new CountDownLatch(1);
+    AtomicBoolean  ran       = new AtomicBoolean(false);
+
+    BlockingRunnable blocking = new BlockingRunnable(blocker);
+    scheduler.execute(TaskScheduler.Domain.EMOJI, TaskScheduler.Priority.VISIBLE, blocking);
+    blocking.started.await();
+
+    ListenableFutureTask<Boolean> task     = scheduler.submit(TaskScheduler.Domain.EMOJI, TaskScheduler.Priority.VISIBLE, new FlagCallable(ran));
+    FutureTaskListener<Boolean>   listener = new NoopListener();
+
+    task.addListener(listener);
+    task.removeListener(listener);
+    blocker.countDown();
+
+    Thread.sleep(200);
+    assertThat(ran.get()).isFalse();
+    assertThat(task.get(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(ran.get()).isTrue();
+  }
+
+  public void testCancelledTaskIsDropped() throws Exception {
+    TaskScheduler  scheduler = TaskScheduler.getInstance();
+    CountDownLatch blocker   = new CountDownLatch(1);
+    AtomicBoolean  ran       = new AtomicBoolean(false);
+
+    BlockingRunnable blocking = new BlockingRunnable(blocker);
+    scheduler.execute(TaskScheduler.Domain.EMOJI, TaskScheduler.Priority.VISIBLE, blocking);
+    blocking.started.await();
+
+    ListenableFutureTask<Boolean> task = scheduler.submit(TaskScheduler.Domain.EMOJI, TaskScheduler.Priority.VISIBLE, new FlagCallable(ran));
+    task.cancel(false);
+    blocker.countDown();
+
+    Thread.sleep(200);
+    assertThat(ran.get()).isFalse();
+    assertThat(scheduler.getQueueDepth(TaskScheduler.Domain.EMOJI)).isEqualTo(0);
+  }
+
+  private static class BlockingRunnable implements Runnable {
+    private final CountDownLatch latch;
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    public BlockingRunnable(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      try {
+        started.countDown();
+        latch.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private static class FlagCallable implements Callable<Boolean> {
+    private final AtomicBoolean flag;
+
+    public FlagCallable(AtomicBoolean flag) {
+      this.flag = flag;
+    }
+
+    @Override
+    public Boolean call() {
+      flag.set(true);
+      return true;
+    }
+  }
+
+  private static class NoopListener implements FutureTaskListener<Boolean> {
+    @Override
+    public void onSuccess(Boolean result) {}
+
+    @Override
+    public void onFailure(Throwable error) {}
+  }
+}
@@ -0,0 +1,89 @@
+package ws.com.google.android.mms.pdu;
+
+import android.net.Uri;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PduComposerTest extends SMSSecureTestCase {
+
+  private static final byte[] TEXT  = "hello".getBytes();
+  private static final byte[] IMAGE = new byte[64 * 1024];
+
+  static {
+    for (int i=0;i<IMAGE.length;i++) IMAGE[i] = (byte)i;
+  }
+
+  public void testStreamingMatchesBufferedCompose() throws Exception {
+    byte[]      buffered = new PduComposer(getInstrumentation().getTargetContext(), createSendReq(true)).make();
+    ComposedPdu streamed = new PduComposer(getInstrumentation().getTargetContext(), createSendReq(false))
+                               .makeStreaming(new ImageSource(IMAGE));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    streamed.writeTo(out);
+
+    assertThat(streamed.getLength()).isEqualTo(buffered.length);
+    assertThat(out.toByteArray()).isEqualTo(buffered);
+  }
+
+  public void testMismatchedPartSizeFailsWrite() throws Exception {
+    ComposedPdu streamed = new PduComposer(getInstrumentation().getTargetContext(), createSendReq(false))
+                               .makeStreaming(new ImageSource(new byte[IMAGE.length - 1]));
+
+    try {
+      streamed.writeTo(new ByteArrayOutputStream());
+      fail("Expected the short part to fail the write");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private SendReq createSendReq(boolean inMemory) {
+    SendReq sendReq = new SendReq();
+    PduBody body    = new PduBody();
+
+    PduPart text = new PduPart();
+    text.setContentType(Util.toIsoBytes("text/plain"));
+    text.setContentLocation(Util.toIsoBytes("text.txt"));
+    text.setData(TEXT);
+
+    PduPart image = new PduPart();
+    image.setContentType(Util.toIsoBytes("image/jpeg"));
+    image.setContentLocation(Util.toIsoBytes("image.jpg"));
+
+    if (inMemory) {
+      image.setData(IMAGE);
+    } else {
+      image.setDataUri(Uri.parse("content://org.smssecure.smssecure/part/1"));
+      image.setDataSize(IMAGE.length);
+    }
+
+    sendReq.setTransactionId("T1".getBytes());
+    sendReq.addTo(new EncodedStringValue("+14152222222"));
+    body.addPart(text);
+    body.addPart(image);
+    sendReq.setBody(body);
+
+    return sendReq;
+  }
+
+  private static class ImageSource implements PduPartSource {
+    private final byte[] data;
+
+    public ImageSource(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public InputStream getPartData(PduPart part) throws IOException {
+      return new ByteArrayInputStream(data);
+    }
+  }
+}
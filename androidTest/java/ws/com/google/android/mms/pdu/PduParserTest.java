@@ -0,0 +1,92 @@
+package ws.com.google.android.mms.pdu;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PduParserTest extends SMSSecureTestCase {
+
+  private static final byte[] TEXT  = "hello".getBytes();
+  private static final byte[] IMAGE = new byte[64 * 1024];
+
+  static {
+    for (int i=0;i<IMAGE.length;i++) IMAGE[i] = (byte)i;
+  }
+
+  public void testStreamingMatchesBufferedParse() throws Exception {
+    byte[]         pdu  = composeSendReq();
+    CollectingSink sink = new CollectingSink();
+
+    PduBody buffered = ((SendReq)new PduParser(pdu).parse()).getBody();
+    PduBody streamed = ((SendReq)new PduParser(new ByteArrayInputStream(pdu), pdu.length, sink).parse()).getBody();
+
+    assertThat(streamed.getPartsNum()).isEqualTo(buffered.getPartsNum());
+    assertThat(getPart(buffered, "image/jpeg").getData()).isEqualTo(IMAGE);
+    assertThat(getPart(streamed, "image/jpeg").getData()).isNull();
+    assertThat(getPart(streamed, "text/plain").getData()).isEqualTo(TEXT);
+    assertThat(sink.written.toByteArray()).isEqualTo(IMAGE);
+  }
+
+  public void testTruncatedStreamFailsParse() throws Exception {
+    byte[] pdu       = composeSendReq();
+    byte[] truncated = Arrays.copyOf(pdu, pdu.length - 10);
+
+    assertThat(new PduParser(new ByteArrayInputStream(truncated), pdu.length, new CollectingSink()).parse()).isNull();
+  }
+
+  private byte[] composeSendReq() throws Exception {
+    SendReq sendReq = new SendReq();
+    PduBody body    = new PduBody();
+
+    sendReq.addTo(new EncodedStringValue("+14152222222"));
+    body.addPart(createPart("text/plain", "text.txt", TEXT));
+    body.addPart(createPart("image/jpeg", "image.jpg", IMAGE));
+    sendReq.setBody(body);
+
+    return new PduComposer(getInstrumentation().getTargetContext(), sendReq).make();
+  }
+
+  private PduPart createPart(String contentType, String location, byte[] data) {
+    PduPart part = new PduPart();
+    part.setContentType(Util.toIsoBytes(contentType));
+    part.setContentLocation(Util.toIsoBytes(location));
+    part.setData(data);
+    return part;
+  }
+
+  private PduPart getPart(PduBody body, String contentType) {
+    for (int i=0;i<body.getPartsNum();i++) {
+      if (Util.toIsoString(body.getPart(i).getContentType()).equals(contentType)) {
+        return body.getPart(i);
+      }
+    }
+
+    throw new AssertionError("No " + contentType + " part");
+  }
+
+  private static class CollectingSink implements PduPartSink {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    @Override
+    public boolean acceptsPdu(PduHeaders headers) {
+      return true;
+    }
+
+    @Override
+    public boolean acceptsPart(PduPart part) {
+      return Util.toIsoString(part.getContentType()).startsWith("image/");
+    }
+
+    @Override
+    public void write(PduPart part, InputStream data, int length) throws IOException {
+      Util.copy(data, written);
+    }
+  }
+}
@@ -89,6 +89,7 @@ import org.smssecure.smssecure.sms.MessageSender;
 import org.smssecure.smssecure.sms.OutgoingEncryptedMessage;
 import org.smssecure.smssecure.sms.OutgoingEndSessionMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
+import org.smssecure.smssecure.sms.SecureSmsCapabilities;
 import org.smssecure.smssecure.util.BitmapDecodingException;
 import org.smssecure.smssecure.util.CharacterCalculator.CharacterState;
 import org.smssecure.smssecure.util.Dialogs;
@@ -959,11 +960,15 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
   }
 
   private void calculateCharactersRemaining() {
-    int            charactersSpent = composeText.getText().toString().length();
+    String          messageBody     = composeText.getText().toString();
     TransportOption transportOption = sendButton.getSelectedTransport();
 
     if (transportOption != null) {
-      CharacterState characterState = transportOption.calculateCharacters(charactersSpent);
+      transportOption.setPeerCapabilities(isSingleConversation()
+                                          ? SecureSmsCapabilities.get(this, getRecipients().getPrimaryRecipient().getNumber())
+                                          : 0);
+
+      CharacterState characterState = transportOption.calculateCharacters(messageBody);
 
       if (characterState.charactersRemaining <= 15 || characterState.messagesSpent > 1) {
         charactersLeft.setText(characterState.charactersRemaining + "/" + characterState.maxMessageSize
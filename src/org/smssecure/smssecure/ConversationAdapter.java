@@ -31,12 +31,11 @@ import org.smssecure.smssecure.database.MmsSmsColumns;
 import org.smssecure.smssecure.database.MmsSmsDatabase;
 import org.smssecure.smssecure.database.SmsDatabase;
 import org.smssecure.smssecure.database.model.MessageRecord;
-import org.smssecure.smssecure.util.LRUCache;
+import org.smssecure.smssecure.util.StripedLRUCache;
 
 import java.lang.ref.SoftReference;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import org.smssecure.smssecure.ConversationFragment.SelectionClickListener;
@@ -51,9 +50,23 @@ import org.smssecure.smssecure.ConversationFragment.SelectionClickListener;
  */
 public class ConversationAdapter extends CursorAdapter implements AbsListView.RecyclerListener {
 
-  private static final int MAX_CACHE_SIZE = 40;
-  private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
-      Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
+  private static final long MAX_CACHE_WEIGHT = 1024 * 1024;
+  private static final int  RECORD_OVERHEAD  = 1024;
+
+  private final StripedLRUCache<String,SoftReference<MessageRecord>> messageRecordCache =
+      new StripedLRUCache<>(MAX_CACHE_WEIGHT, 4, new StripedLRUCache.Weigher<String, SoftReference<MessageRecord>>() {
+        @Override
+        public int weigh(String key, SoftReference<MessageRecord> reference) {
+          MessageRecord record = reference.get();
+          int           weight = RECORD_OVERHEAD + StripedLRUCache.getStringWeight(key);
+
+          if (record != null) {
+            weight += StripedLRUCache.getStringWeight(record.getBody().getBody());
+          }
+
+          return weight;
+        }
+      });
 
   public static final int MESSAGE_TYPE_OUTGOING = 0;
   public static final int MESSAGE_TYPE_INCOMING = 1;
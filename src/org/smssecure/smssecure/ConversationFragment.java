@@ -21,6 +21,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.Toast;
@@ -60,6 +61,7 @@ public class ConversationFragment extends ListFragment
   private Recipients   recipients;
   private long         threadId;
   private ActionMode   actionMode;
+  private boolean      loadingOlder;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle bundle) {
@@ -118,6 +120,7 @@ public class ConversationFragment extends ListFragment
   private void initializeContextualActionBar() {
     getListView().setOnItemClickListener(selectionClickListener);
     getListView().setOnItemLongClickListener(selectionClickListener);
+    getListView().setOnScrollListener(new OlderPageScrollListener());
   }
 
   private void setCorrectMenuVisibility(Menu menu) {
@@ -276,14 +279,47 @@ public class ConversationFragment extends ListFragment
 
   @Override
   public void onLoadFinished(Loader<Cursor> arg0, Cursor cursor) {
-    ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+    CursorAdapter adapter = (CursorAdapter)getListAdapter();
+
+    if (loadingOlder && cursor != null) {
+      ListView list          = getListView();
+      int      previousCount = adapter.getCount();
+      int      firstVisible  = list.getFirstVisiblePosition();
+      View     firstChild    = list.getChildAt(0);
+      int      top           = firstChild == null ? 0 : firstChild.getTop();
+
+      adapter.changeCursor(cursor);
+      list.setSelectionFromTop(firstVisible + Math.max(0, cursor.getCount() - previousCount), top);
+    } else {
+      adapter.changeCursor(cursor);
+    }
+
+    loadingOlder = false;
   }
 
   @Override
   public void onLoaderReset(Loader<Cursor> arg0) {
+    loadingOlder = false;
     ((CursorAdapter)getListAdapter()).changeCursor(null);
   }
 
+  private class OlderPageScrollListener implements AbsListView.OnScrollListener {
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if (loadingOlder || firstVisibleItem != 0 || totalItemCount == 0) return;
+
+      Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+      if (loader instanceof ConversationLoader && ((ConversationLoader)loader).hasOlder()) {
+        loadingOlder = true;
+        ((ConversationLoader)loader).loadOlder();
+      }
+    }
+  }
+
   public interface ConversationFragmentListener {
     public void setComposeText(String text);
   }
@@ -252,7 +252,7 @@ public class ConversationListFragment extends ListFragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-    return new ConversationListLoader(getActivity(), queryFilter);
+    return new ConversationListLoader(getActivity(), masterSecret, queryFilter);
   }
 
   @Override
@@ -32,6 +32,7 @@ import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.EncryptingSmsDatabase;
 import org.smssecure.smssecure.database.SmsDatabase;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.PartFileMigrationJob;
 import org.smssecure.smssecure.jobs.SmsDecryptJob;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.util.ParcelUtil;
@@ -53,6 +54,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
   public static final int NO_V1_VERSION                        = 83;
   public static final int SIGNED_PREKEY_VERSION                = 83;
   public static final int NO_DECRYPT_QUEUE_VERSION             = 84;
+  public static final int CHUNKED_PART_FILES_VERSION           = 101;
 
   private static final SortedSet<Integer> UPGRADE_VERSIONS = new TreeSet<Integer>() {{
     add(NO_MORE_KEY_EXCHANGE_PREFIX_VERSION);
@@ -62,6 +64,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     add(NO_V1_VERSION);
     add(SIGNED_PREKEY_VERSION);
     add(NO_DECRYPT_QUEUE_VERSION);
+    add(CHUNKED_PART_FILES_VERSION);
   }};
 
   private MasterSecret masterSecret;
@@ -188,6 +191,12 @@ public class DatabaseUpgradeActivity extends BaseActivity {
         }
       }
 
+      if (params[0] < CHUNKED_PART_FILES_VERSION) {
+        ApplicationContext.getInstance(getApplicationContext())
+                          .getJobManager()
+                          .add(new PartFileMigrationJob(getApplicationContext()));
+      }
+
       return null;
     }
 
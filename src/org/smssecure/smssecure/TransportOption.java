@@ -36,4 +36,14 @@ public class TransportOption {
   public CharacterState calculateCharacters(int charactersSpent) {
     return characterCalculator.calculateCharacters(charactersSpent);
   }
+
+  public CharacterState calculateCharacters(String messageBody) {
+    return characterCalculator.calculateCharacters(messageBody);
+  }
+
+  public void setPeerCapabilities(int capabilities) {
+    if (characterCalculator instanceof EncryptedSmsCharacterCalculator) {
+      ((EncryptedSmsCharacterCalculator)characterCalculator).setPeerCapabilities(capabilities);
+    }
+  }
 }
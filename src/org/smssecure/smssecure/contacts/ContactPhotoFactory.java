@@ -52,6 +52,16 @@ public class ContactPhotoFactory {
     }
   }
 
+  public static boolean isDefaultPhoto(Bitmap bitmap) {
+    synchronized (defaultPhotoLock) {
+      if (bitmap == defaultContactPhoto) return true;
+    }
+
+    synchronized (defaultGroupPhotoLock) {
+      return bitmap == defaultGroupContactPhoto;
+    }
+  }
+
   public static Bitmap getLocalUserContactPhoto(Context context, Uri uri) {
     if (uri == null) return getDefaultContactPhoto(context);
 
@@ -37,12 +37,10 @@ import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.util.BitmapWorkerRunnable;
 import org.smssecure.smssecure.util.BitmapWorkerRunnable.AsyncDrawable;
 import org.smssecure.smssecure.util.TaggedFutureTask;
-import org.smssecure.smssecure.util.Util;
+import org.smssecure.smssecure.util.TaskScheduler;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.FutureTask;
 
 import se.emilsjolander.stickylistheaders.StickyListHeadersAdapter;
 
@@ -56,7 +54,6 @@ public class ContactSelectionListAdapter extends    CursorAdapter
 {
   private final static String TAG = "ContactListAdapter";
 
-  private final static ExecutorService photoResolver = Util.newSingleThreadedLifoExecutor();
 
   private final static int STYLE_ATTRIBUTES[] = new int[]{R.attr.contact_selection_push_user,
                                                           R.attr.contact_selection_lay_user,
@@ -237,7 +234,7 @@ public class ContactSelectionListAdapter extends    CursorAdapter
       final AsyncDrawable asyncDrawable   = new AsyncDrawable(defaultPhoto, task);
 
       imageView.setImageDrawable(asyncDrawable);
-      if (!task.isCancelled()) photoResolver.execute(new FutureTask<Void>(task, null));
+      if (!task.isCancelled()) TaskScheduler.getInstance().execute(TaskScheduler.Domain.CONTACT_PHOTOS, TaskScheduler.Priority.VISIBLE, task);
     }
   }
 
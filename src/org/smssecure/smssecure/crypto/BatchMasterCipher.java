@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.crypto;
+
+import android.util.Log;
+
+import org.smssecure.smssecure.util.Base64;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decrypts a window of Base64 encoded {@link MasterCipher} bodies at once.
+ *
+ * All bodies in a batch are decoded into one reusable arena, and the
+ * MAC verification and decryption of large batches is split across a
+ * small worker pool.  Instances keep their arenas between calls and
+ * are not thread-safe.
+ */
+public class BatchMasterCipher {
+
+  private static final String TAG = BatchMasterCipher.class.getSimpleName();
+
+  public  static final int DEFAULT_BATCH_SIZE  = 64;
+  private static final int MIN_PARALLEL_BATCH  = 16;
+  private static final int WORKER_COUNT        = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+  private static ExecutorService workers;
+
+  private final MasterCipherEngine engine;
+
+  private byte[] decodedArena   = new byte[0];
+  private byte[] plaintextArena = new byte[0];
+
+  public BatchMasterCipher(MasterSecret masterSecret) {
+    this.engine = MasterCipherEngine.getInstance(masterSecret);
+  }
+
+  /**
+   * @return the decrypted bodies, in order.  Entries that could not be decoded or
+   *         failed MAC verification are null, so callers can fall back to
+   *         {@link MasterCipher#decryptBody(String)} for the error handling.
+   */
+  public String[] decryptBodies(List<String> ciphertexts) {
+    int      count   = ciphertexts.size();
+    int[]    offsets = new int[count];
+    int[]    lengths = new int[count];
+    String[] results = new String[count];
+
+    decode(ciphertexts, offsets, lengths);
+
+    if (count < MIN_PARALLEL_BATCH || WORKER_COUNT == 1) {
+      decrypt(offsets, lengths, 0, count);
+    } else {
+      decryptParallel(offsets, lengths);
+    }
+
+    for (int i=0;i<count;i++) {
+      if (lengths[i] >= 0) {
+        results[i] = new String(plaintextArena, offsets[i], lengths[i]);
+      }
+    }
+
+    return results;
+  }
+
+  private void decode(List<String> ciphertexts, int[] offsets, int[] lengths) {
+    int capacity = 0;
+
+    for (String ciphertext : ciphertexts) {
+      capacity += ciphertext.length() * 3 / 4;
+    }
+
+    if (decodedArena.length < capacity) {
+      decodedArena   = new byte[capacity];
+      plaintextArena = new byte[capacity];
+    }
+
+    int offset = 0;
+    int index  = 0;
+
+    for (String ciphertext : ciphertexts) {
+      try {
+        offsets[index] = offset;
+        lengths[index] = Base64.decode(ciphertext, decodedArena, offset);
+        offset        += ciphertext.length() * 3 / 4;
+      } catch (IOException | IllegalArgumentException e) {
+        Log.w(TAG, e);
+        lengths[index] = -1;
+      }
+
+      index++;
+    }
+  }
+
+  private void decrypt(int[] offsets, int[] lengths, int from, int to) {
+    for (int i=from;i<to;i++) {
+      if (lengths[i] < 0) continue;
+
+      try {
+        // Plaintext is always shorter than its ciphertext, so each body can
+        // be decrypted into the same offset of the plaintext arena.
+        lengths[i] = engine.decrypt(decodedArena, offsets[i], lengths[i], plaintextArena, offsets[i]);
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+        lengths[i] = -1;
+      }
+    }
+  }
+
+  private void decryptParallel(final int[] offsets, final int[] lengths) {
+    int                  count   = offsets.length;
+    int                  slice   = (count + WORKER_COUNT - 1) / WORKER_COUNT;
+    List<Future<Void>>   pending = new LinkedList<>();
+
+    for (int from=slice;from<count;from+=slice) {
+      final int start = from;
+      final int end   = Math.min(count, from + slice);
+
+      pending.add(getWorkers().submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          decrypt(offsets, lengths, start, end);
+          return null;
+        }
+      }));
+    }
+
+    decrypt(offsets, lengths, 0, Math.min(count, slice));
+
+    for (Future<Void> future : pending) {
+      try {
+        future.get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private static synchronized ExecutorService getWorkers() {
+    if (workers == null) {
+      workers = Executors.newFixedThreadPool(WORKER_COUNT);
+    }
+
+    return workers;
+  }
+}
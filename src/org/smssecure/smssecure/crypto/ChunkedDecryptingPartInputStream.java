@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.crypto;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads an MMS part written in the chunked format described in
+ * {@link PartChunkCipher}.
+ *
+ * Only the chunk holding the current position is read and authenticated,
+ * so {@link #seek(long)} and {@link #skip(long)} are constant time, and a
+ * reader that only needs the start of a part (an image header, say) never
+ * touches the rest of the file.
+ */
+public class ChunkedDecryptingPartInputStream extends InputStream {
+
+  private static final String TAG = ChunkedDecryptingPartInputStream.class.getSimpleName();
+
+  private final RandomAccessFile file;
+  private final PartChunkCipher  cipher;
+  private final int              chunkCount;
+  private final int              lastChunkLength;
+
+  private final byte[] sealed    = new byte[PartChunkCipher.FULL_CHUNK_LENGTH];
+  private final byte[] plaintext = new byte[PartChunkCipher.FULL_CHUNK_LENGTH];
+
+  private int  loadedChunk  = -1;
+  private int  loadedLength;
+  private long position;
+  private long mark;
+  private long length       = -1;
+
+  public static boolean isChunkedFormat(File file) {
+    return PartChunkCipher.isChunkedFormat(file);
+  }
+
+  public ChunkedDecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    if (!PartChunkCipher.isChunkedFormat(file)) {
+      throw new FileNotFoundException("Not a chunked part file!");
+    }
+
+    long bodyLength = file.length() - PartChunkCipher.HEADER_LENGTH;
+
+    if (bodyLength <= 0) {
+      throw new FileNotFoundException("Part has no chunks!");
+    }
+
+    this.chunkCount      = (int)((bodyLength + PartChunkCipher.FULL_CHUNK_LENGTH - 1) / PartChunkCipher.FULL_CHUNK_LENGTH);
+    this.lastChunkLength = (int)(bodyLength - (long)(chunkCount - 1) * PartChunkCipher.FULL_CHUNK_LENGTH);
+    this.file            = new RandomAccessFile(file, "r");
+
+    try {
+      byte[] nonce = new byte[PartChunkCipher.NONCE_LENGTH];
+
+      this.file.seek(PartChunkCipher.HEADER_LENGTH - PartChunkCipher.NONCE_LENGTH);
+      this.file.readFully(nonce);
+
+      this.cipher = new PartChunkCipher(masterSecret, nonce);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      close();
+      throw new FileNotFoundException("IOException while reading header!");
+    }
+  }
+
+  /**
+   * @return the length of the decrypted part.  Only the last chunk has
+   *         to be decrypted to find it.
+   */
+  public long getLength() throws IOException {
+    if (length == -1) {
+      long savedPosition = position;
+
+      loadChunk(chunkCount - 1);
+      length   = (long)(chunkCount - 1) * PartChunkCipher.CHUNK_SIZE + loadedLength;
+      position = savedPosition;
+    }
+
+    return length;
+  }
+
+  public void seek(long position) throws IOException {
+    if (position < 0) throw new IOException("Negative seek: " + position);
+    this.position = Math.min(position, getLength());
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+
+    int chunk = (int)(position / PartChunkCipher.CHUNK_SIZE);
+
+    if (chunk >= chunkCount) return -1;
+
+    loadChunk(chunk);
+
+    int chunkOffset = (int)(position % PartChunkCipher.CHUNK_SIZE);
+
+    if (chunkOffset >= loadedLength) return -1;
+
+    int read = Math.min(length, loadedLength - chunkOffset);
+
+    System.arraycopy(plaintext, chunkOffset, buffer, offset, read);
+    position += read;
+
+    return read;
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+
+    long start = position;
+    seek(position + byteCount);
+
+    return position - start;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int)Math.min(Integer.MAX_VALUE, getLength() - position);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    mark = position;
+  }
+
+  @Override
+  public synchronized void reset() {
+    position = mark;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private void loadChunk(int chunk) throws IOException {
+    if (chunk == loadedChunk) return;
+
+    boolean last         = chunk == chunkCount - 1;
+    int     sealedLength = last ? lastChunkLength : PartChunkCipher.FULL_CHUNK_LENGTH;
+
+    file.seek(PartChunkCipher.HEADER_LENGTH + (long)chunk * PartChunkCipher.FULL_CHUNK_LENGTH);
+    file.readFully(sealed, 0, sealedLength);
+
+    loadedChunk  = -1;
+    loadedLength = cipher.open(chunk, last, sealed, sealedLength, plaintext);
+    loadedChunk  = chunk;
+
+    if (!last && loadedLength != PartChunkCipher.CHUNK_SIZE) {
+      loadedChunk = -1;
+      throw new IOException("Short chunk: " + chunk);
+    }
+  }
+}
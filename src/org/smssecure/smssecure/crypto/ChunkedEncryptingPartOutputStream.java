@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.crypto;
+
+import org.smssecure.smssecure.util.Util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Streams an MMS part to disk in the chunked format described in
+ * {@link PartChunkCipher}.
+ *
+ * Plaintext is buffered until a full chunk is available, and the final
+ * (possibly empty) chunk is sealed when the stream is closed.
+ */
+public class ChunkedEncryptingPartOutputStream extends FileOutputStream {
+
+  private final PartChunkCipher cipher;
+  private final byte[]          plaintext = new byte[PartChunkCipher.CHUNK_SIZE];
+  private final byte[]          sealed    = new byte[PartChunkCipher.FULL_CHUNK_LENGTH];
+
+  private int     buffered;
+  private int     chunkIndex;
+  private boolean closed;
+
+  public ChunkedEncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    super(file);
+
+    byte[] nonce = new byte[PartChunkCipher.NONCE_LENGTH];
+    Util.getSecureRandom().nextBytes(nonce);
+
+    this.cipher = new PartChunkCipher(masterSecret, nonce);
+
+    try {
+      super.write(PartChunkCipher.createHeader(nonce), 0, PartChunkCipher.HEADER_LENGTH);
+    } catch (IOException e) {
+      throw new FileNotFoundException("Couldn't write header: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (closed) throw new IOException("Stream closed");
+
+    while (length > 0) {
+      // A full buffer is only sealed once more data arrives, so that the
+      // last chunk is always known to be last when it's written.
+      if (buffered == plaintext.length) {
+        writeChunk(false);
+      }
+
+      int copy = Math.min(length, plaintext.length - buffered);
+      System.arraycopy(buffer, offset, plaintext, buffered, copy);
+
+      buffered += copy;
+      offset   += copy;
+      length   -= copy;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      writeChunk(true);
+      closed = true;
+    }
+
+    super.close();
+  }
+
+  private void writeChunk(boolean last) throws IOException {
+    int sealedLength = cipher.seal(chunkIndex++, last, plaintext, 0, buffered, sealed);
+
+    super.write(sealed, 0, sealedLength);
+    buffered = 0;
+  }
+}
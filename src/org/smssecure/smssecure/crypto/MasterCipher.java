@@ -26,19 +26,6 @@ import org.whispersystems.libaxolotl.ecc.Curve;
 import org.whispersystems.libaxolotl.ecc.ECPrivateKey;
 
 import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Class that handles encryption for local storage.
@@ -49,25 +36,18 @@ import javax.crypto.spec.SecretKeySpec;
  * 2) AES-CBC(plaintext)
  * 3) HMAC-SHA1 of 1 and 2
  *
+ * The actual work is done by a shared, thread-safe {@link MasterCipherEngine},
+ * so instances are cheap to create and safe to share across threads.
+ *
  * @author Moxie Marlinspike
  */
 
 public class MasterCipher {
 
-  private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
+  private final MasterCipherEngine engine;
 
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
-    }
+    this.engine = MasterCipherEngine.getInstance(masterSecret);
   }
 
   public byte[] encryptKey(ECPrivateKey privateKey) {
@@ -93,50 +73,34 @@ public class MasterCipher {
   }
 
   public byte[] decryptBytes(byte[] decodedBody) throws InvalidMessageException {
-    try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
-
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
+    return engine.decrypt(decodedBody, 0, decodedBody.length);
+  }
 
-      return encrypted;
-    } catch (GeneralSecurityException ge) {
-      throw new InvalidMessageException(ge);
-    }
+  public int decryptBytes(byte[] decodedBody, int offset, int length, byte[] output, int outputOffset)
+      throws InvalidMessageException
+  {
+    return engine.decrypt(decodedBody, offset, length, output, outputOffset);
   }
 
   public byte[] encryptBytes(byte[] body) {
-    try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
-
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
-
-      return encryptedAndMacBody;
-    } catch (GeneralSecurityException ge) {
-      Log.w("bodycipher", ge);
-      return null;
-    }
+    return engine.encrypt(body);
+  }
 
+  public int encryptBytes(byte[] body, int offset, int length, byte[] output, int outputOffset) {
+    return engine.encrypt(body, offset, length, output, outputOffset);
   }
 
   public boolean verifyMacFor(String content, byte[] theirMac) {
     byte[] ourMac = getMacFor(content);
     Log.w("MasterCipher", "Our Mac: " + Hex.toString(ourMac));
     Log.w("MasterCipher", "Thr Mac: " + Hex.toString(theirMac));
-    return Arrays.equals(ourMac, theirMac);
+    return ourMac.length == theirMac.length &&
+           MasterCipherEngine.isEqual(ourMac, 0, theirMac, 0, ourMac.length);
   }
 
   public byte[] getMacFor(String content) {
     Log.w("MasterCipher", "Macing: " + content);
-    try {
-      Mac mac = getMac(masterSecret.getMacKey());
-      return mac.doFinal(content.getBytes());
-    } catch (GeneralSecurityException ike) {
-      throw new AssertionError(ike);
-    }
+    return engine.getMacFor(content.getBytes());
   }
 
   private byte[] decodeAndDecryptBytes(String body) throws InvalidMessageException {
@@ -153,66 +117,4 @@ public class MasterCipher {
     return Base64.encodeBytes(encryptedAndMacBody);
   }
 
-  private byte[] verifyMacBody(Mac hmac, byte[] encryptedAndMac) throws InvalidMessageException {
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
-
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
-
-    byte[] localMac  = hmac.doFinal(encrypted);
-
-    if (!Arrays.equals(remoteMac, localMac))
-      throw new InvalidMessageException("MAC doesen't match.");
-
-    return encrypted;
-  }
-
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
-  }
-
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
-
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
-
-    return ivAndBody;
-  }
-
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
-
-    return hmac;
-  }
-
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
-
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
-
-    return encryptedAndMac;
-  }
-
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
-
-    return decryptingCipher;
-  }
-
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
-
-    return encryptingCipher;
-  }
-
 }
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.crypto;
+
+import org.smssecure.smssecure.util.Util;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A thread-safe implementation of the local storage format described
+ * in {@link MasterCipher}:
+ *
+ * 1) 16 byte random IV.
+ * 2) AES-CBC(plaintext)
+ * 3) HMAC-SHA1 of 1 and 2
+ *
+ * Engines are shared per {@link MasterSecret}, and each thread that uses
+ * an engine gets its own lazily created Cipher/Mac pair, so no state is
+ * re-created or re-keyed for every message.  The offset/length variants
+ * work directly on caller supplied buffers and don't allocate.
+ */
+public class MasterCipherEngine {
+
+  public static final int IV_LENGTH  = 16;
+  public static final int MAC_LENGTH = 20;
+
+  private static final int BLOCK_SIZE = 16;
+
+  private static final Map<MasterSecret, MasterCipherEngine> engines = new WeakHashMap<>();
+
+  private final SecretKeySpec encryptionKey;
+  private final SecretKeySpec macKey;
+  private final SecureRandom  random;
+
+  private final ThreadLocal<CipherState> cipherState = new ThreadLocal<CipherState>() {
+    @Override
+    protected CipherState initialValue() {
+      return new CipherState(macKey);
+    }
+  };
+
+  public static MasterCipherEngine getInstance(MasterSecret masterSecret) {
+    synchronized (engines) {
+      MasterCipherEngine engine = engines.get(masterSecret);
+
+      if (engine == null) {
+        engine = new MasterCipherEngine(masterSecret.getEncryptionKey(), masterSecret.getMacKey());
+        engines.put(masterSecret, engine);
+      }
+
+      return engine;
+    }
+  }
+
+  private MasterCipherEngine(SecretKeySpec encryptionKey, SecretKeySpec macKey) {
+    this.encryptionKey = encryptionKey;
+    this.macKey        = macKey;
+    this.random        = Util.getSecureRandom();
+  }
+
+  public static int getEncryptedLength(int plaintextLength) {
+    return IV_LENGTH + ((plaintextLength / BLOCK_SIZE) + 1) * BLOCK_SIZE + MAC_LENGTH;
+  }
+
+  public static int getMaxDecryptedLength(int encryptedLength) {
+    return Math.max(0, encryptedLength - IV_LENGTH - MAC_LENGTH);
+  }
+
+  public byte[] encrypt(byte[] plaintext) {
+    byte[] output = new byte[getEncryptedLength(plaintext.length)];
+    int    length = encrypt(plaintext, 0, plaintext.length, output, 0);
+
+    if (length == output.length) return output;
+
+    byte[] trimmed = new byte[length];
+    System.arraycopy(output, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  /**
+   * Encrypts plaintext[offset..offset+length) into output at outputOffset, which must have
+   * room for {@link #getEncryptedLength(int)} bytes.
+   *
+   * @return the number of bytes written.
+   */
+  public int encrypt(byte[] plaintext, int offset, int length, byte[] output, int outputOffset) {
+    CipherState state = cipherState.get();
+
+    try {
+      random.nextBytes(state.iv);
+      state.encryptingCipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(state.iv));
+      System.arraycopy(state.iv, 0, output, outputOffset, IV_LENGTH);
+
+      int encryptedLength = state.encryptingCipher.doFinal(plaintext, offset, length,
+                                                           output, outputOffset + IV_LENGTH);
+
+      state.hmac.update(output, outputOffset, IV_LENGTH + encryptedLength);
+      state.hmac.doFinal(output, outputOffset + IV_LENGTH + encryptedLength);
+
+      return IV_LENGTH + encryptedLength + MAC_LENGTH;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public byte[] decrypt(byte[] encrypted, int offset, int length) throws InvalidMessageException {
+    byte[] output    = new byte[getMaxDecryptedLength(length)];
+    int    decrypted = decrypt(encrypted, offset, length, output, 0);
+
+    if (decrypted == output.length) return output;
+
+    byte[] trimmed = new byte[decrypted];
+    System.arraycopy(output, 0, trimmed, 0, decrypted);
+    return trimmed;
+  }
+
+  /**
+   * Verifies and decrypts encrypted[offset..offset+length) into output at outputOffset, which
+   * must have room for {@link #getMaxDecryptedLength(int)} bytes.
+   *
+   * @return the number of plaintext bytes written.
+   */
+  public int decrypt(byte[] encrypted, int offset, int length, byte[] output, int outputOffset)
+      throws InvalidMessageException
+  {
+    if (length < IV_LENGTH + BLOCK_SIZE + MAC_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
+
+    CipherState state      = cipherState.get();
+    int         bodyLength = length - MAC_LENGTH;
+
+    try {
+      state.hmac.update(encrypted, offset, bodyLength);
+      state.hmac.doFinal(state.mac, 0);
+
+      if (!isEqual(state.mac, 0, encrypted, offset + bodyLength, MAC_LENGTH)) {
+        throw new InvalidMessageException("MAC doesen't match.");
+      }
+
+      state.decryptingCipher.init(Cipher.DECRYPT_MODE, encryptionKey,
+                                  new IvParameterSpec(encrypted, offset, IV_LENGTH));
+
+      return state.decryptingCipher.doFinal(encrypted, offset + IV_LENGTH, bodyLength - IV_LENGTH,
+                                            output, outputOffset);
+    } catch (GeneralSecurityException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  public byte[] getMacFor(byte[] content) {
+    return cipherState.get().hmac.doFinal(content);
+  }
+
+  public static boolean isEqual(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    int result = 0;
+
+    for (int i=0;i<length;i++) {
+      result |= a[aOffset + i] ^ b[bOffset + i];
+    }
+
+    return result == 0;
+  }
+
+  private static class CipherState {
+    private final Cipher encryptingCipher;
+    private final Cipher decryptingCipher;
+    private final Mac    hmac;
+    private final byte[] iv  = new byte[IV_LENGTH];
+    private final byte[] mac = new byte[MAC_LENGTH];
+
+    public CipherState(SecretKeySpec macKey) {
+      try {
+        this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.hmac             = Mac.getInstance("HmacSHA1");
+
+        this.hmac.init(macKey);
+      } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
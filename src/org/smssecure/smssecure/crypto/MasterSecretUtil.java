@@ -22,6 +22,7 @@ import android.content.SharedPreferences;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.smssecure.smssecure.database.PersistentPlaintextCache;
 import org.smssecure.smssecure.util.Base64;
 import org.smssecure.smssecure.util.Util;
 import org.whispersystems.libaxolotl.InvalidKeyException;
@@ -80,6 +81,8 @@ public class MasterSecretUtil {
       save(context, "master_secret", encryptedAndMacdMasterSecret);
       save(context, "passphrase_initialized", true);
 
+      PersistentPlaintextCache.invalidate(context);
+
       return masterSecret;
     } catch (GeneralSecurityException gse) {
       throw new AssertionError(gse);
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.crypto;
+
+import android.util.Log;
+
+import org.smssecure.smssecure.util.Conversions;
+import org.smssecure.smssecure.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * The chunked encrypted part file format.
+ *
+ * A file starts with a header of MAGIC | VERSION | CHUNK_SIZE | NONCE,
+ * followed by the plaintext split into CHUNK_SIZE pieces that are each
+ * sealed independently:
+ *
+ * 1) 16 byte random IV.
+ * 2) AES-CBC(chunk)
+ * 3) HMAC-SHA1 of NONCE | CHUNK_INDEX | IS_LAST_CHUNK | 1 | 2
+ *
+ * Every chunk but the last one has the same length on disk, so any
+ * plaintext offset maps directly to the chunk holding it.  Binding the
+ * file nonce, chunk index and last-chunk flag into the MAC prevents
+ * chunks from being moved between files, reordered, or truncated away.
+ */
+class PartChunkCipher {
+
+  private static final String TAG = PartChunkCipher.class.getSimpleName();
+
+  static final int MAGIC         = 0x53534350;
+  static final int VERSION       = 1;
+  static final int CHUNK_SIZE    = 32 * 1024;
+  static final int NONCE_LENGTH  = 16;
+  static final int HEADER_LENGTH = 4 + 4 + 4 + NONCE_LENGTH;
+
+  static final int IV_LENGTH         = 16;
+  static final int MAC_LENGTH        = 20;
+  static final int BLOCK_SIZE        = 16;
+  static final int FULL_CHUNK_LENGTH = getSealedLength(CHUNK_SIZE);
+
+  private final MasterSecret masterSecret;
+  private final byte[]       nonce;
+  private final Cipher       cipher;
+  private final Mac          mac;
+  private final SecureRandom random;
+  private final byte[]       iv            = new byte[IV_LENGTH];
+  private final byte[]       macScratch    = new byte[MAC_LENGTH];
+  private final byte[]       chunkMetadata = new byte[5];
+
+  PartChunkCipher(MasterSecret masterSecret, byte[] nonce) {
+    try {
+      this.masterSecret = masterSecret;
+      this.nonce        = nonce;
+      this.cipher       = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.mac          = Mac.getInstance("HmacSHA1");
+      this.random       = Util.getSecureRandom();
+
+      this.mac.init(masterSecret.getMacKey());
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static int getSealedLength(int plaintextLength) {
+    return IV_LENGTH + (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE + MAC_LENGTH;
+  }
+
+  /**
+   * @return true if the file starts with a chunked part header, false for
+   *         legacy single-stream part files.
+   */
+  static boolean isChunkedFormat(File file) {
+    if (file.length() < HEADER_LENGTH) return false;
+
+    RandomAccessFile in = null;
+
+    try {
+      in = new RandomAccessFile(file, "r");
+
+      byte[] header = new byte[12];
+      in.readFully(header);
+
+      return Conversions.byteArrayToInt(header, 0) == MAGIC   &&
+             Conversions.byteArrayToInt(header, 4) == VERSION &&
+             Conversions.byteArrayToInt(header, 8) == CHUNK_SIZE;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      try {
+        if (in != null) in.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  static byte[] createHeader(byte[] nonce) {
+    byte[] header = new byte[HEADER_LENGTH];
+
+    Conversions.intToByteArray(header, 0, MAGIC);
+    Conversions.intToByteArray(header, 4, VERSION);
+    Conversions.intToByteArray(header, 8, CHUNK_SIZE);
+    System.arraycopy(nonce, 0, header, 12, NONCE_LENGTH);
+
+    return header;
+  }
+
+  int seal(int index, boolean last, byte[] in, int inOffset, int length, byte[] out) {
+    try {
+      random.nextBytes(iv);
+      cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(iv));
+
+      System.arraycopy(iv, 0, out, 0, IV_LENGTH);
+
+      int ciphertextLength = cipher.doFinal(in, inOffset, length, out, IV_LENGTH);
+
+      calculateMac(index, last, out, IV_LENGTH + ciphertextLength, out, IV_LENGTH + ciphertextLength);
+
+      return IV_LENGTH + ciphertextLength + MAC_LENGTH;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  int open(int index, boolean last, byte[] in, int length, byte[] out) throws IOException {
+    if (length < IV_LENGTH + BLOCK_SIZE + MAC_LENGTH || length > FULL_CHUNK_LENGTH) {
+      throw new IOException("Bad chunk length: " + length);
+    }
+
+    int sealedLength = length - MAC_LENGTH;
+
+    calculateMac(index, last, in, sealedLength, macScratch, 0);
+
+    if (!MasterCipherEngine.isEqual(macScratch, 0, in, sealedLength, MAC_LENGTH)) {
+      throw new IOException("MAC doesn't match! Potential tampering?");
+    }
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(),
+                  new IvParameterSpec(in, 0, IV_LENGTH));
+
+      return cipher.doFinal(in, IV_LENGTH, sealedLength - IV_LENGTH, out, 0);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void calculateMac(int index, boolean last, byte[] sealed, int sealedLength,
+                            byte[] out, int outOffset)
+  {
+    try {
+      Conversions.intToByteArray(chunkMetadata, 0, index);
+      chunkMetadata[4] = (byte)(last ? 1 : 0);
+
+      mac.update(nonce);
+      mac.update(chunkMetadata);
+      mac.update(sealed, 0, sealedLength);
+      mac.doFinal(out, outOffset);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
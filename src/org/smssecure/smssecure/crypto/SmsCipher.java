@@ -10,9 +10,13 @@ import org.smssecure.smssecure.sms.IncomingEncryptedMessage;
 import org.smssecure.smssecure.sms.IncomingKeyExchangeMessage;
 import org.smssecure.smssecure.sms.IncomingPreKeyBundleMessage;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
+import org.smssecure.smssecure.sms.OutgoingEncryptedMessage;
 import org.smssecure.smssecure.sms.OutgoingKeyExchangeMessage;
 import org.smssecure.smssecure.sms.OutgoingPrekeyBundleMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
+import org.smssecure.smssecure.sms.SecureSmsCapabilities;
+import org.smssecure.smssecure.sms.SmsCompression;
+import org.smssecure.smssecure.sms.SmsTransportCodec;
 import org.smssecure.smssecure.sms.SmsTransportDetails;
 import org.whispersystems.libaxolotl.AxolotlAddress;
 import org.whispersystems.libaxolotl.DuplicateMessageException;
@@ -54,10 +58,15 @@ public class SmsCipher {
       WhisperMessage whisperMessage = new WhisperMessage(decoded);
       SessionCipher  sessionCipher  = new SessionCipher(axolotlStore, new AxolotlAddress(message.getSender(), TextSecureAddress.DEFAULT_DEVICE_ID));
       byte[]         padded         = sessionCipher.decrypt(whisperMessage);
-      byte[]         plaintext      = transportDetails.getStrippedPaddingMessageBody(padded);
+      byte[]         plaintext      = transportDetails.getMessageBody(padded);
+
+      int            capabilities   = transportDetails.getAdvertisedCapabilities(padded);
 
       if (message.isEndSession() && "TERMINATE".equals(new String(plaintext))) {
         axolotlStore.deleteSession(new AxolotlAddress(message.getSender(), TextSecureAddress.DEFAULT_DEVICE_ID));
+        SecureSmsCapabilities.reset(context, message.getSender());
+      } else if (capabilities != 0) {
+        SecureSmsCapabilities.set(context, message.getSender(), capabilities);
       }
 
       return message.withMessageBody(new String(plaintext));
@@ -75,7 +84,9 @@ public class SmsCipher {
       PreKeyWhisperMessage preKeyMessage = new PreKeyWhisperMessage(decoded);
       SessionCipher        sessionCipher = new SessionCipher(axolotlStore, new AxolotlAddress(message.getSender(), TextSecureAddress.DEFAULT_DEVICE_ID));
       byte[]               padded        = sessionCipher.decrypt(preKeyMessage);
-      byte[]               plaintext     = transportDetails.getStrippedPaddingMessageBody(padded);
+      byte[]               plaintext     = transportDetails.getMessageBody(padded);
+
+      SecureSmsCapabilities.set(context, message.getSender(), transportDetails.getAdvertisedCapabilities(padded));
 
       return new IncomingEncryptedMessage(message, new String(plaintext));
     } catch (IOException | InvalidKeyException | InvalidKeyIdException e) {
@@ -83,20 +94,34 @@ public class SmsCipher {
     }
   }
 
-  public OutgoingTextMessage encrypt(OutgoingTextMessage message) throws NoSessionException {
-    byte[] paddedBody      = transportDetails.getPaddedMessageBody(message.getMessageBody().getBytes());
-    String recipientNumber = message.getRecipients().getPrimaryRecipient().getNumber();
+  public OutgoingTextMessage encrypt(Context context, OutgoingTextMessage message) throws NoSessionException {
+    byte[]         body            = message.getMessageBody().getBytes();
+    String         recipientNumber = message.getRecipients().getPrimaryRecipient().getNumber();
+    AxolotlAddress axolotlAddress  = new AxolotlAddress(recipientNumber, TextSecureAddress.DEFAULT_DEVICE_ID);
 
-    if (!axolotlStore.containsSession(new AxolotlAddress(recipientNumber, TextSecureAddress.DEFAULT_DEVICE_ID))) {
+    if (!axolotlStore.containsSession(axolotlAddress)) {
       throw new NoSessionException("No session for: " + recipientNumber);
     }
 
-    SessionCipher     cipher            = new SessionCipher(axolotlStore, new AxolotlAddress(recipientNumber, TextSecureAddress.DEFAULT_DEVICE_ID));
+    int                 capabilities     = SecureSmsCapabilities.get(context, recipientNumber);
+    SmsTransportCodec   transportCodec   = getTransportCodec(message, axolotlAddress, capabilities);
+    SmsTransportDetails transportDetails = new SmsTransportDetails(transportCodec);
+
+    if ((capabilities & SecureSmsCapabilities.COMPRESSION) != 0) {
+      byte[] compressed = SmsCompression.compress(body);
+      if (compressed != null) body = compressed;
+    }
+
+    byte[] paddedBody = transportDetails.getPaddedMessageBody(body);
+
+    SessionCipher     cipher            = new SessionCipher(axolotlStore, axolotlAddress);
     CiphertextMessage ciphertextMessage = cipher.encrypt(paddedBody);
     String            encodedCiphertext = new String(transportDetails.getEncodedMessage(ciphertextMessage.serialize()));
 
     if (ciphertextMessage.getType() == CiphertextMessage.PREKEY_TYPE) {
       return new OutgoingPrekeyBundleMessage(message, encodedCiphertext);
+    } else if (transportCodec != SmsTransportCodec.BASE64) {
+      return new OutgoingEncryptedMessage(message, encodedCiphertext, transportCodec);
     } else {
       return message.withBody(encodedCiphertext);
     }
@@ -114,6 +139,8 @@ public class SmsCipher {
 
       KeyExchangeMessage response        = sessionBuilder.process(exchangeMessage);
 
+      SecureSmsCapabilities.reset(context, message.getSender());
+
       if (response != null) {
         byte[] serializedResponse = transportDetails.getEncodedMessage(response.serialize());
         return new OutgoingKeyExchangeMessage(recipient, new String(serializedResponse));
@@ -125,4 +152,21 @@ public class SmsCipher {
     }
   }
 
+  /**
+   * Only regular secure messages have a wire prefix for the GSM-7 codec, so
+   * prekey bundles and session ends always travel as Base64.
+   */
+  private SmsTransportCodec getTransportCodec(OutgoingTextMessage message, AxolotlAddress axolotlAddress,
+                                              int capabilities)
+  {
+    if (message.isSecureMessage()                                 &&
+        (capabilities & SecureSmsCapabilities.GSM7_ENCODING) != 0 &&
+        !axolotlStore.loadSession(axolotlAddress).getSessionState().hasUnacknowledgedPreKeyMessage())
+    {
+      return SmsTransportCodec.GSM7;
+    }
+
+    return SmsTransportCodec.BASE64;
+  }
+
 }
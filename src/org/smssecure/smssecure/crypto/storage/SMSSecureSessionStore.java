@@ -21,54 +21,83 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.whispersystems.libaxolotl.state.StorageProtos.SessionStructure;
 
+/**
+ * Stores sessions as MasterCipher encrypted files, one per recipient device.
+ *
+ * Decrypted sessions are cached in memory in serialized form, so loads don't
+ * decrypt the file every time.  Stores are written through to the file before
+ * they return, since a session rolled back on disk could reuse message keys
+ * or lose its duplicate detection state.  The write only needs to reach the
+ * page cache to survive the process dying, so it isn't synced to storage.  Locks are striped by session, so
+ * messages for different recipients don't wait on each other.  An index of
+ * the session names that exist lets {@link #containsSession(AxolotlAddress)}
+ * answer for unknown recipients without touching the disk.
+ */
 public class SMSSecureSessionStore implements SessionStore {
 
   private static final String TAG                   = SMSSecureSessionStore.class.getSimpleName();
   private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
   private static final int CURRENT_VERSION        = 2;
 
+  private static final int LOCK_STRIPES = 32;
+
+  private static final Object[]            locks        = new Object[LOCK_STRIPES];
+  private static final Map<String, byte[]> sessionCache = new ConcurrentHashMap<>();
+
+  private static File        filesDirectory;
+  private static Set<String> sessionIndex;
+
+  static {
+    for (int i=0;i<locks.length;i++) {
+      locks[i] = new Object();
+    }
+  }
+
   private final Context      context;
   private final MasterSecret masterSecret;
 
   public SMSSecureSessionStore(Context context, MasterSecret masterSecret) {
     this.context      = context.getApplicationContext();
     this.masterSecret = masterSecret;
+
+    initializeFilesDirectory(this.context);
+  }
+
+  private static synchronized void initializeFilesDirectory(Context context) {
+    if (filesDirectory == null) filesDirectory = context.getFilesDir();
   }
 
   @Override
   public SessionRecord loadSession(AxolotlAddress address) {
-    synchronized (FILE_LOCK) {
+    String name = getSessionName(address);
+
+    synchronized (getLock(name)) {
       try {
-        MasterCipher    cipher = new MasterCipher(masterSecret);
-        FileInputStream in     = new FileInputStream(getSessionFile(address));
+        byte[] serialized = sessionCache.get(name);
 
-        int versionMarker  = readInteger(in);
+        if (serialized == null) {
+          if (!getSessionIndex().contains(name)) {
+            return new SessionRecord();
+          }
 
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
+          serialized = readSessionFile(name);
+          sessionCache.put(name, serialized);
         }
 
-        byte[] serialized = cipher.decryptBytes(readBlob(in));
-        in.close();
-
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker == ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
+        return new SessionRecord(serialized);
       } catch (InvalidMessageException | IOException e) {
         Log.w(TAG, "No existing session information found.");
         return new SessionRecord();
@@ -78,33 +107,38 @@ public class SMSSecureSessionStore implements SessionStore {
 
   @Override
   public void storeSession(AxolotlAddress address, SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher     masterCipher = new MasterCipher(masterSecret);
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
+    String name = getSessionName(address);
 
-        out.position(0);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(masterCipher.encryptBytes(record.serialize()), out);
-        out.truncate(out.position());
+    synchronized (getLock(name)) {
+      byte[] serialized = record.serialize();
 
-        sessionFile.close();
+      try {
+        writeSessionFile(name, masterSecret, serialized);
       } catch (IOException e) {
+        sessionCache.remove(name);
         throw new AssertionError(e);
       }
+
+      sessionCache.put(name, serialized);
+      getSessionIndex().add(name);
     }
   }
 
   @Override
   public boolean containsSession(AxolotlAddress address) {
-    return getSessionFile(address).exists() &&
+    return getSessionIndex().contains(getSessionName(address)) &&
            loadSession(address).getSessionState().hasSenderChain();
   }
 
   @Override
   public void deleteSession(AxolotlAddress address) {
-    getSessionFile(address).delete();
+    String name = getSessionName(address);
+
+    synchronized (getLock(name)) {
+      sessionCache.remove(name);
+      getSessionIndex().remove(name);
+      getSessionFile(name).delete();
+    }
   }
 
   @Override
@@ -122,10 +156,12 @@ public class SMSSecureSessionStore implements SessionStore {
   public List<Integer> getSubDeviceSessions(String name) {
     long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
     List<Integer> results     = new LinkedList<>();
-    File          parent      = getSessionDirectory();
-    String[]      children    = parent.list();
+    Set<String>   index       = getSessionIndex();
+    List<String>  children;
 
-    if (children == null) return results;
+    synchronized (index) {
+      children = new LinkedList<>(index);
+    }
 
     for (String child : children) {
       try {
@@ -143,12 +179,94 @@ public class SMSSecureSessionStore implements SessionStore {
     return results;
   }
 
-  private File getSessionFile(AxolotlAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
+  /**
+   * Forgets all cached state, for when the session files have been replaced
+   * underneath the store.
+   */
+  public static void invalidate() {
+    synchronized (SMSSecureSessionStore.class) {
+      sessionIndex = null;
+    }
+
+    sessionCache.clear();
+  }
+
+  /**
+   * Drops the decrypted cache, for when the MasterSecret is cleared from
+   * memory.
+   */
+  public static void clearCache() {
+    sessionCache.clear();
+  }
+
+  private byte[] readSessionFile(String name) throws IOException, InvalidMessageException {
+    MasterCipher    cipher = new MasterCipher(masterSecret);
+    FileInputStream in     = new FileInputStream(getSessionFile(name));
+
+    try {
+      int versionMarker = readInteger(in);
+
+      if (versionMarker > CURRENT_VERSION) {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+
+      byte[] serialized = cipher.decryptBytes(readBlob(in));
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        return new SessionRecord(sessionState).serialize();
+      } else if (versionMarker == ARCHIVE_STATES_VERSION) {
+        return serialized;
+      } else {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeSessionFile(String name, MasterSecret masterSecret, byte[] serialized)
+      throws IOException
+  {
+    MasterCipher     masterCipher = new MasterCipher(masterSecret);
+    RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(name), "rw");
+
+    try {
+      FileChannel out = sessionFile.getChannel();
+
+      out.position(0);
+      writeInteger(CURRENT_VERSION, out);
+      writeBlob(masterCipher.encryptBytes(serialized), out);
+      out.truncate(out.position());
+    } finally {
+      sessionFile.close();
+    }
+  }
+
+  private static Object getLock(String name) {
+    return locks[(name.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+  }
+
+  private static synchronized Set<String> getSessionIndex() {
+    if (sessionIndex == null) {
+      String[]    children = getSessionDirectory().list();
+      Set<String> index    = new HashSet<>();
+
+      if (children != null) Collections.addAll(index, children);
+
+      sessionIndex = Collections.synchronizedSet(index);
+    }
+
+    return sessionIndex;
+  }
+
+  private static File getSessionFile(String name) {
+    return new File(getSessionDirectory(), name);
   }
 
-  private File getSessionDirectory() {
-    File directory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
+  private static File getSessionDirectory() {
+    File directory = new File(filesDirectory, SESSIONS_DIRECTORY_V2);
 
     if (!directory.exists()) {
       if (!directory.mkdirs()) {
@@ -168,7 +286,7 @@ public class SMSSecureSessionStore implements SessionStore {
     return recipientId + (deviceId == TextSecureAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
   }
 
-  private byte[] readBlob(FileInputStream in) throws IOException {
+  private static byte[] readBlob(FileInputStream in) throws IOException {
     int length       = readInteger(in);
     byte[] blobBytes = new byte[length];
 
@@ -176,18 +294,18 @@ public class SMSSecureSessionStore implements SessionStore {
     return blobBytes;
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
+  private static void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
     writeInteger(blobBytes.length, out);
     out.write(ByteBuffer.wrap(blobBytes));
   }
 
-  private int readInteger(FileInputStream in) throws IOException {
+  private static int readInteger(FileInputStream in) throws IOException {
     byte[] integer = new byte[4];
     in.read(integer, 0, integer.length);
     return Conversions.byteArrayToInt(integer);
   }
 
-  private void writeInteger(int value, FileChannel out) throws IOException {
+  private static void writeInteger(int value, FileChannel out) throws IOException {
     byte[] valueBytes = Conversions.intToByteArray(value);
     out.write(ByteBuffer.wrap(valueBytes));
   }
@@ -33,6 +33,7 @@ import org.smssecure.smssecure.crypto.MasterSecretUtil;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.util.Base64;
 import org.smssecure.smssecure.util.Util;
+import org.smssecure.smssecure.util.VisibleForTesting;
 import org.whispersystems.libaxolotl.IdentityKey;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
@@ -59,7 +60,10 @@ public class DatabaseFactory {
   private static final int INTRODUCED_PART_DATA_SIZE_VERSION  = 14;
   private static final int INTRODUCED_THUMBNAILS_VERSION      = 15;
   private static final int INTRODUCED_IDENTITY_COLUMN_VERSION = 16;
-  private static final int DATABASE_VERSION                   = 16;
+  private static final int INTRODUCED_THREAD_DATE_INDEX       = 17;
+  private static final int INTRODUCED_SEARCH_INDEX_VERSION    = 19;
+  private static final int INTRODUCED_GROUP_MEMBERS_VERSION   = 20;
+  private static final int DATABASE_VERSION                   = 20;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -79,6 +83,7 @@ public class DatabaseFactory {
   private final IdentityDatabase identityDatabase;
   private final DraftDatabase draftDatabase;
   private final GroupDatabase groupDatabase;
+  private final SearchIndexDatabase searchIndexDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -133,6 +138,10 @@ public class DatabaseFactory {
     return getInstance(context).groupDatabase;
   }
 
+  public static SearchIndexDatabase getSearchIndexDatabase(Context context) {
+    return getInstance(context).searchIndexDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms              = new SmsDatabase(context, databaseHelper);
@@ -146,6 +155,7 @@ public class DatabaseFactory {
     this.identityDatabase = new IdentityDatabase(context, databaseHelper);
     this.draftDatabase    = new DraftDatabase(context, databaseHelper);
     this.groupDatabase    = new GroupDatabase(context, databaseHelper);
+    this.searchIndexDatabase = new SearchIndexDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -162,6 +172,7 @@ public class DatabaseFactory {
     this.identityDatabase.reset(databaseHelper);
     this.draftDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
+    this.searchIndexDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -454,10 +465,14 @@ public class DatabaseFactory {
     MessageNotifier.updateNotification(context, masterSecret);
   }
 
-  private static class DatabaseHelper extends SQLiteOpenHelper {
+  @VisibleForTesting
+  static class DatabaseHelper extends SQLiteOpenHelper {
+
+    private final Context context;
 
     public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
       super(context, name, factory, version);
+      this.context = context.getApplicationContext();
     }
 
     @Override
@@ -470,6 +485,8 @@ public class DatabaseFactory {
       db.execSQL(IdentityDatabase.CREATE_TABLE);
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(GroupDatabase.CREATE_MEMBERS_TABLE);
+      executeStatements(db, SearchIndexDatabase.CREATE_TABLES);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -478,6 +495,7 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, SearchIndexDatabase.CREATE_INDEXS);
     }
 
     @Override
@@ -695,6 +713,46 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE mms ADD COLUMN network_failures TEXT");
       }
 
+      if (oldVersion < INTRODUCED_THREAD_DATE_INDEX) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_thread_date_index ON sms (thread_id, date);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_thread_date_index ON mms (thread_id, date_received);");
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE search_tokens (_id INTEGER PRIMARY KEY, hash INTEGER UNIQUE);");
+        db.execSQL("CREATE TABLE search_postings (_id INTEGER PRIMARY KEY, token_id INTEGER, first_date INTEGER, count INTEGER, postings BLOB);");
+        db.execSQL("CREATE TABLE search_documents (_id INTEGER PRIMARY KEY, thread_id INTEGER, date INTEGER, tokens BLOB);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS search_postings_token_date_index ON search_postings (token_id, first_date);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS search_documents_thread_date_index ON search_documents (thread_id, date);");
+      }
+
+      if (oldVersion < INTRODUCED_GROUP_MEMBERS_VERSION) {
+        db.execSQL("CREATE TABLE group_members (_id INTEGER PRIMARY KEY, group_id TEXT, address_id INTEGER, address TEXT, " +
+                   "UNIQUE (group_id, address_id) ON CONFLICT IGNORE);");
+
+        CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
+        Cursor                   cursor          = db.query("groups", new String[] {"group_id", "members"},
+                                                            null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          String groupId = cursor.getString(0);
+
+          for (String member : Util.split(cursor.getString(1), ",")) {
+            if (TextUtils.isEmpty(member)) continue;
+
+            ContentValues values = new ContentValues(3);
+            values.put("group_id", groupId);
+            values.put("address_id", addressDatabase.getCanonicalAddressId(member));
+            values.put("address", member);
+
+            db.insert("group_members", null, values);
+          }
+        }
+
+        if (cursor != null)
+          cursor.close();
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -20,6 +20,8 @@ import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
+import org.smssecure.smssecure.crypto.storage.SMSSecureSessionStore;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -36,6 +38,7 @@ public class EncryptedBackupExporter {
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
     importDirectory(context, "");
+    SMSSecureSessionStore.invalidate();
   }
 
   private static String getExportDirectoryPath() {
@@ -62,19 +65,43 @@ public class EncryptedBackupExporter {
 
   private static void migrateFile(File from, File to) {
     try {
-      if (from.exists()) {
+      if (from.exists() && !isCopied(from, to)) {
         FileChannel source      = new FileInputStream(from).getChannel();
         FileChannel destination = new FileOutputStream(to).getChannel();
 
-        destination.transferFrom(source, 0, source.size());
-        source.close();
-        destination.close();
+        try {
+          long size     = source.size();
+          long position = 0;
+
+          while (position < size) {
+            long transferred = source.transferTo(position, size - position, destination);
+
+            if (transferred <= 0) throw new IOException("Copy of " + from + " stopped at " + position);
+            position += transferred;
+          }
+        } finally {
+          source.close();
+          destination.close();
+        }
+
+        to.setLastModified(from.lastModified());
       }
     } catch (IOException ioe) {
       Log.w("EncryptedBackupExporter", ioe);
     }
   }
 
+  /**
+   * A copy that completed carries the source's length and modification time,
+   * so files finished before an interrupted export are skipped when it is
+   * run again.
+   */
+  private static boolean isCopied(File from, File to) {
+    return to.exists()                          &&
+           to.length()       == from.length()   &&
+           to.lastModified() == from.lastModified();
+  }
+
   private static void exportDirectory(Context context, String directoryName) throws IOException {
     File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
     File exportDirectory = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
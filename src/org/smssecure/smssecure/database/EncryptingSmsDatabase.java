@@ -17,7 +17,9 @@
 package org.smssecure.smssecure.database;
 
 import android.content.Context;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 import android.util.Pair;
@@ -25,19 +27,20 @@ import android.util.Pair;
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.AsymmetricMasterCipher;
 import org.smssecure.smssecure.crypto.AsymmetricMasterSecret;
+import org.smssecure.smssecure.crypto.BatchMasterCipher;
 import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
-import org.smssecure.smssecure.util.LRUCache;
+import org.smssecure.smssecure.util.StripedLRUCache;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 
 import java.lang.ref.SoftReference;
-import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
@@ -63,26 +66,39 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   public long insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                   OutgoingTextMessage message, boolean forceSms)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
-    type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
+    long   type = Types.BASE_OUTBOX_TYPE;
+    String body = message.getMessageBody();
+    message     = message.withBody(getEncryptedBody(masterSecret, body));
+    type       |= Types.ENCRYPTION_SYMMETRIC_BIT;
 
-    return insertMessageOutbox(threadId, message, type, forceSms);
+    long messageId = insertMessageOutbox(threadId, message, type, forceSms);
+
+    DatabaseFactory.getSearchIndexDatabase(context).indexMessage(masterSecret, SearchIndexDatabase.SMS, messageId, body);
+    return messageId;
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
                                              IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE;
+    long   type = Types.BASE_INBOX_TYPE;
+    String body = message.getMessageBody();
 
     if (masterSecret == null && message.isSecureMessage()) {
       type |= Types.ENCRYPTION_REMOTE_BIT;
     } else {
       type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      message = message.withMessageBody(getEncryptedBody(masterSecret, body));
     }
 
-    return insertMessageInbox(message, type);
+    Pair<Long, Long> result = insertMessageInbox(message, type);
+
+    if (result != null && masterSecret != null && !message.isSecureMessage() &&
+        !message.isKeyExchange() && !message.isEndSession() && !message.isGroup())
+    {
+      DatabaseFactory.getSearchIndexDatabase(context).indexMessage(masterSecret, SearchIndexDatabase.SMS, result.first, body);
+    }
+
+    return result;
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -104,16 +120,18 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     String encryptedBody = getEncryptedBody(masterSecret, body);
     updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK,
                              Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT | Types.SECURE_MESSAGE_BIT);
+    DatabaseFactory.getSearchIndexDatabase(context).indexMessage(masterSecret, SearchIndexDatabase.SMS, messageId, body);
   }
 
   public void updateMessageBody(MasterSecret masterSecret, long messageId, String body) {
     String encryptedBody = getEncryptedBody(masterSecret, body);
     updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
                              Types.ENCRYPTION_SYMMETRIC_BIT);
+    DatabaseFactory.getSearchIndexDatabase(context).indexMessage(masterSecret, SearchIndexDatabase.SMS, messageId, body);
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
+  public Reader getMessagesAfter(MasterSecret masterSecret, long lastId, int limit) {
+    Cursor cursor = super.getMessagesAfter(lastId, limit);
     return new DecryptingReader(masterSecret, cursor);
   }
 
@@ -144,11 +162,17 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   public class DecryptingReader extends SmsDatabase.Reader {
 
-    private final MasterCipher masterCipher;
+    private final MasterSecret             masterSecret;
+    private final MasterCipher             masterCipher;
+    private final BatchMasterCipher        batchCipher;
+    private final PersistentPlaintextCache persistentCache;
 
     public DecryptingReader(MasterSecret masterSecret, Cursor cursor) {
       super(cursor);
-      this.masterCipher = new MasterCipher(masterSecret);
+      this.masterSecret    = masterSecret;
+      this.masterCipher    = new MasterCipher(masterSecret);
+      this.batchCipher     = new BatchMasterCipher(masterSecret);
+      this.persistentCache = PersistentPlaintextCache.getInstance(context);
     }
 
     @Override
@@ -164,12 +188,27 @@ public class EncryptingSmsDatabase extends SmsDatabase {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
           String plaintext = plaintextCache.get(ciphertext);
 
+          if (plaintext != null)
+            return new DisplayRecord.Body(plaintext, true);
+
+          long messageId = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+          plaintext      = persistentCache.get(masterSecret, messageId, ciphertext);
+
+          if (plaintext != null) {
+            plaintextCache.put(ciphertext, plaintext);
+            return new DisplayRecord.Body(plaintext, true);
+          }
+
+          prefetchBodies(cursor);
+          plaintext = plaintextCache.get(ciphertext);
+
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
           plaintext = masterCipher.decryptBody(ciphertext);
 
           plaintextCache.put(ciphertext, plaintext);
+          persistentCache.put(masterSecret, messageId, ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -179,12 +218,74 @@ public class EncryptingSmsDatabase extends SmsDatabase {
         return new DisplayRecord.Body(context.getString(R.string.EncryptingSmsDatabase_error_decrypting_message), true);
       }
     }
+
+    /**
+     * Decrypts the uncached bodies of the next rows, starting at the current one,
+     * in a single batch and adds them to the plaintext cache.  The rows are read
+     * straight from the cursor's window, so the caller's cursor is never moved
+     * and no other window is filled; cursors without a window aren't prefetched.
+     */
+    private void prefetchBodies(Cursor cursor) {
+      if (!(cursor instanceof AbstractWindowedCursor)) return;
+
+      CursorWindow window = ((AbstractWindowedCursor)cursor).getWindow();
+
+      if (window == null) return;
+
+      int          end             = window.getStartPosition() + window.getNumRows();
+      int          idColumn        = cursor.getColumnIndexOrThrow(SmsDatabase.ID);
+      int          typeColumn      = cursor.getColumnIndexOrThrow(SmsDatabase.TYPE);
+      int          bodyColumn      = cursor.getColumnIndexOrThrow(SmsDatabase.BODY);
+      int          transportColumn = cursor.getColumnIndex(MmsSmsDatabase.TRANSPORT);
+      List<String> ciphertexts     = new LinkedList<>();
+      List<Long>   messageIds      = new LinkedList<>();
+
+      for (int row=cursor.getPosition();row<end && ciphertexts.size() < BatchMasterCipher.DEFAULT_BATCH_SIZE;row++) {
+        if (transportColumn != -1 &&
+            !MmsSmsDatabase.SMS_TRANSPORT.equals(window.getString(row, transportColumn)))
+        {
+          continue;
+        }
+
+        String ciphertext = window.getString(row, bodyColumn);
+
+        if (ciphertext != null                                                   &&
+            SmsDatabase.Types.isSymmetricEncryption(window.getLong(row, typeColumn)) &&
+            plaintextCache.get(ciphertext) == null)
+        {
+          ciphertexts.add(ciphertext);
+          messageIds.add(window.getLong(row, idColumn));
+        }
+      }
+
+      if (ciphertexts.size() <= 1) return;
+
+      String[]       plaintexts = batchCipher.decryptBodies(ciphertexts);
+      Iterator<Long> ids        = messageIds.iterator();
+      int            index      = 0;
+
+      for (String ciphertext : ciphertexts) {
+        long messageId = ids.next();
+
+        if (plaintexts[index] != null) {
+          plaintextCache.put(ciphertext, plaintexts[index]);
+          persistentCache.put(masterSecret, messageId, ciphertext, plaintexts[index]);
+        }
+
+        index++;
+      }
+    }
   }
 
   private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
+    private static final long MAX_CACHE_WEIGHT = 2 * 1024 * 1024;
+    private static final StripedLRUCache<String, SoftReference<String>> decryptedBodyCache =
+        new StripedLRUCache<>(MAX_CACHE_WEIGHT, 16, new StripedLRUCache.Weigher<String, SoftReference<String>>() {
+          @Override
+          public int weigh(String ciphertext, SoftReference<String> plaintext) {
+            return StripedLRUCache.getStringWeight(ciphertext) + StripedLRUCache.getStringWeight(plaintext.get());
+          }
+        });
 
     public void put(String ciphertext, String plaintext) {
       decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Checkpoints of an export in progress: the last row exported from each
+ * table, how many rows had been written, and how long the output file was
+ * once that row was flushed.
+ *
+ * The manifest is replaced atomically on every save, so after a crash it
+ * always describes a prefix of the output that was fully written.
+ */
+class ExportManifest {
+
+  private static final String TAG = ExportManifest.class.getSimpleName();
+
+  private static final String LAST_ID_PREFIX = "last_id.";
+  private static final String OFFSET         = "offset";
+  private static final String COUNT          = "count";
+
+  private final File       file;
+  private final Properties properties = new Properties();
+
+  private ExportManifest(File file) {
+    this.file = file;
+  }
+
+  /**
+   * @return the manifest stored at file, or an empty one if there is none or
+   *         it can't be read.
+   */
+  static ExportManifest open(File file) {
+    ExportManifest manifest = new ExportManifest(file);
+
+    if (file.exists()) {
+      try {
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+          manifest.properties.load(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        Log.w(TAG, e);
+        manifest.properties.clear();
+      }
+    }
+
+    return manifest;
+  }
+
+  long getLastId(String table) {
+    return getLong(LAST_ID_PREFIX + table);
+  }
+
+  void setLastId(String table, long id) {
+    properties.setProperty(LAST_ID_PREFIX + table, String.valueOf(id));
+  }
+
+  long getOffset() {
+    return getLong(OFFSET);
+  }
+
+  void setOffset(long offset) {
+    properties.setProperty(OFFSET, String.valueOf(offset));
+  }
+
+  long getCount() {
+    return getLong(COUNT);
+  }
+
+  void setCount(long count) {
+    properties.setProperty(COUNT, String.valueOf(count));
+  }
+
+  void reset() {
+    properties.clear();
+  }
+
+  void save() throws IOException {
+    File             temporary = new File(file.getPath() + ".tmp");
+    FileOutputStream out       = new FileOutputStream(temporary);
+
+    try {
+      properties.store(out, null);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Failed to replace " + file.getAbsolutePath());
+    }
+  }
+
+  void delete() {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete " + file.getAbsolutePath());
+    }
+  }
+
+  private long getLong(String key) {
+    try {
+      return Long.parseLong(properties.getProperty(key, "0"));
+    } catch (NumberFormatException e) {
+      Log.w(TAG, e);
+      return 0;
+    }
+  }
+}
@@ -1,9 +1,11 @@
 package org.smssecure.smssecure.database;
 
 
+import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -16,15 +18,22 @@ import org.smssecure.smssecure.recipients.RecipientFormattingException;
 import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.util.BitmapUtil;
 import org.smssecure.smssecure.util.GroupUtil;
+import org.smssecure.smssecure.util.LRUCache;
 import org.smssecure.smssecure.util.SMSSecurePreferences;
-import org.smssecure.smssecure.util.Util;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class GroupDatabase extends Database {
 
@@ -59,12 +68,41 @@ public class GroupDatabase extends Database {
           TIMESTAMP + " INTEGER, " +
           ACTIVE + " INTEGER DEFAULT 1);";
 
+  private static final String MEMBERS_TABLE_NAME = "group_members";
+  private static final String ADDRESS_ID         = "address_id";
+  private static final String ADDRESS            = "address";
+
+  public static final String CREATE_MEMBERS_TABLE =
+      "CREATE TABLE " + MEMBERS_TABLE_NAME +
+          " (" + ID + " INTEGER PRIMARY KEY, " +
+          GROUP_ID + " TEXT, " +
+          ADDRESS_ID + " INTEGER, " +
+          ADDRESS + " TEXT, " +
+          "UNIQUE (" + GROUP_ID + ", " + ADDRESS_ID + ") ON CONFLICT IGNORE);";
+
   public static final String[] CREATE_INDEXS = {
       "CREATE UNIQUE INDEX IF NOT EXISTS group_id_index ON " + TABLE_NAME + " (" + GROUP_ID + ");",
   };
 
+  private static final int MAX_CACHED_GROUPS = 100;
+
+  private final Map<String, Members> memberCache = Collections.synchronizedMap(new LRUCache<String, Members>(MAX_CACHED_GROUPS));
+
   public GroupDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
+
+    context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        memberCache.clear();
+      }
+    }, new IntentFilter(DATABASE_UPDATE_ACTION));
+  }
+
+  @Override
+  public void reset(SQLiteOpenHelper databaseHelper) {
+    super.reset(databaseHelper);
+    memberCache.clear();
   }
 
   public GroupRecord getGroup(byte[] groupId) {
@@ -89,15 +127,14 @@ public class GroupDatabase extends Database {
 
   public Recipients getGroupMembers(byte[] groupId, boolean includeSelf) {
     String          localNumber = SMSSecurePreferences.getLocalNumber(context);
-    List<String>    members     = getCurrentMembers(groupId);
+    Members         members     = getCurrentMembers(GroupUtil.getEncodedId(groupId));
     List<Recipient> recipients  = new LinkedList<Recipient>();
 
-    for (String member : members) {
-      if (!includeSelf && member.equals(localNumber))
+    for (int i=0;i<members.addressIds.length;i++) {
+      if (!includeSelf && members.addresses.get(i).equals(localNumber))
         continue;
 
-      recipients.addAll(RecipientFactory.getRecipientsFromString(context, member, false)
-                                        .getRecipientsList());
+      recipients.add(RecipientFactory.getRecipientForId(context, members.addressIds[i], false));
     }
 
     return new Recipients(recipients);
@@ -106,10 +143,10 @@ public class GroupDatabase extends Database {
   public void create(byte[] groupId, String title, List<String> members,
                      TextSecureAttachmentPointer avatar, String relay)
   {
+    String        encodedId     = GroupUtil.getEncodedId(groupId);
     ContentValues contentValues = new ContentValues();
-    contentValues.put(GROUP_ID, GroupUtil.getEncodedId(groupId));
+    contentValues.put(GROUP_ID, encodedId);
     contentValues.put(TITLE, title);
-    contentValues.put(MEMBERS, Util.join(members, ","));
 
     if (avatar != null) {
       contentValues.put(AVATAR_ID, avatar.getId());
@@ -121,7 +158,19 @@ public class GroupDatabase extends Database {
     contentValues.put(TIMESTAMP, System.currentTimeMillis());
     contentValues.put(ACTIVE, 1);
 
-    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      db.insert(TABLE_NAME, null, contentValues);
+      insertMembers(db, encodedId, members);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    memberCache.remove(encodedId);
+    notifyDatabaseListeners();
   }
 
   public void update(byte[] groupId, String title, TextSecureAttachmentPointer avatar) {
@@ -167,40 +216,117 @@ public class GroupDatabase extends Database {
     notifyDatabaseListeners();
   }
 
+  /**
+   * Makes the given numbers the group's members, touching only the
+   * membership rows that actually change.  Members are compared by their
+   * canonical address id, so a number written differently than the one on
+   * record isn't churned out and back in.
+   */
   public void updateMembers(byte[] id, List<String> members) {
+    String                   encodedId       = GroupUtil.getEncodedId(id);
+    Members                  current         = getCurrentMembers(encodedId);
+    CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
+    Map<Long, String>        updated         = new LinkedHashMap<>();
+    Set<Long>                existing        = new HashSet<>();
+    SQLiteDatabase           db              = databaseHelper.getWritableDatabase();
+
+    for (String member : members) {
+      long addressId = addressDatabase.getCanonicalAddressId(member);
+      if (!updated.containsKey(addressId)) updated.put(addressId, member);
+    }
+
+    for (long addressId : current.addressIds) {
+      existing.add(addressId);
+    }
+
     ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, Util.join(members, ","));
     contents.put(ACTIVE, 1);
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {GroupUtil.getEncodedId(id)});
+    db.beginTransaction();
+
+    try {
+      db.update(TABLE_NAME, contents, GROUP_ID + " = ?", new String[] {encodedId});
+
+      for (Map.Entry<Long, String> member : updated.entrySet()) {
+        if (!existing.contains(member.getKey())) {
+          insertMember(db, encodedId, member.getKey(), member.getValue());
+        }
+      }
+
+      for (long addressId : existing) {
+        if (!updated.containsKey(addressId)) {
+          deleteMember(db, encodedId, addressId);
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    memberCache.remove(encodedId);
+    notifyDatabaseListeners();
   }
 
   public void remove(byte[] id, String source) {
-    List<String> currentMembers = getCurrentMembers(id);
-    currentMembers.remove(source);
+    String encodedId = GroupUtil.getEncodedId(id);
+    long   addressId = CanonicalAddressDatabase.getInstance(context).getCanonicalAddressId(source);
 
-    ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, Util.join(currentMembers, ","));
+    deleteMember(databaseHelper.getWritableDatabase(), encodedId, addressId);
+
+    memberCache.remove(encodedId);
+    notifyDatabaseListeners();
+  }
+
+  private void insertMembers(SQLiteDatabase db, String encodedId, Collection<String> members) {
+    if (members == null) return;
+
+    CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
+
+    for (String member : members) {
+      insertMember(db, encodedId, addressDatabase.getCanonicalAddressId(member), member);
+    }
+  }
+
+  private void insertMember(SQLiteDatabase db, String encodedId, long addressId, String address) {
+    ContentValues values = new ContentValues(3);
+    values.put(GROUP_ID, encodedId);
+    values.put(ADDRESS_ID, addressId);
+    values.put(ADDRESS, address);
+
+    db.insert(MEMBERS_TABLE_NAME, null, values);
+  }
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {GroupUtil.getEncodedId(id)});
+  private void deleteMember(SQLiteDatabase db, String encodedId, long addressId) {
+    db.delete(MEMBERS_TABLE_NAME, GROUP_ID + " = ? AND " + ADDRESS_ID + " = ?",
+              new String[] {encodedId, addressId + ""});
   }
 
-  private List<String> getCurrentMembers(byte[] id) {
+  private Members getCurrentMembers(String encodedId) {
+    Members members = memberCache.get(encodedId);
+
+    if (members != null) return members;
+
     Cursor cursor = null;
 
     try {
-      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {MEMBERS},
-                                                          GROUP_ID + " = ?",
-                                                          new String[] {GroupUtil.getEncodedId(id)},
-                                                          null, null, null);
+      cursor = databaseHelper.getReadableDatabase().query(MEMBERS_TABLE_NAME, new String[] {ADDRESS_ID, ADDRESS},
+                                                          GROUP_ID + " = ?", new String[] {encodedId},
+                                                          null, null, ID + " ASC");
+
+      int          count      = cursor == null ? 0 : cursor.getCount();
+      List<String> addresses  = new ArrayList<>(count);
+      long[]       addressIds = new long[count];
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return Util.split(cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS)), ",");
+      while (cursor != null && cursor.moveToNext()) {
+        addressIds[addresses.size()] = cursor.getLong(0);
+        addresses.add(cursor.getString(1));
       }
 
-      return new LinkedList<>();
+      members = new Members(Collections.unmodifiableList(addresses), addressIds);
+      memberCache.put(encodedId, members);
+
+      return members;
     } finally {
       if (cursor != null)
         cursor.close();
@@ -235,7 +361,7 @@ public class GroupDatabase extends Database {
     context.sendBroadcast(intent);
   }
 
-  public static class Reader {
+  public class Reader {
 
     private final Cursor cursor;
 
@@ -248,9 +374,11 @@ public class GroupDatabase extends Database {
         return null;
       }
 
-      return new GroupRecord(cursor.getString(cursor.getColumnIndexOrThrow(GROUP_ID)),
+      String encodedId = cursor.getString(cursor.getColumnIndexOrThrow(GROUP_ID));
+
+      return new GroupRecord(encodedId,
                              cursor.getString(cursor.getColumnIndexOrThrow(TITLE)),
-                             cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS)),
+                             getCurrentMembers(encodedId).addresses,
                              cursor.getBlob(cursor.getColumnIndexOrThrow(AVATAR)),
                              cursor.getLong(cursor.getColumnIndexOrThrow(AVATAR_ID)),
                              cursor.getBlob(cursor.getColumnIndexOrThrow(AVATAR_KEY)),
@@ -265,6 +393,16 @@ public class GroupDatabase extends Database {
     }
   }
 
+  private static class Members {
+    private final List<String> addresses;
+    private final long[]       addressIds;
+
+    Members(List<String> addresses, long[] addressIds) {
+      this.addresses  = addresses;
+      this.addressIds = addressIds;
+    }
+  }
+
   public static class GroupRecord {
 
     private final String       id;
@@ -277,13 +415,13 @@ public class GroupDatabase extends Database {
     private final String       relay;
     private final boolean      active;
 
-    public GroupRecord(String id, String title, String members, byte[] avatar,
+    public GroupRecord(String id, String title, List<String> members, byte[] avatar,
                        long avatarId, byte[] avatarKey, String avatarContentType,
                        String relay, boolean active)
     {
       this.id                = id;
       this.title             = title;
-      this.members           = Util.split(members, ",");
+      this.members           = members;
       this.avatar            = avatar;
       this.avatarId          = avatarId;
       this.avatarKey         = avatarKey;
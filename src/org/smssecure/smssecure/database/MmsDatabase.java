@@ -30,7 +30,6 @@ import android.util.Pair;
 
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 
-import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
@@ -42,7 +41,7 @@ import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.database.model.NotificationMmsMessageRecord;
-import org.smssecure.smssecure.jobs.TrimThreadJob;
+import org.smssecure.smssecure.jobs.TrimThreadScheduler;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
 import org.smssecure.smssecure.mms.OutgoingGroupMediaMessage;
 import org.smssecure.smssecure.mms.OutgoingMediaMessage;
@@ -58,11 +57,10 @@ import org.smssecure.smssecure.util.JsonUtils;
 import org.smssecure.smssecure.util.LRUCache;
 import org.smssecure.smssecure.util.ListenableFutureTask;
 import org.smssecure.smssecure.util.SMSSecurePreferences;
+import org.smssecure.smssecure.util.TaskScheduler;
 import org.smssecure.smssecure.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -74,7 +72,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.InvalidHeaderValueException;
@@ -87,9 +84,6 @@ import ws.com.google.android.mms.pdu.PduHeaders;
 import ws.com.google.android.mms.pdu.PduPart;
 import ws.com.google.android.mms.pdu.SendReq;
 
-import static org.smssecure.smssecure.util.Util.canonicalizeNumber;
-import static org.smssecure.smssecure.util.Util.canonicalizeNumberOrGroup;
-
 // XXXX Clean up MMS efficiency:
 // 1) We need to be careful about how much memory we're using for parts. SoftRefereences.
 // 2) How many queries do we make?  calling getMediaMessageForId() from within an existing query
@@ -150,7 +144,8 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS mms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
-    "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
+    "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
+    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -164,15 +159,11 @@ public class MmsDatabase extends MessagingDatabase {
       RECEIPT_COUNT, MISMATCHED_IDENTITIES, NETWORK_FAILURE
   };
 
-  public static final ExecutorService slideResolver = org.smssecure.smssecure.util.Util.newSingleThreadedLifoExecutor();
   private static final Map<Long, SoftReference<SlideDeck>> slideCache =
       Collections.synchronizedMap(new LRUCache<Long, SoftReference<SlideDeck>>(20));
 
-  private final JobManager jobManager;
-
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
-    this.jobManager = ApplicationContext.getInstance(context).getJobManager();
   }
 
   @Override
@@ -213,42 +204,52 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
-    SQLiteDatabase     database        = databaseHelper.getWritableDatabase();
-    Cursor             cursor          = null;
+  /**
+   * Counts delivery receipts against the outgoing messages they match.  The
+   * caller owns the transaction and notifies the updated threads.
+   *
+   * @param receipts canonical address ids of the receipt senders, keyed by sent timestamp.
+   * @param threadIds collects the threads of updated messages.
+   */
+  void incrementDeliveryReceiptCounts(Map<Long, List<Long>> receipts, Set<Long> threadIds) {
+    MmsAddressDatabase       addressDatabase   = DatabaseFactory.getMmsAddressDatabase(context);
+    CanonicalAddressDatabase canonicalDatabase = CanonicalAddressDatabase.getInstance(context);
+    SQLiteDatabase           database          = databaseHelper.getWritableDatabase();
+
+    for (Map.Entry<Long, List<Long>> receipt : receipts.entrySet()) {
+      Cursor cursor = null;
 
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX}, DATE_SENT + " = ?", new String[] {String.valueOf(timestamp / 1000)}, null, null, null, null);
+      try {
+        cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX},
+                                DATE_SENT + " = ?", new String[] {String.valueOf(receipt.getKey() / 1000)},
+                                null, null, null, null);
 
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          List<String> addresses = addressDatabase.getAddressesForId(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+        while (cursor.moveToNext()) {
+          if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) continue;
 
-          for (String storedAddress : addresses) {
-            try {
-              String ourAddress   = canonicalizeNumber(context, address);
-              String theirAddress = canonicalizeNumberOrGroup(context, storedAddress);
+          long id    = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          int  count = 0;
 
-              if (ourAddress.equals(theirAddress) || GroupUtil.isEncodedGroup(theirAddress)) {
-                long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-                long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+          for (String storedAddress : addressDatabase.getAddressesForId(id)) {
+            if (GroupUtil.isEncodedGroup(storedAddress)) {
+              count += receipt.getValue().size();
+            } else {
+              count += Collections.frequency(receipt.getValue(), canonicalDatabase.getCanonicalAddressId(storedAddress));
+            }
+          }
 
-                database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                                 RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
-                                 new String[] {String.valueOf(id)});
+          if (count > 0) {
+            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                             RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " + ID + " = ?",
+                             new Object[] {count, id});
 
-                notifyConversationListeners(threadId);
-              }
-            } catch (InvalidNumberException e) {
-              Log.w("MmsDatabase", e);
-            }
+            threadIds.add(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
           }
         }
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
   }
 
@@ -612,9 +613,8 @@ public class MmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
-    jobManager.add(new TrimThreadJob(context, threadId));
+    TrimThreadScheduler.getInstance(context).schedule(threadId);
 
     return new Pair<>(messageId, threadId);
   }
@@ -682,7 +682,7 @@ public class MmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    jobManager.add(new TrimThreadJob(context, threadId));
+    TrimThreadScheduler.getInstance(context).schedule(threadId);
   }
 
   public long insertMessageOutbox(MasterSecret masterSecret, OutgoingMediaMessage message,
@@ -728,7 +728,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     long messageId = insertMediaMessage(masterSecret, sendRequest.getPduHeaders(),
                                         sendRequest.getBody(), contentValues);
-    jobManager.add(new TrimThreadJob(context, threadId));
+    TrimThreadScheduler.getInstance(context).schedule(threadId);
 
     return messageId;
   }
@@ -743,9 +743,11 @@ public class MmsDatabase extends MessagingDatabase {
     PartDatabase       partsDatabase   = DatabaseFactory.getPartDatabase(context);
     MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
 
+    String messageText = null;
+
     if (Types.isSymmetricEncryption(contentValues.getAsLong(MESSAGE_BOX))) {
-      String messageText = PartParser.getMessageText(body);
-      body               = PartParser.getSupportedMediaParts(body);
+      messageText = PartParser.getMessageText(body);
+      body        = PartParser.getSupportedMediaParts(body);
 
       if (!TextUtils.isEmpty(messageText)) {
         contentValues.put(BODY, new MasterCipher(masterSecret).encryptBody(messageText));
@@ -754,27 +756,67 @@ public class MmsDatabase extends MessagingDatabase {
 
     contentValues.put(PART_COUNT, PartParser.getSupportedMediaPartCount(body));
 
-    long messageId = db.insert(TABLE_NAME, null, contentValues);
+    long threadId = contentValues.getAsLong(THREAD_ID);
+    long type     = contentValues.getAsLong(MESSAGE_BOX);
+    long date     = Types.isPushType(type) ? contentValues.getAsLong(DATE_SENT) : contentValues.getAsLong(DATE_RECEIVED);
+    long messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = db.insert(TABLE_NAME, null, contentValues);
+      addressDatabase.insertAddressesForId(messageId, headers);
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, contentValues.getAsString(BODY),
+                                                                 date * 1000, type);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    addressDatabase.insertAddressesForId(messageId, headers);
     partsDatabase.insertParts(masterSecret, messageId, body);
 
-    notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-    DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID));
+    if (!TextUtils.isEmpty(messageText)) {
+      DatabaseFactory.getSearchIndexDatabase(context).indexMessage(masterSecret, SearchIndexDatabase.MMS, messageId, messageText);
+    }
+
+    notifyConversationListeners(threadId);
 
     return messageId;
   }
 
   public void delete(long messageId) {
-    long threadId                   = getThreadIdForMessage(messageId);
     MmsAddressDatabase addrDatabase = DatabaseFactory.getMmsAddressDatabase(context);
     PartDatabase partDatabase       = DatabaseFactory.getPartDatabase(context);
     partDatabase.deleteParts(messageId);
     addrDatabase.deleteAddressesForId(messageId);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    long           threadId = -1;
+    Cursor         cursor   = null;
+
+    database.beginTransaction();
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {THREAD_ID, MESSAGE_BOX, DATE_RECEIVED, DATE_SENT},
+                              ID_WHERE, new String[] {messageId + ""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        threadId  = cursor.getLong(0);
+        long date = Types.isPushType(cursor.getLong(1)) ? cursor.getLong(3) : cursor.getLong(2);
+
+        database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+        DatabaseFactory.getSearchIndexDatabase(context).removeMessage(SearchIndexDatabase.MMS, messageId);
+        DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, date * 1000);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+
+      database.endTransaction();
+    }
+
     notifyConversationListeners(threadId);
   }
 
@@ -808,41 +850,57 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    date          = date / 1000;
-    Cursor cursor = null;
-
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
-
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-      }
+  /**
+   * Deletes messages received before the given date through the thread/date
+   * index.  Parts and addresses are removed per message, but the messages
+   * themselves go in a single statement without touching the thread summary,
+   * which the caller rebuilds once afterwards.
+   *
+   * @return the number of messages deleted.
+   */
+  /*package*/int deleteMessagesInThreadBeforeDate(long threadId, long date) {
+    SQLiteDatabase     db              = databaseHelper.getWritableDatabase();
+    PartDatabase       partDatabase    = DatabaseFactory.getPartDatabase(context);
+    MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
+    String             where           = THREAD_ID + " = ? AND " + DATE_RECEIVED + " < ?";
+    String[]           args            = new String[] {threadId + "", (date / 1000) + ""};
+    Cursor             cursor          = null;
 
-      where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
+    db.beginTransaction();
 
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ID}, where, args, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
         Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
+        partDatabase.deleteParts(cursor.getLong(0));
+        addressDatabase.deleteAddressesForId(cursor.getLong(0));
       }
 
+      DatabaseFactory.getSearchIndexDatabase(context)
+                     .removeMessagesInThreadBeforeDate(SearchIndexDatabase.MMS, threadId, (date / 1000) * 1000);
+
+      int deleted = db.delete(TABLE_NAME, where, args);
+      db.setTransactionSuccessful();
+
+      return deleted;
     } finally {
       if (cursor != null)
         cursor.close();
+
+      db.endTransaction();
     }
   }
 
 
+
   public void deleteAllThreads() {
     DatabaseFactory.getPartDatabase(context).deleteAllParts();
     DatabaseFactory.getMmsAddressDatabase(context).deleteAllAddresses();
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    DatabaseFactory.getSearchIndexDatabase(context).removeAll(SearchIndexDatabase.MMS);
   }
 
   public Cursor getCarrierMmsInformation(String apn) {
@@ -1134,7 +1192,7 @@ public class MmsDatabase extends MessagingDatabase {
       };
 
       future = new ListenableFutureTask<SlideDeck>(task);
-      slideResolver.execute(future);
+      TaskScheduler.getInstance().execute(TaskScheduler.Domain.SLIDES, TaskScheduler.Priority.VISIBLE, future);
 
       return future;
     }
@@ -26,7 +26,11 @@ import android.util.Log;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.model.MessageRecord;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -63,6 +67,84 @@ public class MmsSmsDatabase extends Database {
     return cursor;
   }
 
+  /**
+   * Returns the rows of a conversation from a page boundary found with
+   * {@link #getConversationPageBoundary} onwards, or the whole conversation if
+   * the boundary is null.
+   */
+  public Cursor getConversation(long threadId, PageBoundary from) {
+    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
+                              MmsSmsColumns.THREAD_ID,
+                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
+                              MmsSmsColumns.NORMALIZED_DATE_SENT,
+                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
+                              MmsSmsColumns.MISMATCHED_IDENTITIES,
+                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
+
+    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+
+    String smsSelection    = MmsSmsColumns.THREAD_ID + " = " + threadId + getKeysetSelection(SMS_TRANSPORT, from, false);
+    String mmsSelection    = MmsSmsColumns.THREAD_ID + " = " + threadId + getKeysetSelection(MMS_TRANSPORT, from, false);
+
+    Cursor cursor = queryTables(projection, smsSelection, mmsSelection, order, null, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Finds the pageSize'th newest message in a thread that comes before the given
+   * boundary, or the pageSize'th newest overall if it's null.  Messages are keyed
+   * on their normalized received date, then their transport and id, so that
+   * messages received at the same time still fall on one side of a boundary or
+   * the other and a page never holds more than pageSize of them.
+   *
+   * Only the keys are read, from a UNION ALL over the (thread_id, date) indexes,
+   * which end in the row id, so the lookup doesn't touch the message rows.  Each
+   * side stops after pageSize + 1 keys, so only that many are ever sorted,
+   * however long the thread is.
+   *
+   * @return the boundary, or null if fewer than pageSize such messages exist.
+   */
+  public PageBoundary getConversationPageBoundary(long threadId, PageBoundary before, int pageSize) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    String         limit  = String.valueOf(pageSize + 1);
+    String         query  = "SELECT * FROM " +
+                            "(SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                            "'" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                            " FROM " + SmsDatabase.TABLE_NAME +
+                            " WHERE " + SmsDatabase.THREAD_ID + " = ?" + getKeysetSelection(SMS_TRANSPORT, before, true) +
+                            " ORDER BY " + SmsDatabase.DATE_RECEIVED + " DESC, " + MmsSmsColumns.ID + " DESC LIMIT " + limit + ")" +
+                            " UNION ALL " +
+                            "SELECT * FROM " +
+                            "(SELECT " + MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                            "'" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                            " FROM " + MmsDatabase.TABLE_NAME +
+                            " WHERE " + MmsDatabase.THREAD_ID + " = ?" + getKeysetSelection(MMS_TRANSPORT, before, true) +
+                            " ORDER BY " + MmsDatabase.DATE_RECEIVED + " DESC, " + MmsSmsColumns.ID + " DESC LIMIT " + limit + ")" +
+                            " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " +
+                            MmsSmsColumns.ID + " DESC LIMIT 2 OFFSET ?";
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery(query, new String[] {threadId + "", threadId + "", (pageSize - 1) + ""});
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return new PageBoundary(cursor.getLong(0), cursor.getString(1), cursor.getLong(2), cursor.moveToNext());
+      }
+
+      return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
                               MmsSmsColumns.THREAD_ID,
@@ -135,8 +217,41 @@ public class MmsSmsDatabase extends Database {
   }
 
   public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
-    DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
+    Map<Long, List<String>> receipts = new HashMap<>();
+    receipts.put(timestamp, Collections.singletonList(address));
+
+    incrementDeliveryReceiptCounts(receipts);
+  }
+
+  /**
+   * Applies a batch of delivery receipts in one transaction.  Receipt senders
+   * are resolved to canonical address ids once, and matched against messages
+   * by id rather than by re-parsing every stored number.  Each updated thread
+   * is notified once.
+   *
+   * @param receipts receipt sender addresses, keyed by sent timestamp.
+   */
+  public void incrementDeliveryReceiptCounts(Map<Long, List<String>> receipts) {
+    CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
+    Map<Long, List<Long>>    addressIds      = new HashMap<>();
+    Set<Long>                threadIds       = new HashSet<>();
+
+    for (Map.Entry<Long, List<String>> receipt : receipts.entrySet()) {
+      addressIds.put(receipt.getKey(), addressDatabase.getCanonicalAddressIds(receipt.getValue()));
+    }
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCounts(addressIds, threadIds);
+      DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCounts(addressIds, threadIds);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    notifyConversationListeners(threadIds);
   }
 
   private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String groupBy, String limit) {
@@ -222,6 +337,91 @@ public class MmsSmsDatabase extends Database {
     return db.rawQuery(query, null);
   }
 
+  /**
+   * Builds the part of a selection on one table that keeps the messages before a
+   * boundary, or those from it onwards, in (normalized date, transport, id) order.
+   * Each clause bounds the indexed date column first so that it's a range scan,
+   * and only compares ids among the messages received at the boundary's date.
+   *
+   * @return the clause, starting with " AND ", or an empty string if the
+   *         boundary is null.
+   */
+  private String getKeysetSelection(String transport, PageBoundary boundary, boolean before) {
+    if (boundary == null) return "";
+
+    boolean mms        = MMS_TRANSPORT.equals(transport);
+    String  dateColumn = mms ? MmsDatabase.DATE_RECEIVED : SmsDatabase.DATE_RECEIVED;
+    long    date       = boundary.getDateReceived();
+    int     tieOrder   = transport.compareTo(boundary.getTransport());
+
+    if (tieOrder == 0) {
+      long tableDate = mms ? date / 1000 : date;
+
+      if (before) return " AND " + dateColumn + " <= " + tableDate + " AND (" + dateColumn + " < " + tableDate +
+                         " OR " + MmsSmsColumns.ID + " < " + boundary.getId() + ")";
+      else        return " AND " + dateColumn + " >= " + tableDate + " AND (" + dateColumn + " > " + tableDate +
+                         " OR " + MmsSmsColumns.ID + " >= " + boundary.getId() + ")";
+    }
+
+    // Messages of the other transport received at the boundary's date sort
+    // entirely before or after it, as the transport decides.
+    boolean tiesBefore = tieOrder < 0;
+
+    if (mms) {
+      long floor = date / 1000;
+      long ceil  = (date + 999) / 1000;
+
+      if (before) return " AND " + dateColumn + (tiesBefore ? " <= " + floor : " < " + ceil);
+      else        return " AND " + dateColumn + (tiesBefore ? " > " + floor  : " >= " + ceil);
+    } else {
+      if (before) return " AND " + dateColumn + (tiesBefore ? " <= " : " < ") + date;
+      else        return " AND " + dateColumn + (tiesBefore ? " > " : " >= ") + date;
+    }
+  }
+
+  public static class PageBoundary {
+    private final long    dateReceived;
+    private final String  transport;
+    private final long    id;
+    private final boolean hasOlder;
+
+    public PageBoundary(long dateReceived, String transport, long id, boolean hasOlder) {
+      this.dateReceived = dateReceived;
+      this.transport    = transport;
+      this.id           = id;
+      this.hasOlder     = hasOlder;
+    }
+
+    /**
+     * @return the normalized received date of the oldest message in the page.
+     */
+    public long getDateReceived() {
+      return dateReceived;
+    }
+
+    /**
+     * @return the transport of the oldest message in the page, {@link #SMS_TRANSPORT}
+     *         or {@link #MMS_TRANSPORT}.
+     */
+    public String getTransport() {
+      return transport;
+    }
+
+    /**
+     * @return the id of the oldest message in the page, within its transport's table.
+     */
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * @return true if older messages exist before the page.
+     */
+    public boolean hasOlder() {
+      return hasOlder;
+    }
+  }
+
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
     return new Reader(cursor, masterSecret);
   }
@@ -28,14 +28,16 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
+import org.smssecure.smssecure.crypto.ChunkedDecryptingPartInputStream;
+import org.smssecure.smssecure.crypto.ChunkedEncryptingPartOutputStream;
 import org.smssecure.smssecure.crypto.DecryptingPartInputStream;
-import org.smssecure.smssecure.crypto.EncryptingPartOutputStream;
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.mms.PartAuthority;
 import org.smssecure.smssecure.util.BitmapDecodingException;
 import org.smssecure.smssecure.util.MediaUtil;
 import org.smssecure.smssecure.util.MediaUtil.ThumbnailData;
+import org.smssecure.smssecure.util.TaskScheduler;
 import org.smssecure.smssecure.util.Util;
 import org.smssecure.smssecure.util.VisibleForTesting;
 
@@ -45,11 +47,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
@@ -107,7 +113,9 @@ public class PartDatabase extends Database {
                                            + "ORDER BY " + TABLE_NAME + "." + ID + " DESC";
 
 
-  private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  private final ExecutorService migrationExecutor = Executors.newSingleThreadExecutor();
+  private final Object          migrationLock     = new Object();
+  private final Set<String>     migrationsPending = Collections.synchronizedSet(new HashSet<String>());
 
   public PartDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -328,10 +336,19 @@ public class PartDatabase extends Database {
     return contentValues;
   }
 
-  private InputStream getPartInputStream(MasterSecret masterSecret, File path)
+  private InputStream getPartInputStream(MasterSecret masterSecret, long partId, String dataType, File path)
       throws FileNotFoundException
   {
     Log.w(TAG, "Getting part at: " + path.getAbsolutePath());
+
+    if (ChunkedDecryptingPartInputStream.isChunkedFormat(path)) {
+      return new ChunkedDecryptingPartInputStream(path, masterSecret);
+    }
+
+    if (migrationsPending.add(partId + "." + dataType)) {
+      migrationExecutor.submit(new LegacyPartMigrationCallable(masterSecret, partId, dataType, path));
+    }
+
     return new DecryptingPartInputStream(path, masterSecret);
   }
 
@@ -340,7 +357,7 @@ public class PartDatabase extends Database {
   {
     Log.w(TAG, "Writing part to: " + path.getAbsolutePath());
     part.setEncrypted(true);
-    return new EncryptingPartOutputStream(path, masterSecret);
+    return new ChunkedEncryptingPartOutputStream(path, masterSecret);
   }
 
   @VisibleForTesting InputStream getDataStream(MasterSecret masterSecret, long partId, String dataType)
@@ -358,7 +375,7 @@ public class PartDatabase extends Database {
           return null;
         }
 
-        return getPartInputStream(masterSecret, new File(cursor.getString(0)));
+        return getPartInputStream(masterSecret, partId, dataType, new File(cursor.getString(0)));
       } else {
         throw new FileNotFoundException("No part for id: " + partId);
       }
@@ -383,6 +400,20 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Writes a part body to encrypted storage ahead of the part itself being
+   * inserted, so that a part arriving from the network never has to be held
+   * in memory.  The part is inserted later without being written again.
+   */
+  public void writeEncryptedPartData(MasterSecret masterSecret, PduPart part, InputStream in)
+      throws MmsException
+  {
+    Pair<File, Long> partData = writePartData(masterSecret, part, in);
+
+    part.setEncryptedDataFile(partData.first);
+    part.setDataSize(partData.second);
+  }
+
   private Pair<File, Long> writePartData(MasterSecret masterSecret, PduPart part)
       throws MmsException
   {
@@ -402,6 +433,81 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Re-encrypts every part and thumbnail still stored in the legacy
+   * single-stream format into the chunked format.
+   */
+  public void migrateLegacyParts(MasterSecret masterSecret) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+    int            migrated = 0;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID, DATA, THUMBNAIL},
+                              DATA + " IS NOT NULL OR " + THUMBNAIL + " IS NOT NULL",
+                              null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long partId = cursor.getLong(0);
+
+        for (String dataType : new String[] {DATA, THUMBNAIL}) {
+          String path = cursor.getString(cursor.getColumnIndexOrThrow(dataType));
+
+          if (path != null && migrateLegacyPart(masterSecret, partId, dataType, new File(path))) {
+            migrated++;
+          }
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    Log.w(TAG, "Migrated " + migrated + " legacy part files.");
+  }
+
+  @VisibleForTesting boolean migrateLegacyPart(MasterSecret masterSecret, long partId, String dataType, File legacyFile) {
+    synchronized (migrationLock) {
+      if (!legacyFile.exists() || ChunkedDecryptingPartInputStream.isChunkedFormat(legacyFile)) {
+        return false;
+      }
+
+      File migratedFile = null;
+
+      try {
+        File partsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
+
+        migratedFile = File.createTempFile("part", ".mms", partsDirectory);
+
+        Util.copy(new DecryptingPartInputStream(legacyFile, masterSecret),
+                  new ChunkedEncryptingPartOutputStream(migratedFile, masterSecret));
+
+        SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        ContentValues  values   = new ContentValues(1);
+        values.put(dataType, migratedFile.getAbsolutePath());
+
+        int updated = database.update(TABLE_NAME, values, ID_WHERE + " AND " + dataType + " = ?",
+                                      new String[] {partId+"", legacyFile.getAbsolutePath()});
+
+        if (updated == 0) {
+          Log.w(TAG, "Part changed during migration: " + partId);
+          migratedFile.delete();
+          return false;
+        }
+
+        if (!legacyFile.delete()) {
+          Log.w(TAG, "Couldn't delete legacy part file");
+        }
+
+        return true;
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        if (migratedFile != null) migratedFile.delete();
+        return false;
+      }
+    }
+  }
+
   public InputStream getThumbnailStream(final MasterSecret masterSecret, final long partId) throws IOException {
     Log.w(TAG, "getThumbnailStream(" + partId + ")");
     final InputStream dataStream = getDataStream(masterSecret, partId, THUMBNAIL);
@@ -410,7 +516,8 @@ public class PartDatabase extends Database {
     }
 
     try {
-      return thumbnailExecutor.submit(new ThumbnailFetchCallable(masterSecret, partId)).get();
+      return TaskScheduler.getInstance().submit(TaskScheduler.Domain.THUMBNAILS, TaskScheduler.Priority.VISIBLE,
+                                                new ThumbnailFetchCallable(masterSecret, partId)).get();
     } catch (InterruptedException ie) {
       throw new AssertionError("interrupted");
     } catch (ExecutionException ee) {
@@ -434,7 +541,10 @@ public class PartDatabase extends Database {
     SQLiteDatabase   database = databaseHelper.getWritableDatabase();
     Pair<File, Long> partData = null;
 
-    if (!part.isPendingPush()) {
+    if (part.getEncryptedDataFile() != null) {
+      partData = new Pair<>(part.getEncryptedDataFile(), part.getDataSize());
+      Log.w(TAG, "Part already written to file: " + partData.first.getAbsolutePath());
+    } else if (!part.isPendingPush()) {
       partData = writePartData(masterSecret, part);
       Log.w(TAG, "Wrote part to file: " + partData.first.getAbsolutePath());
     }
@@ -454,7 +564,8 @@ public class PartDatabase extends Database {
       ThumbnailData data = new ThumbnailData(thumbnail);
       updatePartThumbnail(masterSecret, partId, part, data.toDataStream(), data.getAspectRatio());
     } else if (!part.isPendingPush()) {
-      thumbnailExecutor.submit(new ThumbnailFetchCallable(masterSecret, partId));
+      TaskScheduler.getInstance().submit(TaskScheduler.Domain.THUMBNAILS, TaskScheduler.Priority.PREFETCH,
+                                        new ThumbnailFetchCallable(masterSecret, partId));
     }
 
     return partId;
@@ -479,7 +590,8 @@ public class PartDatabase extends Database {
 
     database.update(TABLE_NAME, values, ID_WHERE, new String[]{partId+""});
 
-    thumbnailExecutor.submit(new ThumbnailFetchCallable(masterSecret, partId));
+    TaskScheduler.getInstance().submit(TaskScheduler.Domain.THUMBNAILS, TaskScheduler.Priority.PREFETCH,
+                                        new ThumbnailFetchCallable(masterSecret, partId));
 
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
   }
@@ -573,6 +685,29 @@ public class PartDatabase extends Database {
     }
   }
 
+  private class LegacyPartMigrationCallable implements Callable<Boolean> {
+    private final MasterSecret masterSecret;
+    private final long         partId;
+    private final String       dataType;
+    private final File         legacyFile;
+
+    public LegacyPartMigrationCallable(MasterSecret masterSecret, long partId, String dataType, File legacyFile) {
+      this.masterSecret = masterSecret;
+      this.partId       = partId;
+      this.dataType     = dataType;
+      this.legacyFile   = legacyFile;
+    }
+
+    @Override
+    public Boolean call() {
+      try {
+        return migrateLegacyPart(masterSecret, partId, dataType, legacyFile);
+      } finally {
+        migrationsPending.remove(partId + "." + dataType);
+      }
+    }
+  }
+
   @VisibleForTesting class ThumbnailFetchCallable implements Callable<InputStream> {
     private final MasterSecret masterSecret;
     private final long         partId;
@@ -0,0 +1,464 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterCipherEngine;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.util.SMSSecurePreferences;
+import org.smssecure.smssecure.util.Util;
+import org.smssecure.smssecure.util.VisibleForTesting;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An optional on-disk cache of recently decrypted SMS bodies, so that the
+ * first scroll through a thread after a process restart doesn't have to
+ * decrypt every message again.
+ *
+ * Entries are sealed under a session key derived from the MasterSecret and
+ * a random per-file salt, and appended to a single file that is memory
+ * mapped and indexed in one sequential pass when the cache is opened.  A
+ * message that is decrypted again, because its id was reused or its
+ * ciphertext changed, is appended anew and the index follows the latest
+ * record.  Each record carries a SHA-256 digest of the ciphertext it was
+ * decrypted from, and is only returned for that exact ciphertext.  Records
+ * of deleted messages, and records a message has outgrown, are overwritten
+ * in place with a tombstone, so their plaintext doesn't linger on disk.  The
+ * file is deleted whenever the passphrase changes or the MasterSecret is
+ * cleared from memory.
+ *
+ * File format: MAGIC | VERSION | SALT | KEY_CHECK, followed by records of
+ * MESSAGE_ID | CIPHERTEXT_DIGEST | LENGTH | SEALED_PLAINTEXT.
+ */
+public class PersistentPlaintextCache {
+
+  private static final String TAG = PersistentPlaintextCache.class.getSimpleName();
+
+  private static final String FILE_NAME     = "plaintext_cache";
+  private static final int    MAGIC         = 0x53504331;
+  private static final int    VERSION       = 2;
+  private static final int    SALT_LENGTH   = 16;
+  private static final int    CHECK_LENGTH  = 20;
+  private static final int    HEADER_LENGTH = 4 + 4 + SALT_LENGTH + CHECK_LENGTH;
+  private static final int    DIGEST_LENGTH = 32;
+  private static final int    RECORD_HEADER = 8 + DIGEST_LENGTH + 4;
+  private static final long   TOMBSTONE_ID  = -1;
+  private static final long   MAX_FILE_SIZE = 4 * 1024 * 1024;
+
+  private static final Executor writer = Executors.newSingleThreadExecutor();
+
+  private static PersistentPlaintextCache instance;
+
+  private final Context context;
+  private final File    file;
+
+  private final Map<Long, Long> index = new HashMap<>();
+
+  private long               epoch;
+  private MasterSecret       openedWith;
+  private MasterSecret       sessionSecret;
+  private MasterCipherEngine engine;
+  private byte[]             masterMacKey;
+  private RandomAccessFile   randomAccessFile;
+  private MappedByteBuffer   mapped;
+  private long               length;
+
+  public static synchronized PersistentPlaintextCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new PersistentPlaintextCache(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  /**
+   * Drops all cached plaintext.  Called when the MasterSecret is cleared from
+   * memory or the passphrase changes.
+   */
+  public static void invalidate(Context context) {
+    getInstance(context).invalidate();
+  }
+
+  private PersistentPlaintextCache(Context context) {
+    this.context = context;
+    this.file    = new File(context.getCacheDir(), FILE_NAME);
+  }
+
+  public synchronized String get(MasterSecret masterSecret, long messageId, String ciphertext) {
+    if (!open(masterSecret)) return null;
+
+    Long offset = index.get(messageId);
+
+    if (offset == null) return null;
+
+    try {
+      ByteBuffer record = getRecord(offset, messageId, getDigest(ciphertext));
+
+      if (record == null) return null;
+
+      byte[] sealed = new byte[record.getInt()];
+      record.get(sealed);
+
+      return new String(engine.decrypt(sealed, 0, sealed.length));
+    } catch (IOException | InvalidMessageException | RuntimeException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  public void put(final MasterSecret masterSecret, final long messageId,
+                  final String ciphertext, final String plaintext)
+  {
+    if (!SMSSecurePreferences.isPersistentPlaintextCacheEnabled(context)) return;
+
+    final long submittedEpoch = getEpoch();
+
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        append(submittedEpoch, masterSecret, messageId, ciphertext, plaintext);
+      }
+    });
+  }
+
+  /**
+   * Erases the cached plaintext of deleted messages.  Runs behind any pending
+   * writes, so a body cached just before its message was deleted is erased too.
+   */
+  public void remove(final Collection<Long> messageIds) {
+    if (messageIds.isEmpty() || isEmpty()) return;
+
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        erase(messageIds);
+      }
+    });
+  }
+
+  /**
+   * Erases all cached plaintext, for when every message has been deleted.
+   */
+  public void removeAll() {
+    invalidate();
+  }
+
+  /**
+   * @return true if there is no cache file, so there's nothing to remove.
+   */
+  public synchronized boolean isEmpty() {
+    return randomAccessFile == null && !file.exists();
+  }
+
+  private synchronized long getEpoch() {
+    return epoch;
+  }
+
+  private synchronized void invalidate() {
+    epoch++;
+    reset();
+  }
+
+  private synchronized void append(long submittedEpoch, MasterSecret masterSecret, long messageId,
+                                   String ciphertext, String plaintext)
+  {
+    if (submittedEpoch != epoch) return;
+    if (!open(masterSecret)) return;
+
+    try {
+      byte[] digest   = getDigest(ciphertext);
+      Long   existing = index.get(messageId);
+
+      if (existing != null) {
+        if (getRecord(existing, messageId, digest) != null) return;
+        else                                               writeTombstone(existing);
+      }
+
+      if (length > MAX_FILE_SIZE) {
+        Log.w(TAG, "Cache file full, starting over...");
+        reset();
+        if (!open(masterSecret)) return;
+      }
+
+      byte[]     sealed = engine.encrypt(plaintext.getBytes());
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + sealed.length);
+
+      record.putLong(messageId);
+      record.put(digest);
+      record.putInt(sealed.length);
+      record.put(sealed);
+
+      long offset = length;
+      randomAccessFile.seek(offset);
+      randomAccessFile.write(record.array());
+
+      length = offset + record.capacity();
+      index.put(messageId, offset);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      reset();
+    }
+  }
+
+  private synchronized void erase(Collection<Long> messageIds) {
+    if (randomAccessFile == null) {
+      // Records from an earlier process can't be indexed without the key, so
+      // the whole cache goes instead.
+      reset();
+      return;
+    }
+
+    try {
+      for (long messageId : messageIds) {
+        Long offset = index.remove(messageId);
+        if (offset != null) writeTombstone(offset);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      reset();
+    }
+  }
+
+  /**
+   * Overwrites a record's message id, digest and sealed plaintext, keeping its
+   * length so the records after it can still be indexed.
+   */
+  private void writeTombstone(long offset) throws IOException {
+    mapIfGrown();
+
+    ByteBuffer record = mapped.duplicate();
+    record.position((int)offset + 8 + DIGEST_LENGTH);
+
+    int sealedLength = record.getInt();
+
+    randomAccessFile.seek(offset);
+    randomAccessFile.writeLong(TOMBSTONE_ID);
+    randomAccessFile.write(new byte[DIGEST_LENGTH]);
+    randomAccessFile.seek(offset + RECORD_HEADER);
+    randomAccessFile.write(new byte[sealedLength]);
+  }
+
+  private boolean open(MasterSecret masterSecret) {
+    if (!SMSSecurePreferences.isPersistentPlaintextCacheEnabled(context)) {
+      if (randomAccessFile != null || file.exists()) reset();
+      return false;
+    }
+
+    if (engine != null && masterSecret == openedWith) {
+      return true;
+    }
+
+    if (engine != null && Arrays.equals(masterMacKey, masterSecret.getMacKey().getEncoded())) {
+      openedWith = masterSecret;
+      return true;
+    }
+
+    close();
+
+    try {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      masterMacKey     = masterSecret.getMacKey().getEncoded();
+      openedWith       = masterSecret;
+
+      if (randomAccessFile.length() < HEADER_LENGTH || !readHeader(masterSecret)) {
+        writeHeader(masterSecret);
+      }
+
+      length = randomAccessFile.length();
+
+      mapIfGrown();
+      buildIndex();
+
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      close();
+      file.delete();
+      return false;
+    }
+  }
+
+  private boolean readHeader(MasterSecret masterSecret) throws IOException {
+    byte[] salt  = new byte[SALT_LENGTH];
+    byte[] check = new byte[CHECK_LENGTH];
+
+    randomAccessFile.seek(0);
+
+    if (randomAccessFile.readInt() != MAGIC || randomAccessFile.readInt() != VERSION) {
+      return false;
+    }
+
+    randomAccessFile.readFully(salt);
+    randomAccessFile.readFully(check);
+
+    initializeSession(masterSecret, salt);
+
+    byte[] ourCheck = engine.getMacFor(salt);
+
+    if (!MasterCipherEngine.isEqual(ourCheck, 0, check, 0, CHECK_LENGTH)) {
+      Log.w(TAG, "Cache file was written under a different key, discarding.");
+      return false;
+    }
+
+    return true;
+  }
+
+  private void writeHeader(MasterSecret masterSecret) throws IOException {
+    byte[] salt = new byte[SALT_LENGTH];
+    Util.getSecureRandom().nextBytes(salt);
+
+    initializeSession(masterSecret, salt);
+
+    randomAccessFile.setLength(0);
+    randomAccessFile.seek(0);
+    randomAccessFile.writeInt(MAGIC);
+    randomAccessFile.writeInt(VERSION);
+    randomAccessFile.write(salt);
+    randomAccessFile.write(engine.getMacFor(salt));
+  }
+
+  private void buildIndex() throws IOException {
+    ByteBuffer buffer = mapped.duplicate();
+    buffer.position(HEADER_LENGTH);
+
+    index.clear();
+
+    while (buffer.remaining() >= RECORD_HEADER) {
+      int  offset       = buffer.position();
+      long messageId    = buffer.getLong();
+      buffer.position(buffer.position() + DIGEST_LENGTH);
+      int  sealedLength = buffer.getInt();
+
+      if (sealedLength < 0 || sealedLength > buffer.remaining()) {
+        Log.w(TAG, "Truncated record at: " + offset);
+        randomAccessFile.setLength(offset);
+        length = offset;
+        break;
+      }
+
+      buffer.position(buffer.position() + sealedLength);
+
+      if (messageId != TOMBSTONE_ID) index.put(messageId, (long)offset);
+    }
+
+    Log.w(TAG, "Indexed " + index.size() + " cached bodies.");
+  }
+
+  /**
+   * @return the record at an offset, positioned at its length, or null if
+   *         it isn't for the given message and ciphertext digest.
+   */
+  private ByteBuffer getRecord(long offset, long messageId, byte[] digest) throws IOException {
+    mapIfGrown();
+
+    ByteBuffer record = mapped.duplicate();
+    record.position((int)offset);
+
+    if (record.getLong() != messageId) return null;
+
+    byte[] recordDigest = new byte[DIGEST_LENGTH];
+    record.get(recordDigest);
+
+    if (!MasterCipherEngine.isEqual(recordDigest, 0, digest, 0, DIGEST_LENGTH)) return null;
+    else                                                                         return record;
+  }
+
+  /**
+   * Maps the file again only when records have been appended past the end of
+   * the current mapping.  A truncated file keeps its mapping, since nothing
+   * past the truncation is indexed.
+   */
+  private void mapIfGrown() throws IOException {
+    if (mapped == null || mapped.capacity() < length) {
+      mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+  }
+
+  private static byte[] getDigest(String ciphertext) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(ciphertext.getBytes());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void initializeSession(MasterSecret masterSecret, byte[] salt) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA1");
+      mac.init(masterSecret.getMacKey());
+
+      mac.update((byte)0x01);
+      byte[] encryptionKey = Arrays.copyOf(mac.doFinal(salt), 16);
+
+      mac.update((byte)0x02);
+      byte[] macKey = mac.doFinal(salt);
+
+      this.sessionSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                            new SecretKeySpec(macKey, "HmacSHA1"));
+      this.engine        = MasterCipherEngine.getInstance(sessionSecret);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private synchronized void reset() {
+    close();
+    index.clear();
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete plaintext cache!");
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void close() {
+    try {
+      if (randomAccessFile != null) randomAccessFile.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    randomAccessFile = null;
+    mapped           = null;
+    length           = 0;
+    engine           = null;
+    sessionSecret    = null;
+    masterMacKey     = null;
+    openedWith       = null;
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A block of one search token's postings: the messages containing the token,
+ * kept sorted by date and then by message reference.
+ *
+ * Serialized as a varint count followed by, for each posting, the varint
+ * difference from the previous date and the zigzag varint difference from
+ * the previous reference.  Dates are close together and references mostly
+ * grow with them, so most postings take three or four bytes.
+ */
+class PostingList {
+
+  private long[] dates;
+  private long[] refs;
+  private int    size;
+
+  PostingList() {
+    this(16);
+  }
+
+  private PostingList(int capacity) {
+    this.dates = new long[capacity];
+    this.refs  = new long[capacity];
+  }
+
+  static PostingList deserialize(byte[] serialized) {
+    int[]       offset = new int[1];
+    int         count  = (int)readVarint(serialized, offset);
+    PostingList list   = new PostingList(Math.max(count, 16));
+    long        date   = 0;
+    long        ref    = 0;
+
+    for (int i=0;i<count;i++) {
+      date += readVarint(serialized, offset);
+      ref  += decodeZigZag(readVarint(serialized, offset));
+
+      list.dates[i] = date;
+      list.refs[i]  = ref;
+    }
+
+    list.size = count;
+    return list;
+  }
+
+  byte[] serialize() {
+    ByteArrayOutputStream out  = new ByteArrayOutputStream(size * 4 + 5);
+    long                  date = 0;
+    long                  ref  = 0;
+
+    writeVarint(out, size);
+
+    for (int i=0;i<size;i++) {
+      writeVarint(out, dates[i] - date);
+      writeVarint(out, encodeZigZag(refs[i] - ref));
+
+      date = dates[i];
+      ref  = refs[i];
+    }
+
+    return out.toByteArray();
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  long getDate(int index) {
+    return dates[index];
+  }
+
+  long getRef(int index) {
+    return refs[index];
+  }
+
+  /**
+   * @return false if the posting was already present.
+   */
+  boolean add(long date, long ref) {
+    int index = find(date, ref);
+
+    if (index >= 0) return false;
+
+    index = -(index + 1);
+
+    if (size == dates.length) {
+      dates = Arrays.copyOf(dates, size * 2);
+      refs  = Arrays.copyOf(refs, size * 2);
+    }
+
+    System.arraycopy(dates, index, dates, index + 1, size - index);
+    System.arraycopy(refs, index, refs, index + 1, size - index);
+
+    dates[index] = date;
+    refs[index]  = ref;
+    size++;
+
+    return true;
+  }
+
+  /**
+   * @return false if the posting wasn't present.
+   */
+  boolean remove(long date, long ref) {
+    int index = find(date, ref);
+
+    if (index < 0) return false;
+
+    System.arraycopy(dates, index + 1, dates, index, size - index - 1);
+    System.arraycopy(refs, index + 1, refs, index, size - index - 1);
+    size--;
+
+    return true;
+  }
+
+  /**
+   * Moves the newer half of the postings into a new list.
+   */
+  PostingList split() {
+    int         keep  = size / 2;
+    PostingList upper = new PostingList(Math.max(size - keep, 16));
+
+    System.arraycopy(dates, keep, upper.dates, 0, size - keep);
+    System.arraycopy(refs, keep, upper.refs, 0, size - keep);
+
+    upper.size = size - keep;
+    this.size  = keep;
+
+    return upper;
+  }
+
+  private int find(long date, long ref) {
+    int low  = 0;
+    int high = size - 1;
+
+    while (low <= high) {
+      int middle     = (low + high) >>> 1;
+      int comparison = dates[middle] != date ? (dates[middle] < date ? -1 : 1)
+                                             : (refs[middle] != ref ? (refs[middle] < ref ? -1 : 1) : 0);
+
+      if      (comparison < 0) low  = middle + 1;
+      else if (comparison > 0) high = middle - 1;
+      else                     return middle;
+    }
+
+    return -(low + 1);
+  }
+
+  static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    out.write((int)value);
+  }
+
+  static long readVarint(byte[] serialized, int[] offset) {
+    long value = 0;
+    int  shift = 0;
+    byte b;
+
+    do {
+      b      = serialized[offset[0]++];
+      value |= (long)(b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+
+    return value;
+  }
+
+  private static long encodeZigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long decodeZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
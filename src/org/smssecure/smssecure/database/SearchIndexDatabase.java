@@ -0,0 +1,845 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.util.Conversions;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An inverted index over message bodies, so that they can be searched
+ * without decrypting the whole archive.
+ *
+ * Tokens are stored only as HMACs under a key derived from the master
+ * secret.  Each token's postings are kept in date ordered blocks of at most
+ * {@link #MAX_BLOCK_SIZE} entries, so that an insert or delete rewrites one
+ * small block and a search reads the newest postings first.  Every indexed
+ * message also has a document row listing its tokens, which is what lets
+ * deletes and trims remove postings without the master secret.
+ *
+ * Messages are referenced as (id << 1) | {@link #SMS} or {@link #MMS}.
+ */
+public class SearchIndexDatabase extends Database {
+
+  private static final String TAG = SearchIndexDatabase.class.getSimpleName();
+
+  public static final int SMS = 0;
+  public static final int MMS = 1;
+
+  private static final String TOKENS_TABLE    = "search_tokens";
+  private static final String POSTINGS_TABLE  = "search_postings";
+  private static final String DOCUMENTS_TABLE = "search_documents";
+
+  private static final String ID         = "_id";
+  private static final String HASH       = "hash";
+  private static final String TOKEN_ID   = "token_id";
+  private static final String FIRST_DATE = "first_date";
+  private static final String COUNT      = "count";
+  private static final String POSTINGS   = "postings";
+  private static final String THREAD_ID  = "thread_id";
+  private static final String DATE       = "date";
+  private static final String TOKENS     = "tokens";
+
+  public static final String[] CREATE_TABLES = {
+      "CREATE TABLE " + TOKENS_TABLE + " (" + ID + " INTEGER PRIMARY KEY, " + HASH + " INTEGER UNIQUE);",
+      "CREATE TABLE " + POSTINGS_TABLE + " (" + ID + " INTEGER PRIMARY KEY, " + TOKEN_ID + " INTEGER, " +
+          FIRST_DATE + " INTEGER, " + COUNT + " INTEGER, " + POSTINGS + " BLOB);",
+      "CREATE TABLE " + DOCUMENTS_TABLE + " (" + ID + " INTEGER PRIMARY KEY, " + THREAD_ID + " INTEGER, " +
+          DATE + " INTEGER, " + TOKENS + " BLOB);"
+  };
+
+  public static final String[] CREATE_INDEXS = {
+      "CREATE INDEX IF NOT EXISTS search_postings_token_date_index ON " + POSTINGS_TABLE + " (" + TOKEN_ID + ", " + FIRST_DATE + ");",
+      "CREATE INDEX IF NOT EXISTS search_documents_thread_date_index ON " + DOCUMENTS_TABLE + " (" + THREAD_ID + ", " + DATE + ");"
+  };
+
+  private static final int MAX_BLOCK_SIZE            = 512;
+  private static final int VERIFY_BATCH_SIZE         = 50;
+  private static final int MAX_THREAD_SEARCH_RESULTS = 500;
+
+  public SearchIndexDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Indexes a message's plaintext body, replacing whatever it was indexed
+   * under before.  Messages whose stored body isn't symmetrically encrypted
+   * text, such as key exchanges or messages still waiting to be decrypted,
+   * are left out of the index.
+   */
+  public void indexMessage(MasterSecret masterSecret, int type, long messageId, String body) {
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    Cursor         cursor = null;
+
+    db.beginTransaction();
+
+    try {
+      PostingWriter writer = new PostingWriter(db);
+      long          ref    = getRef(type, messageId);
+
+      writer.removeDocument(ref);
+
+      cursor = db.query(getTable(type), getSourceColumns(type), getTable(type) + "." + ID + " = ?",
+                        new String[] {messageId + ""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst() && isIndexable(cursor.getLong(3)) && !TextUtils.isEmpty(body)) {
+        writer.addDocument(new TokenHasher(masterSecret), ref, cursor.getLong(1), cursor.getLong(2), body);
+      }
+
+      writer.flush();
+      db.setTransactionSuccessful();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Indexes up to limit messages of the given type, with ids greater than
+   * afterId, that aren't indexed yet.
+   *
+   * @return the id of the last message looked at, or -1 if there were none.
+   */
+  public long backfill(MasterSecret masterSecret, int type, long afterId, int limit) {
+    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
+    MasterCipher   masterCipher = new MasterCipher(masterSecret);
+    TokenHasher    hasher       = new TokenHasher(masterSecret);
+    String         table        = getTable(type);
+    long           lastId       = -1;
+    Cursor         cursor       = null;
+
+    String query = "SELECT " + TextUtils.join(", ", getSourceColumns(type)) +
+                   " FROM " + table + " LEFT JOIN " + DOCUMENTS_TABLE +
+                   " ON " + DOCUMENTS_TABLE + "." + ID + " = ((" + table + "." + ID + " << 1) | " + type + ")" +
+                   " WHERE " + DOCUMENTS_TABLE + "." + ID + " IS NULL AND " + table + "." + ID + " > ?" +
+                   " ORDER BY " + table + "." + ID + " LIMIT " + limit;
+
+    db.beginTransaction();
+
+    try {
+      PostingWriter writer = new PostingWriter(db);
+
+      cursor = db.rawQuery(query, new String[] {afterId + ""});
+
+      while (cursor != null && cursor.moveToNext()) {
+        lastId = cursor.getLong(0);
+
+        if (!isIndexable(cursor.getLong(3)) || TextUtils.isEmpty(cursor.getString(4))) {
+          continue;
+        }
+
+        try {
+          String body = masterCipher.decryptBody(cursor.getString(4));
+          writer.addDocument(hasher, getRef(type, lastId), cursor.getLong(1), cursor.getLong(2), body);
+        } catch (InvalidMessageException e) {
+          Log.w(TAG, e);
+        }
+      }
+
+      writer.flush();
+      db.setTransactionSuccessful();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+
+      db.endTransaction();
+    }
+
+    return lastId;
+  }
+
+  public void removeMessage(int type, long messageId) {
+    removeDocuments(ID + " = ?", new String[] {getRef(type, messageId) + ""});
+  }
+
+  public void removeThreads(int type, Set<Long> threadIds) {
+    if (threadIds.isEmpty()) return;
+
+    removeDocuments(THREAD_ID + " IN (" + TextUtils.join(", ", threadIds) + ") AND (" + ID + " & 1) = ?",
+                    new String[] {type + ""});
+  }
+
+  /**
+   * @param date the trim boundary in milliseconds.
+   */
+  public void removeMessagesInThreadBeforeDate(int type, long threadId, long date) {
+    removeDocuments(THREAD_ID + " = ? AND " + DATE + " < ? AND (" + ID + " & 1) = ?",
+                    new String[] {threadId + "", date + "", type + ""});
+  }
+
+  public void removeAll(int type) {
+    removeDocuments("(" + ID + " & 1) = ?", new String[] {type + ""});
+  }
+
+  public void clear() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      db.delete(DOCUMENTS_TABLE, null, null);
+      db.delete(POSTINGS_TABLE, null, null);
+      db.delete(TOKENS_TABLE, null, null);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Finds the messages that contain a word starting with each word of the
+   * query, newest first.
+   *
+   * The rarest query token drives the search: its postings are read newest
+   * block first, and each block is intersected with the other tokens'
+   * postings from the same date range, so that only the matching blocks of
+   * the commoner tokens are ever read.  Because
+   * only some prefix lengths are indexed and short words aren't indexed at
+   * all, candidates are then decrypted in small batches and checked against
+   * the query, and the search stops as soon as enough of them match.
+   */
+  public List<SearchResult> search(MasterSecret masterSecret, String query, int limit) {
+    List<SearchResult> results = new LinkedList<>();
+    List<String>       terms   = SearchTokenizer.getTerms(query);
+
+    if (terms.isEmpty()) return results;
+
+    SQLiteDatabase db       = databaseHelper.getReadableDatabase();
+    TokenHasher    hasher   = new TokenHasher(masterSecret);
+    Set<Long>      tokenIds = new HashSet<>();
+
+    for (String term : terms) {
+      String token = SearchTokenizer.getQueryToken(term);
+
+      if (token == null) continue;
+
+      long tokenId = getTokenId(db, hasher.hash(token));
+
+      if (tokenId == -1) return results;
+      else               tokenIds.add(tokenId);
+    }
+
+    if (tokenIds.isEmpty()) return results;
+
+    long         drivingTokenId = getRarestTokenId(db, tokenIds);
+    MasterCipher masterCipher   = new MasterCipher(masterSecret);
+    List<Long>   batch          = new ArrayList<>(VERIFY_BATCH_SIZE);
+    Cursor       cursor         = null;
+
+    if (drivingTokenId == -1) return results;
+
+    try {
+      cursor = db.query(POSTINGS_TABLE, new String[] {POSTINGS}, TOKEN_ID + " = ?",
+                        new String[] {drivingTokenId + ""}, null, null, FIRST_DATE + " DESC");
+
+      while (cursor != null && cursor.moveToNext() && results.size() < limit) {
+        PostingList     postings = PostingList.deserialize(cursor.getBlob(0));
+        List<Set<Long>> filters  = getFilters(db, tokenIds, drivingTokenId,
+                                              postings.getDate(0), postings.getDate(postings.size() - 1));
+
+        if (filters == null) continue;
+
+        for (int i=postings.size()-1;i>=0 && results.size() < limit;i--) {
+          long ref = postings.getRef(i);
+
+          if (!isInAll(filters, ref)) continue;
+
+          batch.add(ref);
+
+          if (batch.size() == VERIFY_BATCH_SIZE) {
+            verify(db, masterCipher, terms, batch, results, limit);
+            batch.clear();
+          }
+        }
+      }
+
+      if (!batch.isEmpty() && results.size() < limit) {
+        verify(db, masterCipher, terms, batch, results, limit);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
+  /**
+   * @return the threads with messages matching the query, most recently
+   *         matched first.
+   */
+  public Set<Long> getMatchingThreadIds(MasterSecret masterSecret, String query) {
+    Set<Long> threadIds = new LinkedHashSet<>();
+
+    for (SearchResult result : search(masterSecret, query, MAX_THREAD_SEARCH_RESULTS)) {
+      threadIds.add(result.getThreadId());
+    }
+
+    return threadIds;
+  }
+
+  private void verify(SQLiteDatabase db, MasterCipher masterCipher, List<String> terms,
+                      List<Long> batch, List<SearchResult> results, int limit)
+  {
+    Map<Long, SearchResult> matches = new HashMap<>();
+
+    for (int type : new int[] {SMS, MMS}) {
+      List<Long> messageIds = new LinkedList<>();
+
+      for (long ref : batch) {
+        if ((ref & 1) == type) messageIds.add(ref >> 1);
+      }
+
+      if (messageIds.isEmpty()) continue;
+
+      Cursor cursor = null;
+
+      try {
+        cursor = db.query(getTable(type), getSourceColumns(type),
+                          getTable(type) + "." + ID + " IN (" + TextUtils.join(", ", messageIds) + ")",
+                          null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          if (!isIndexable(cursor.getLong(3)) || TextUtils.isEmpty(cursor.getString(4))) {
+            continue;
+          }
+
+          try {
+            if (SearchTokenizer.matches(masterCipher.decryptBody(cursor.getString(4)), terms)) {
+              SearchResult result = new SearchResult(type, cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+              matches.put(getRef(type, result.getMessageId()), result);
+            }
+          } catch (InvalidMessageException e) {
+            Log.w(TAG, e);
+          }
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+    }
+
+    for (long ref : batch) {
+      SearchResult result = matches.get(ref);
+
+      if (result != null && results.size() < limit) {
+        results.add(result);
+      }
+    }
+  }
+
+  private void removeDocuments(String where, String[] args) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      PostingWriter writer = new PostingWriter(db);
+      writer.removeDocuments(where, args);
+      writer.flush();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private long getRarestTokenId(SQLiteDatabase db, Set<Long> tokenIds) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(POSTINGS_TABLE, new String[] {TOKEN_ID, "SUM(" + COUNT + ")"},
+                        TOKEN_ID + " IN (" + TextUtils.join(", ", tokenIds) + ")",
+                        null, TOKEN_ID, null, null);
+
+      long rarestTokenId = -1;
+      long rarestCount   = Long.MAX_VALUE;
+      int  found         = 0;
+
+      while (cursor != null && cursor.moveToNext()) {
+        found++;
+
+        if (cursor.getLong(1) < rarestCount) {
+          rarestTokenId = cursor.getLong(0);
+          rarestCount   = cursor.getLong(1);
+        }
+      }
+
+      return found == tokenIds.size() ? rarestTokenId : -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * @return the postings of every token but the driving one within a date
+   *         range, or null if one of them has none there.
+   */
+  private List<Set<Long>> getFilters(SQLiteDatabase db, Set<Long> tokenIds, long drivingTokenId,
+                                     long fromDate, long toDate)
+  {
+    List<Set<Long>> filters = new LinkedList<>();
+
+    for (long tokenId : tokenIds) {
+      if (tokenId == drivingTokenId) continue;
+
+      Set<Long> refs = getRefs(db, tokenId, fromDate, toDate);
+
+      if (refs.isEmpty()) return null;
+      else                filters.add(refs);
+    }
+
+    return filters;
+  }
+
+  /**
+   * Reads a token's postings within a date range.  Blocks hold consecutive
+   * date ranges, so through the (token_id, first_date) index only the blocks
+   * starting in the range are read, along with the last block starting
+   * before it, which may run into the range.
+   */
+  private Set<Long> getRefs(SQLiteDatabase db, long tokenId, long fromDate, long toDate) {
+    Set<Long> refs   = new HashSet<>();
+    Cursor    cursor = null;
+
+    try {
+      cursor = db.query(POSTINGS_TABLE, new String[] {FIRST_DATE}, TOKEN_ID + " = ? AND " + FIRST_DATE + " < ?",
+                        new String[] {tokenId + "", fromDate + ""}, null, null, FIRST_DATE + " DESC", "1");
+
+      long startDate = cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : fromDate;
+
+      if (cursor != null) cursor.close();
+
+      cursor = db.query(POSTINGS_TABLE, new String[] {POSTINGS},
+                        TOKEN_ID + " = ? AND " + FIRST_DATE + " >= ? AND " + FIRST_DATE + " <= ?",
+                        new String[] {tokenId + "", startDate + "", toDate + ""}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        PostingList postings = PostingList.deserialize(cursor.getBlob(0));
+
+        for (int i=0;i<postings.size();i++) {
+          if (postings.getDate(i) >= fromDate && postings.getDate(i) <= toDate) {
+            refs.add(postings.getRef(i));
+          }
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return refs;
+  }
+
+  private static long getTokenId(SQLiteDatabase db, long hash) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(TOKENS_TABLE, new String[] {ID}, HASH + " = ?", new String[] {hash + ""},
+                        null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private static boolean isInAll(List<Set<Long>> filters, long ref) {
+    for (Set<Long> filter : filters) {
+      if (!filter.contains(ref)) return false;
+    }
+
+    return true;
+  }
+
+  private static boolean isIndexable(long type) {
+    return MmsSmsColumns.Types.isSymmetricEncryption(type)   &&
+           !MmsSmsColumns.Types.isDecryptInProgressType(type) &&
+           !MmsSmsColumns.Types.isFailedDecryptType(type)     &&
+           !MmsSmsColumns.Types.isNoRemoteSessionType(type)   &&
+           !MmsSmsColumns.Types.isLegacyType(type)            &&
+           !MmsSmsColumns.Types.isDuplicateMessageType(type)  &&
+           !MmsSmsColumns.Types.isKeyExchangeType(type)       &&
+           !MmsSmsColumns.Types.isEndSessionType(type)        &&
+           !MmsSmsColumns.Types.isGroupUpdate(type)           &&
+           !MmsSmsColumns.Types.isGroupQuit(type);
+  }
+
+  private static long getRef(int type, long messageId) {
+    return (messageId << 1) | type;
+  }
+
+  private static String getTable(int type) {
+    return type == MMS ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+  }
+
+  /**
+   * @return id, thread id, date in milliseconds, type and body.
+   */
+  private static String[] getSourceColumns(int type) {
+    String table = getTable(type);
+
+    if (type == MMS) {
+      return new String[] {table + "." + ID, table + "." + MmsSmsColumns.THREAD_ID,
+                           table + "." + MmsDatabase.DATE_RECEIVED + " * 1000",
+                           table + "." + MmsDatabase.MESSAGE_BOX, table + "." + MmsSmsColumns.BODY};
+    } else {
+      return new String[] {table + "." + ID, table + "." + MmsSmsColumns.THREAD_ID,
+                           table + "." + SmsDatabase.DATE_RECEIVED,
+                           table + "." + SmsDatabase.TYPE, table + "." + MmsSmsColumns.BODY};
+    }
+  }
+
+  private static byte[] serializeTokenIds(long[] tokenIds) {
+    ByteArrayOutputStream out      = new ByteArrayOutputStream(tokenIds.length * 2 + 5);
+    long                  previous = 0;
+
+    PostingList.writeVarint(out, tokenIds.length);
+
+    for (long tokenId : tokenIds) {
+      PostingList.writeVarint(out, tokenId - previous);
+      previous = tokenId;
+    }
+
+    return out.toByteArray();
+  }
+
+  private static long[] deserializeTokenIds(byte[] serialized) {
+    int[]  offset   = new int[1];
+    long[] tokenIds = new long[(int)PostingList.readVarint(serialized, offset)];
+    long   previous = 0;
+
+    for (int i=0;i<tokenIds.length;i++) {
+      previous   += PostingList.readVarint(serialized, offset);
+      tokenIds[i] = previous;
+    }
+
+    return tokenIds;
+  }
+
+  /**
+   * Applies posting changes for one transaction, keeping the blocks it has
+   * loaded so that consecutive changes to the same token don't reread and
+   * rewrite them.  Block boundaries are written immediately so that block
+   * lookups stay correct; block contents are written by {@link #flush()}.
+   */
+  private static class PostingWriter {
+
+    private final SQLiteDatabase   db;
+    private final Map<Long, Block> blocks = new HashMap<>();
+
+    PostingWriter(SQLiteDatabase db) {
+      this.db = db;
+    }
+
+    void addDocument(TokenHasher hasher, long ref, long threadId, long date, String body) {
+      Set<String> tokens   = SearchTokenizer.getIndexTokens(body);
+      long[]      tokenIds = new long[tokens.size()];
+      int         index    = 0;
+
+      for (String token : tokens) {
+        tokenIds[index++] = getOrCreateTokenId(hasher.hash(token));
+      }
+
+      Arrays.sort(tokenIds);
+
+      for (long tokenId : tokenIds) {
+        addPosting(tokenId, date, ref);
+      }
+
+      ContentValues values = new ContentValues(4);
+      values.put(ID, ref);
+      values.put(THREAD_ID, threadId);
+      values.put(DATE, date);
+      values.put(TOKENS, serializeTokenIds(tokenIds));
+
+      db.replace(DOCUMENTS_TABLE, null, values);
+    }
+
+    void removeDocument(long ref) {
+      removeDocuments(ID + " = ?", new String[] {ref + ""});
+    }
+
+    void removeDocuments(String where, String[] args) {
+      Cursor cursor = null;
+
+      try {
+        cursor = db.query(DOCUMENTS_TABLE, new String[] {ID, DATE, TOKENS}, where, args, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          for (long tokenId : deserializeTokenIds(cursor.getBlob(2))) {
+            removePosting(tokenId, cursor.getLong(1), cursor.getLong(0));
+          }
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      db.delete(DOCUMENTS_TABLE, where, args);
+    }
+
+    void flush() {
+      for (Block block : blocks.values()) {
+        if (!block.dirty) continue;
+
+        ContentValues values = new ContentValues(2);
+        values.put(COUNT, block.postings.size());
+        values.put(POSTINGS, block.postings.serialize());
+
+        db.update(POSTINGS_TABLE, values, ID_WHERE, new String[] {block.id + ""});
+        block.dirty = false;
+      }
+    }
+
+    private long getOrCreateTokenId(long hash) {
+      long tokenId = getTokenId(db, hash);
+
+      if (tokenId == -1) {
+        ContentValues values = new ContentValues(1);
+        values.put(HASH, hash);
+
+        tokenId = db.insert(TOKENS_TABLE, null, values);
+      }
+
+      return tokenId;
+    }
+
+    private void addPosting(long tokenId, long date, long ref) {
+      Block block = getBlockForDate(tokenId, date);
+
+      if (block == null) {
+        block = createBlock(tokenId, new PostingList(), date);
+      } else if (date < block.firstDate) {
+        setFirstDate(block, date);
+      }
+
+      if (block.postings.add(date, ref)) {
+        block.dirty = true;
+
+        if (block.postings.size() > MAX_BLOCK_SIZE) {
+          PostingList upper = block.postings.split();
+          createBlock(tokenId, upper, upper.getDate(0));
+        }
+      }
+    }
+
+    private void removePosting(long tokenId, long date, long ref) {
+      Cursor cursor = null;
+
+      try {
+        cursor = db.query(POSTINGS_TABLE, new String[] {ID}, TOKEN_ID + " = ? AND " + FIRST_DATE + " <= ?",
+                          new String[] {tokenId + "", date + ""}, null, null, FIRST_DATE + " DESC");
+
+        while (cursor != null && cursor.moveToNext()) {
+          Block block = getBlock(cursor.getLong(0));
+
+          if (block == null || !block.postings.remove(date, ref)) continue;
+
+          if (block.postings.isEmpty()) {
+            db.delete(POSTINGS_TABLE, ID_WHERE, new String[] {block.id + ""});
+            blocks.remove(block.id);
+          } else {
+            block.dirty = true;
+
+            if (block.postings.getDate(0) != block.firstDate) {
+              setFirstDate(block, block.postings.getDate(0));
+            }
+          }
+
+          return;
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+    }
+
+    /**
+     * @return the block with the latest start at or before the date, or the
+     *         token's earliest block if they all start after it.
+     */
+    private Block getBlockForDate(long tokenId, long date) {
+      Cursor cursor = null;
+
+      try {
+        cursor = db.query(POSTINGS_TABLE, new String[] {ID}, TOKEN_ID + " = ? AND " + FIRST_DATE + " <= ?",
+                          new String[] {tokenId + "", date + ""}, null, null, FIRST_DATE + " DESC", "1");
+
+        if (cursor == null || !cursor.moveToFirst()) {
+          if (cursor != null) cursor.close();
+
+          cursor = db.query(POSTINGS_TABLE, new String[] {ID}, TOKEN_ID + " = ?",
+                            new String[] {tokenId + ""}, null, null, FIRST_DATE + " ASC", "1");
+
+          if (cursor == null || !cursor.moveToFirst()) return null;
+        }
+
+        return getBlock(cursor.getLong(0));
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+    }
+
+    private Block getBlock(long id) {
+      Block block = blocks.get(id);
+
+      if (block != null) return block;
+
+      Cursor cursor = null;
+
+      try {
+        cursor = db.query(POSTINGS_TABLE, new String[] {FIRST_DATE, POSTINGS}, ID_WHERE,
+                          new String[] {id + ""}, null, null, null);
+
+        if (cursor == null || !cursor.moveToFirst()) return null;
+
+        block = new Block(id, cursor.getLong(0), PostingList.deserialize(cursor.getBlob(1)));
+        blocks.put(id, block);
+
+        return block;
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+    }
+
+    private Block createBlock(long tokenId, PostingList postings, long firstDate) {
+      ContentValues values = new ContentValues(4);
+      values.put(TOKEN_ID, tokenId);
+      values.put(FIRST_DATE, firstDate);
+      values.put(COUNT, postings.size());
+      values.put(POSTINGS, postings.serialize());
+
+      Block block = new Block(db.insert(POSTINGS_TABLE, null, values), firstDate, postings);
+      blocks.put(block.id, block);
+
+      return block;
+    }
+
+    private void setFirstDate(Block block, long firstDate) {
+      ContentValues values = new ContentValues(1);
+      values.put(FIRST_DATE, firstDate);
+
+      db.update(POSTINGS_TABLE, values, ID_WHERE, new String[] {block.id + ""});
+      block.firstDate = firstDate;
+    }
+  }
+
+  private static class Block {
+    private final long        id;
+    private final PostingList postings;
+    private       long        firstDate;
+    private       boolean     dirty;
+
+    Block(long id, long firstDate, PostingList postings) {
+      this.id        = id;
+      this.firstDate = firstDate;
+      this.postings  = postings;
+    }
+  }
+
+  private static class TokenHasher {
+
+    private static final String KEY_LABEL = "SearchIndex";
+
+    private final Mac mac;
+
+    TokenHasher(MasterSecret masterSecret) {
+      try {
+        Mac keyMac = Mac.getInstance("HmacSHA256");
+        keyMac.init(new SecretKeySpec(masterSecret.getMacKey().getEncoded(), "HmacSHA256"));
+
+        byte[] searchKey = keyMac.doFinal(KEY_LABEL.getBytes("UTF-8"));
+
+        this.mac = Mac.getInstance("HmacSHA256");
+        this.mac.init(new SecretKeySpec(searchKey, "HmacSHA256"));
+      } catch (NoSuchAlgorithmException | InvalidKeyException | UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    long hash(String token) {
+      try {
+        return Conversions.byteArrayToLong(mac.doFinal(token.getBytes("UTF-8")));
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  public static class SearchResult {
+    private final int  type;
+    private final long messageId;
+    private final long threadId;
+    private final long date;
+
+    public SearchResult(int type, long messageId, long threadId, long date) {
+      this.type      = type;
+      this.messageId = messageId;
+      this.threadId  = threadId;
+      this.date      = date;
+    }
+
+    public int getType() {
+      return type;
+    }
+
+    public long getMessageId() {
+      return messageId;
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    public long getDate() {
+      return date;
+    }
+  }
+}
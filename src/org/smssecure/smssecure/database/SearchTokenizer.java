@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import java.text.Normalizer;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits message bodies and search queries into the terms the search index
+ * works with.
+ *
+ * Terms are lower cased words with their accents stripped.  Rather than every
+ * prefix of every word, only prefixes of {@link #PREFIX_LENGTHS} characters
+ * are indexed, which keeps the index small.  A query term is looked up by its
+ * longest indexed prefix, and the candidates are then checked against the
+ * real message text.
+ */
+class SearchTokenizer {
+
+  static final int MIN_TOKEN_LENGTH = 3;
+
+  private static final int[] PREFIX_LENGTHS = {MIN_TOKEN_LENGTH, 4, 6, 8};
+
+  /**
+   * @return the normalized words of the given text, in order.
+   */
+  static List<String> getTerms(String text) {
+    List<String> terms = new LinkedList<>();
+
+    if (text == null) return terms;
+
+    String normalized = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD)
+                                  .replaceAll("\\p{Mn}+", "");
+    int    start      = -1;
+
+    for (int i=0;i<=normalized.length();i++) {
+      boolean wordCharacter = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+
+      if (wordCharacter && start == -1) {
+        start = i;
+      } else if (!wordCharacter && start != -1) {
+        terms.add(normalized.substring(start, i));
+        start = -1;
+      }
+    }
+
+    return terms;
+  }
+
+  /**
+   * @return the prefixes a message body is indexed under.
+   */
+  static Set<String> getIndexTokens(String body) {
+    Set<String> tokens = new HashSet<>();
+
+    for (String term : getTerms(body)) {
+      for (int length : PREFIX_LENGTHS) {
+        if (term.length() < length) break;
+        tokens.add(term.substring(0, length));
+      }
+    }
+
+    return tokens;
+  }
+
+  /**
+   * @return the indexed prefix a query term is looked up by, or null if the
+   *         term is too short to be looked up on its own.
+   */
+  static String getQueryToken(String term) {
+    String token = null;
+
+    for (int length : PREFIX_LENGTHS) {
+      if (term.length() < length) break;
+      token = term.substring(0, length);
+    }
+
+    return token;
+  }
+
+  /**
+   * @return true if every query term is a prefix of some word in the body.
+   */
+  static boolean matches(String body, List<String> queryTerms) {
+    List<String> bodyTerms = getTerms(body);
+
+    for (String queryTerm : queryTerms) {
+      boolean found = false;
+
+      for (String bodyTerm : bodyTerms) {
+        if (bodyTerm.startsWith(queryTerm)) {
+          found = true;
+          break;
+        }
+      }
+
+      if (!found) return false;
+    }
+
+    return true;
+  }
+}
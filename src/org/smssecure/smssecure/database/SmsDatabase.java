@@ -27,12 +27,11 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
-import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatch;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatchList;
 import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
-import org.smssecure.smssecure.jobs.TrimThreadJob;
+import org.smssecure.smssecure.jobs.TrimThreadScheduler;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.RecipientFormattingException;
@@ -42,16 +41,14 @@ import org.smssecure.smssecure.sms.IncomingKeyExchangeMessage;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
 import org.smssecure.smssecure.util.JsonUtils;
-import org.whispersystems.jobqueue.JobManager;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import static org.smssecure.smssecure.util.Util.canonicalizeNumber;
-
 /**
  * Database for storage of SMS messages.
  *
@@ -85,7 +82,8 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
-    "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
+    "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -97,11 +95,8 @@ public class SmsDatabase extends MessagingDatabase {
       MISMATCHED_IDENTITIES
   };
 
-  private final JobManager jobManager;
-
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
-    this.jobManager = ApplicationContext.getInstance(context).getJobManager();
   }
 
   protected String getTableName() {
@@ -116,9 +111,8 @@ public class SmsDatabase extends MessagingDatabase {
                " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
                " WHERE " + ID + " = ?", new String[] {id+""});
 
-    long threadId = getThreadIdForMessage(id);
+    long threadId = updateThreadSnippet(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
@@ -269,37 +263,46 @@ public class SmsDatabase extends MessagingDatabase {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE);
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor         cursor   = null;
+  /**
+   * Counts delivery receipts against the outgoing messages they match.  The
+   * caller owns the transaction and notifies the updated threads.
+   *
+   * @param receipts canonical address ids of the receipt senders, keyed by sent timestamp.
+   * @param threadIds collects the threads of updated messages.
+   */
+  void incrementDeliveryReceiptCounts(Map<Long, List<Long>> receipts, Set<Long> threadIds) {
+    SQLiteDatabase           database        = databaseHelper.getWritableDatabase();
+    CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
 
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(timestamp)},
-                              null, null, null, null);
-
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          try {
-            String theirAddress = canonicalizeNumber(context, address);
-            String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-
-            if (ourAddress.equals(theirAddress)) {
-              database.execSQL("UPDATE " + TABLE_NAME +
-                               " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
-                               ID + " = ?",
-                               new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-              notifyConversationListeners(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
-            }
-          } catch (InvalidNumberException e) {
-            Log.w("SmsDatabase", e);
+    for (Map.Entry<Long, List<Long>> receipt : receipts.entrySet()) {
+      Cursor cursor = null;
+
+      try {
+        cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
+                                DATE_SENT + " = ?", new String[] {String.valueOf(receipt.getKey())},
+                                null, null, null, null);
+
+        while (cursor.moveToNext()) {
+          if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) continue;
+
+          String address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS));
+          if (address == null) continue;
+
+          int count = Collections.frequency(receipt.getValue(), addressDatabase.getCanonicalAddressId(address));
+
+          if (count > 0) {
+            database.execSQL("UPDATE " + TABLE_NAME +
+                             " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " +
+                             ID + " = ?",
+                             new Object[] {count, cursor.getLong(cursor.getColumnIndexOrThrow(ID))});
+
+            threadIds.add(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
           }
         }
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
   }
 
@@ -328,9 +331,8 @@ public class SmsDatabase extends MessagingDatabase {
                    "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
 
-    long threadId = getThreadIdForMessage(messageId);
+    long threadId = updateThreadSnippet(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
@@ -350,13 +352,25 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, record.getBody().getBody());
     contentValues.put(THREAD_ID, record.getThreadId());
 
-    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-    long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    long           newMessageId;
+
+    db.beginTransaction();
+
+    try {
+      newMessageId = db.insert(TABLE_NAME, null, contentValues);
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(record.getThreadId(),
+                                                                 contentValues.getAsString(BODY),
+                                                                 contentValues.getAsLong(DATE_RECEIVED),
+                                                                 contentValues.getAsLong(TYPE));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId());
     notifyConversationListeners(record.getThreadId());
 
-    jobManager.add(new TrimThreadJob(context, record.getThreadId()));
+    TrimThreadScheduler.getInstance(context).schedule(record.getThreadId());
     reader.close();
     
     return new Pair<>(newMessageId, record.getThreadId());
@@ -431,15 +445,28 @@ public class SmsDatabase extends MessagingDatabase {
     values.put(THREAD_ID, threadId);
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
+    long messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = db.insert(TABLE_NAME, null, values);
 
-    if (unread) {
-      DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
+      if (unread) {
+        DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
+      }
+
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, message.getMessageBody(),
+                                                                 Types.isPushType(type) ? message.getSentTimestampMillis()
+                                                                                        : values.getAsLong(DATE_RECEIVED),
+                                                                 type);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
-    jobManager.add(new TrimThreadJob(context, threadId));
+    TrimThreadScheduler.getInstance(context).schedule(threadId);
 
     return new Pair<>(messageId, threadId);
   }
@@ -467,19 +494,29 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(READ, 1);
     contentValues.put(TYPE, type);
 
-    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-    long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    long           messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, message.getMessageBody(), date, type);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
-    jobManager.add(new TrimThreadJob(context, threadId));
+    TrimThreadScheduler.getInstance(context).schedule(threadId);
 
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  Cursor getMessagesAfter(long lastId, int limit) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ?", new String[] {String.valueOf(lastId)},
+                    null, null, ID, String.valueOf(limit));
   }
 
   Cursor getOutgoingMessages() {
@@ -512,29 +549,85 @@ public class SmsDatabase extends MessagingDatabase {
 
   public void deleteMessage(long messageId) {
     Log.w("MessageDatabase", "Deleting: " + messageId);
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long threadId     = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    SQLiteDatabase db       = databaseHelper.getWritableDatabase();
+    long           threadId = -1;
+    Cursor         cursor   = null;
+
+    db.beginTransaction();
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, TYPE, DATE_RECEIVED, DATE_SENT},
+                        ID_WHERE, new String[] {messageId + ""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        threadId = cursor.getLong(0);
+        long date = Types.isPushType(cursor.getLong(1)) ? cursor.getLong(3) : cursor.getLong(2);
+
+        db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+        DatabaseFactory.getSearchIndexDatabase(context).removeMessage(SearchIndexDatabase.SMS, messageId);
+        PersistentPlaintextCache.getInstance(context).remove(Collections.singleton(messageId));
+        DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, date);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+
+      db.endTransaction();
+    }
+
     notifyConversationListeners(threadId);
   }
 
+  /**
+   * Refreshes the thread snippet after a message's body or type changed.
+   *
+   * @return the message's thread id, or -1 if it no longer exists.
+   */
+  private long updateThreadSnippet(long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, BODY, TYPE, DATE_RECEIVED, DATE_SENT},
+                        ID_WHERE, new String[] {messageId + ""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) return -1;
+
+      long threadId = cursor.getLong(0);
+      long type     = cursor.getLong(2);
+      long date     = Types.isPushType(type) ? cursor.getLong(4) : cursor.getLong(3);
+
+      DatabaseFactory.getThreadDatabase(context).updateSnippetIfLatest(threadId, cursor.getString(1), date, type);
+      return threadId;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   /*package */void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    removeCachedPlaintext(THREAD_ID + " = ?", new String[] {threadId+""});
     db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
+    DatabaseFactory.getSearchIndexDatabase(context).removeThreads(SearchIndexDatabase.SMS, Collections.singleton(threadId));
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
+  /**
+   * Deletes messages received before the given date through the thread/date
+   * index, normally the date of a boundary found by
+   * {@link MmsSmsDatabase#getConversationPageBoundary}.
+   *
+   * @return the number of messages deleted.
+   */
+  /*package*/int deleteMessagesInThreadBeforeDate(long threadId, long date) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = THREAD_ID + " = ? AND (CASE " + TYPE;
-
-    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-      where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-    }
+    String where      = THREAD_ID + " = ? AND " + DATE_RECEIVED + " < ?";
 
-    where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
-
-    db.delete(TABLE_NAME, where, new String[] {threadId + ""});
+    DatabaseFactory.getSearchIndexDatabase(context).removeMessagesInThreadBeforeDate(SearchIndexDatabase.SMS, threadId, date);
+    removeCachedPlaintext(where, new String[] {threadId + "", date + ""});
+    return db.delete(TABLE_NAME, where, new String[] {threadId + "", date + ""});
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
@@ -547,21 +640,52 @@ public class SmsDatabase extends MessagingDatabase {
 
     where = where.substring(0, where.length() - 4);
 
+    removeCachedPlaintext(where, null);
     db.delete(TABLE_NAME, where, null);
+    DatabaseFactory.getSearchIndexDatabase(context).removeThreads(SearchIndexDatabase.SMS, threadIds);
   }
 
   /*package */ void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    DatabaseFactory.getSearchIndexDatabase(context).removeAll(SearchIndexDatabase.SMS);
+    PersistentPlaintextCache.getInstance(context).removeAll();
+  }
+
+  /**
+   * Erases the persistently cached plaintext of the messages about to be
+   * deleted by the given selection.
+   */
+  private void removeCachedPlaintext(String where, String[] args) {
+    PersistentPlaintextCache cache = PersistentPlaintextCache.getInstance(context);
+
+    if (cache.isEmpty()) return;
+
+    List<Long> messageIds = new LinkedList<>();
+    Cursor     cursor     = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, where, args,
+                                                          null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        messageIds.add(cursor.getLong(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    cache.remove(messageIds);
   }
 
-  /*package*/ SQLiteDatabase beginTransaction() {
+  public SQLiteDatabase beginTransaction() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.beginTransaction();
     return database;
   }
 
-  /*package*/ void endTransaction(SQLiteDatabase database) {
+  public void endTransaction(SQLiteDatabase database) {
     database.setTransactionSuccessful();
     database.endTransaction();
   }
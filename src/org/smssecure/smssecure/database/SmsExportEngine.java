@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.model.SmsMessageRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports the SMS table to an {@link XmlBackup} in chunks of rows.
+ *
+ * A reader thread decrypts each chunk while the calling thread writes the
+ * previous one.  The backup is written to a ".partial" file next to its
+ * destination, and after every chunk is flushed an {@link ExportManifest}
+ * records the last exported _id, the number of messages written and the
+ * file length, so an interrupted export picks up where it stopped instead of
+ * starting over.  The header count is rewritten with the final total once
+ * the export completes.
+ */
+class SmsExportEngine {
+
+  private static final String TAG = SmsExportEngine.class.getSimpleName();
+
+  private static final int CHUNK_SIZE           = 500;
+  private static final int MAX_PENDING          = 4;
+  private static final int OFFER_TIMEOUT_MILLIS = 250;
+
+  private static final Chunk END = new Chunk(null, 0);
+
+  private final Context      context;
+  private final MasterSecret masterSecret;
+
+  private final BlockingQueue<Chunk> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+
+  private volatile boolean writing;
+
+  SmsExportEngine(Context context, MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+  }
+
+  void export(File destination) throws IOException {
+    File           partial  = new File(destination.getPath() + ".partial");
+    ExportManifest manifest = ExportManifest.open(new File(destination.getPath() + ".manifest"));
+    long           offset   = manifest.getOffset();
+
+    if (offset <= 0 || manifest.getCount() <= 0 || !partial.exists() || partial.length() < offset) {
+      manifest.reset();
+      offset = 0;
+    } else {
+      Log.w(TAG, "Resuming export after _id " + manifest.getLastId(SmsDatabase.TABLE_NAME));
+    }
+
+    final long       lastId  = manifest.getLastId(SmsDatabase.TABLE_NAME);
+    int              count   = DatabaseFactory.getSmsDatabase(context).getMessageCount();
+    long             written = manifest.getCount();
+    XmlBackup.Writer writer  = new XmlBackup.Writer(partial.getPath(), count, offset);
+    ExecutorService  reader  = Executors.newSingleThreadExecutor();
+
+    writing = true;
+
+    Future<Void> reading = reader.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        read(lastId);
+        return null;
+      }
+    });
+
+    boolean finished = false;
+
+    try {
+      Chunk chunk;
+
+      while ((chunk = pending.take()) != END) {
+        for (XmlBackup.XmlBackupItem item : chunk.items) {
+          writer.writeItem(item);
+        }
+
+        written += chunk.items.size();
+
+        manifest.setOffset(writer.flush());
+        manifest.setLastId(SmsDatabase.TABLE_NAME, chunk.lastId);
+        manifest.setCount(written);
+        manifest.save();
+      }
+
+      reading.get();
+      writer.setCount((int)written);
+      writer.close();
+      finished = true;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)      throw (IOException)e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      throw new IOException(e);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Export interrupted");
+    } finally {
+      writing = false;
+      reading.cancel(true);
+      reader.shutdownNow();
+
+      if (!finished) closeQuietly(writer);
+    }
+
+    if (!partial.renameTo(destination)) {
+      throw new IOException("Failed to move " + partial.getAbsolutePath() + " into place");
+    }
+
+    manifest.delete();
+  }
+
+  private void read(long lastId) throws InterruptedException {
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+
+    try {
+      while (true) {
+        List<XmlBackup.XmlBackupItem> items  = new ArrayList<>(CHUNK_SIZE);
+        EncryptingSmsDatabase.Reader  reader = database.getMessagesAfter(masterSecret, lastId, CHUNK_SIZE);
+        SmsMessageRecord              record;
+
+        try {
+          while ((record = reader.getNext()) != null) {
+            items.add(new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                                  record.getDateReceived(),
+                                                  MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                                  null, record.getDisplayBody().toString(), null,
+                                                  1, record.getDeliveryStatus()));
+            lastId = record.getId();
+          }
+        } finally {
+          reader.close();
+        }
+
+        if (items.isEmpty()) break;
+
+        enqueue(new Chunk(items, lastId));
+      }
+    } finally {
+      enqueue(END);
+    }
+  }
+
+  /**
+   * Waits for room in the queue for as long as the writer is still taking
+   * chunks, so the reader can't block forever once the writer has failed.
+   */
+  private void enqueue(Chunk chunk) throws InterruptedException {
+    while (writing) {
+      if (pending.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return;
+    }
+  }
+
+  private static void closeQuietly(XmlBackup.Writer writer) {
+    try {
+      // Whatever close() appends past the last checkpoint is truncated on resume.
+      writer.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private static class Chunk {
+    private final List<XmlBackup.XmlBackupItem> items;
+    private final long                          lastId;
+
+    public Chunk(List<XmlBackup.XmlBackupItem> items, long lastId) {
+      this.items  = items;
+      this.lastId = lastId;
+    }
+  }
+}
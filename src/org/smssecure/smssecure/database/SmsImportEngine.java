@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.smssecure.smssecure.ApplicationContext;
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.jobs.SearchIndexJob;
+import org.smssecure.smssecure.recipients.RecipientFactory;
+import org.smssecure.smssecure.recipients.Recipients;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports the messages of an {@link XmlBackup} as a pipeline.
+ *
+ * A parser thread reads the backup in batches, a single resolver thread maps
+ * each batch's addresses to thread ids through a memo of the addresses it has
+ * already seen, and a small pool encrypts the batch bodies.  The calling
+ * thread inserts each finished batch, in backup order, through one prepared
+ * statement and commits it as its own transaction.  Threads touched by the
+ * committed batches are updated, and their messages queued for the search
+ * index, even if the import fails part way.
+ */
+class SmsImportEngine {
+
+  private static final String TAG = SmsImportEngine.class.getSimpleName();
+
+  private static final int BATCH_SIZE           = 500;
+  private static final int MAX_PENDING          = 4;
+  private static final int PROGRESS_INTERVAL    = 20;
+  private static final int OFFER_TIMEOUT_MILLIS = 250;
+  private static final int WORKER_COUNT         = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+  private static final Batch END = new Batch(null, null, null);
+
+  private final Context        context;
+  private final MasterCipher   masterCipher;
+  private final SmsDatabase    database;
+  private final ThreadDatabase threadDatabase;
+
+  private final BlockingQueue<Batch> pending   = new ArrayBlockingQueue<>(MAX_PENDING);
+  private final Map<String, Long>    threadIds = new HashMap<>();
+
+  private volatile boolean writing;
+
+  private int  imported;
+  private long startTime;
+
+  SmsImportEngine(Context context, MasterSecret masterSecret) {
+    this.context        = context.getApplicationContext();
+    this.masterCipher   = new MasterCipher(masterSecret);
+    this.database       = DatabaseFactory.getSmsDatabase(context);
+    this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
+  }
+
+  /**
+   * @return the number of messages imported.
+   */
+  int importBackup(final XmlBackup backup) throws IOException, XmlPullParserException {
+    final ExecutorService parser    = Executors.newSingleThreadExecutor();
+    final ExecutorService resolver  = Executors.newSingleThreadExecutor();
+    final ExecutorService encryptor = Executors.newFixedThreadPool(WORKER_COUNT);
+
+    startTime = System.currentTimeMillis();
+    imported  = 0;
+    writing   = true;
+
+    Future<Void> parsing = parser.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        parse(backup, resolver, encryptor);
+        return null;
+      }
+    });
+
+    Set<Long> modifiedThreads = new HashSet<>();
+
+    try {
+      write(modifiedThreads);
+      parsing.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof XmlPullParserException) throw (XmlPullParserException)e.getCause();
+      if (e.getCause() instanceof IOException)            throw (IOException)e.getCause();
+      if (e.getCause() instanceof RuntimeException)       throw (RuntimeException)e.getCause();
+      throw new IOException(e);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Import interrupted");
+    } finally {
+      writing = false;
+      parsing.cancel(true);
+      parser.shutdownNow();
+      resolver.shutdownNow();
+      encryptor.shutdownNow();
+
+      if (!modifiedThreads.isEmpty()) {
+        updateThreads(modifiedThreads);
+        ApplicationContext.getInstance(context).getJobManager().add(new SearchIndexJob(context));
+      }
+    }
+
+    Log.w(TAG, "Imported " + imported + " messages, " + getMessagesPerSecond() + " messages/s");
+    return imported;
+  }
+
+  long getMessagesPerSecond() {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    return imported * 1000L / elapsed;
+  }
+
+  private void parse(XmlBackup backup, ExecutorService resolver, ExecutorService encryptor)
+      throws IOException, XmlPullParserException, InterruptedException
+  {
+    try {
+      List<XmlBackup.XmlBackupItem> items = new ArrayList<>(BATCH_SIZE);
+      XmlBackup.XmlBackupItem       item;
+
+      while ((item = backup.getNext()) != null) {
+        if (!isImportable(item)) continue;
+
+        items.add(item);
+
+        if (items.size() == BATCH_SIZE) {
+          enqueue(submit(items, resolver, encryptor));
+          items = new ArrayList<>(BATCH_SIZE);
+        }
+      }
+
+      if (!items.isEmpty()) {
+        enqueue(submit(items, resolver, encryptor));
+      }
+    } finally {
+      enqueue(END);
+    }
+  }
+
+  /**
+   * Waits for room in the queue for as long as the writer is still taking
+   * batches, so the parser can't block forever once the writer has failed.
+   */
+  private void enqueue(Batch batch) throws InterruptedException {
+    while (writing) {
+      if (pending.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return;
+    }
+  }
+
+  private Batch submit(final List<XmlBackup.XmlBackupItem> items,
+                       ExecutorService resolver, ExecutorService encryptor)
+  {
+    Future<long[]> threads = resolver.submit(new Callable<long[]>() {
+      @Override
+      public long[] call() {
+        return resolveThreadIds(items);
+      }
+    });
+
+    Future<String[]> bodies = encryptor.submit(new Callable<String[]>() {
+      @Override
+      public String[] call() {
+        return encryptBodies(items);
+      }
+    });
+
+    return new Batch(items, threads, bodies);
+  }
+
+  private long[] resolveThreadIds(List<XmlBackup.XmlBackupItem> items) {
+    long[] results = new long[items.size()];
+
+    for (int i=0;i<results.length;i++) {
+      String address  = items.get(i).getAddress();
+      Long   threadId = threadIds.get(address);
+
+      if (threadId == null) {
+        Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+        threadId              = threadDatabase.getThreadIdFor(recipients);
+        threadIds.put(address, threadId);
+      }
+
+      results[i] = threadId;
+    }
+
+    return results;
+  }
+
+  private String[] encryptBodies(List<XmlBackup.XmlBackupItem> items) {
+    String[] results = new String[items.size()];
+
+    for (int i=0;i<results.length;i++) {
+      String body = items.get(i).getBody();
+
+      if (body != null && !body.equals("null")) {
+        results[i] = masterCipher.encryptBody(body);
+      }
+    }
+
+    return results;
+  }
+
+  private void write(Set<Long> modifiedThreads) throws InterruptedException, ExecutionException {
+    SQLiteStatement statement  = null;
+    int             batchCount = 0;
+    Batch           batch;
+
+    try {
+      while ((batch = pending.take()) != END) {
+        long[]         threads = batch.threadIds.get();
+        String[]       bodies  = batch.bodies.get();
+        SQLiteDatabase db      = database.beginTransaction();
+
+        try {
+          if (statement == null) {
+            statement = database.createInsertStatement(db);
+          }
+
+          for (int i=0;i<batch.items.size();i++) {
+            statement.clearBindings();
+            bind(statement, batch.items.get(i), bodies[i], threads[i]);
+            statement.executeInsert();
+            modifiedThreads.add(threads[i]);
+          }
+
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+
+        imported += batch.items.size();
+
+        if (++batchCount % PROGRESS_INTERVAL == 0) {
+          Log.w(TAG, "Imported " + imported + " messages, " + getMessagesPerSecond() + " messages/s");
+        }
+      }
+    } finally {
+      if (statement != null) statement.close();
+    }
+  }
+
+  private void updateThreads(Set<Long> threadIds) {
+    SQLiteDatabase db = database.beginTransaction();
+
+    try {
+      for (long threadId : threadIds) {
+        threadDatabase.update(threadId);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void bind(SQLiteStatement statement, XmlBackup.XmlBackupItem item, String body, long threadId) {
+    bindString(statement, 1, item.getAddress());
+    statement.bindNull(2);
+    statement.bindLong(3, item.getDate());
+    statement.bindLong(4, item.getDate());
+    statement.bindLong(5, item.getProtocol());
+    statement.bindLong(6, item.getRead());
+    statement.bindLong(7, item.getStatus());
+    statement.bindLong(8, SmsDatabase.Types.translateFromSystemBaseType(item.getType()) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+    statement.bindNull(9);
+    bindString(statement, 10, item.getSubject());
+    bindString(statement, 11, body);
+    bindString(statement, 12, item.getServiceCenter());
+    statement.bindLong(13, threadId);
+  }
+
+  private static void bindString(SQLiteStatement statement, int index, String value) {
+    if (value == null || value.equals("null")) statement.bindNull(index);
+    else                                       statement.bindString(index, value);
+  }
+
+  private static boolean isImportable(XmlBackup.XmlBackupItem item) {
+    if (item.getAddress() == null || item.getAddress().equals("null")) {
+      return false;
+    }
+
+    long ourType = SmsDatabase.Types.translateFromSystemBaseType(item.getType());
+
+    return ourType == MmsSmsColumns.Types.BASE_INBOX_TYPE ||
+           ourType == MmsSmsColumns.Types.BASE_SENT_TYPE  ||
+           ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
+  }
+
+  private static class Batch {
+    private final List<XmlBackup.XmlBackupItem> items;
+    private final Future<long[]>                threadIds;
+    private final Future<String[]>              bodies;
+
+    public Batch(List<XmlBackup.XmlBackupItem> items, Future<long[]> threadIds, Future<String[]> bodies) {
+      this.items     = items;
+      this.threadIds = threadIds;
+      this.bodies    = bodies;
+    }
+  }
+}
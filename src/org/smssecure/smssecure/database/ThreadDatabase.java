@@ -26,6 +26,7 @@ import android.util.Log;
 
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.database.MmsSmsDatabase.PageBoundary;
 import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.database.model.ThreadRecord;
@@ -35,7 +36,10 @@ import org.smssecure.smssecure.recipients.Recipients;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -127,6 +131,73 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Applies a newly inserted message to its thread's count and snippet without
+   * recounting the conversation.  Callers should invoke this inside the same
+   * transaction as the insert.
+   */
+  public void updateForInsert(long threadId, String body, long date, long type) {
+    long   normalizedDate = date - date % 1000;
+    String isLatest       = "(" + MESSAGE_COUNT + " = 0 OR " + DATE + " <= ?)";
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                   SNIPPET       + " = CASE WHEN " + isLatest + " THEN ? ELSE " + SNIPPET + " END, " +
+                   SNIPPET_TYPE  + " = CASE WHEN " + isLatest + " THEN ? ELSE " + SNIPPET_TYPE + " END, " +
+                   DATE          + " = CASE WHEN " + isLatest + " THEN ? ELSE " + DATE + " END, " +
+                   MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 " +
+                   "WHERE " + ID + " = ?",
+               new Object[] {normalizedDate, body, normalizedDate, type, normalizedDate, normalizedDate, threadId});
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Applies a deleted message to its thread's count.  The snippet is only
+   * reloaded if the deleted message may have been the latest in the thread, and
+   * the thread is removed once its last message is gone.
+   */
+  public void updateForDelete(long threadId, long date) {
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    Cursor         cursor = null;
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 " +
+               "WHERE " + ID + " = ? AND " + MESSAGE_COUNT + " > 0",
+               new Object[] {threadId});
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, DATE}, ID_WHERE,
+                        new String[] {threadId + ""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) return;
+
+      long count      = cursor.getLong(0);
+      long threadDate = cursor.getLong(1);
+
+      if      (count <= 0)                       deleteThread(threadId);
+      else if (threadDate <= date - date % 1000) updateSnippetFromConversation(threadId, count);
+      else                                       notifyConversationListListeners();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Refreshes the snippet after a message's body or type changed, if that
+   * message is the thread's latest.
+   */
+  public void updateSnippetIfLatest(long threadId, String body, long date, long type) {
+    ContentValues contentValues = new ContentValues(2);
+    contentValues.put(SNIPPET, body);
+    contentValues.put(SNIPPET_TYPE, type);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    int updated       = db.update(TABLE_NAME, contentValues, ID + " = ? AND " + DATE + " <= ?",
+                                  new String[] {threadId + "", String.valueOf(date - date % 1000)});
+
+    if (updated > 0) notifyConversationListListeners();
+  }
+
   public void updateSnippet(long threadId, String snippet, long type) {
     ContentValues contentValues = new ContentValues(3);
     contentValues.put(SNIPPET, snippet);
@@ -185,31 +256,33 @@ public class ThreadDatabase extends Database {
     }
   }
 
-  public void trimThread(long threadId, int length) {
+  /**
+   * @return the number of messages removed from the thread.
+   */
+  public int trimThread(long threadId, int length) {
     Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    PageBoundary   boundary       = mmsSmsDatabase.getConversationPageBoundary(threadId, null, length);
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    if (boundary == null || !boundary.hasOlder()) {
+      return 0;
+    }
 
-      if (cursor != null && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(cursor.getCount() - length);
+    Log.w("ThreadDatabase", "Conversation is longer than length!");
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    long lastTweetDate = boundary.getDateReceived();
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+    int reclaimed = DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+    reclaimed    += DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
 
-        update(threadId);
-        notifyConversationListeners(threadId);
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    if (reclaimed > 0) {
+      update(threadId);
+      notifyConversationListeners(threadId);
     }
+
+    return reclaimed;
   }
 
   public void setAllThreadsRead() {
@@ -255,19 +328,33 @@ public class ThreadDatabase extends Database {
   }
 
   public Cursor getFilteredConversationList(List<String> filter) {
-    if (filter == null || filter.size() == 0)
-      return null;
+    return getFilteredConversationList(filter, Collections.<Long>emptySet());
+  }
+
+  /**
+   * @return the conversations with any of the given numbers, along with the
+   *         given threads, most recent first.
+   */
+  public Cursor getFilteredConversationList(List<String> filter, Collection<Long> threadIds) {
+    List<Long> recipientIds = null;
 
-    List<Long> recipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
+    if (filter != null && filter.size() != 0)
+      recipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
 
-    if (recipientIds == null || recipientIds.size() == 0)
+    if (recipientIds == null)
+      recipientIds = new LinkedList<>();
+
+    if (recipientIds.size() == 0 && threadIds.size() == 0)
       return null;
 
-    String selection       = RECIPIENT_IDS + " = ?";
+    String   selection     = "";
     String[] selectionArgs = new String[recipientIds.size()];
 
-    for (int i=0;i<recipientIds.size()-1;i++)
-      selection += (" OR " + RECIPIENT_IDS + " = ?");
+    for (int i=0;i<recipientIds.size();i++)
+      selection += (i == 0 ? "" : " OR ") + RECIPIENT_IDS + " = ?";
+
+    if (threadIds.size() != 0)
+      selection += (selection.length() == 0 ? "" : " OR ") + ID + " IN (" + TextUtils.join(", ", threadIds) + ")";
 
     int i= 0;
     for (long id : recipientIds) {
@@ -307,6 +394,7 @@ public class ThreadDatabase extends Database {
   }
 
   public void deleteAllConversations() {
+    DatabaseFactory.getSearchIndexDatabase(context).clear();
     DatabaseFactory.getSmsDatabase(context).deleteAllThreads();
     DatabaseFactory.getMmsDatabase(context).deleteAllThreads();
     DatabaseFactory.getDraftDatabase(context).clearAllDrafts();
@@ -378,6 +466,11 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  /**
+   * Rebuilds a thread's count and snippet from scratch.  Regular inserts and
+   * deletes keep the summary current incrementally, so this is only the repair
+   * path for bulk changes such as imports, migrations and trims.
+   */
   public void update(long threadId) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
@@ -388,7 +481,12 @@ public class ThreadDatabase extends Database {
       return;
     }
 
-    MmsSmsDatabase.Reader reader = null;
+    updateSnippetFromConversation(threadId, count);
+  }
+
+  private void updateSnippetFromConversation(long threadId, long count) {
+    MmsSmsDatabase        mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader         = null;
 
     try {
       reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
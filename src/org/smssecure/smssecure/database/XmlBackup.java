@@ -9,8 +9,12 @@ import org.xmlpull.v1.XmlPullParserFactory;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -145,25 +149,43 @@ public class XmlBackup {
 
     private static final String  XML_HEADER      = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\" ?>";
     private static final String  CREATED_BY      = "<!-- File Created By SMSSecure -->";
-    private static final String  OPEN_TAG_SMSES  = "<smses count=\"%d\">";
+    private static final String  OPEN_TAG_SMSES  = "<smses count=\"%d\"";
     private static final String  CLOSE_TAG_SMSES = "</smses>";
     private static final String  OPEN_TAG_SMS    = " <sms ";
     private static final String  CLOSE_EMPTYTAG  = "/>";
     private static final String  OPEN_ATTRIBUTE  = "=\"";
     private static final String  CLOSE_ATTRIBUTE = "\" ";
 
+    // Room for any int count, so the count can be rewritten in place.
+    private static final int     COUNT_TAG_WIDTH = 28;
+
     private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
 
     private final BufferedWriter bufferedWriter;
+    private final FileChannel    channel;
 
     public Writer(String path, int count) throws IOException {
-      bufferedWriter = new BufferedWriter(new FileWriter(path, false));
+      this(path, count, 0);
+    }
 
-      bufferedWriter.write(XML_HEADER);
-      bufferedWriter.newLine();
-      bufferedWriter.write(CREATED_BY);
-      bufferedWriter.newLine();
-      bufferedWriter.write(String.format(OPEN_TAG_SMSES, count));
+    /**
+     * @param offset a position previously returned by {@link #flush()} to
+     *               continue an unfinished backup from, or 0 to start over.
+     */
+    public Writer(String path, int count, long offset) throws IOException {
+      channel        = new RandomAccessFile(path, "rw").getChannel();
+      bufferedWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), "UTF-8"));
+
+      channel.truncate(offset);
+      channel.position(offset);
+
+      if (offset <= 0) {
+        bufferedWriter.write(XML_HEADER);
+        bufferedWriter.newLine();
+        bufferedWriter.write(CREATED_BY);
+        bufferedWriter.newLine();
+        bufferedWriter.write(getCountTag(count));
+      }
     }
 
     public void writeItem(XmlBackupItem item) throws IOException {
@@ -192,12 +214,43 @@ public class XmlBackup {
       stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
     }
 
+    /**
+     * @return the length of the backup so far, which is also a safe offset to
+     *         resume it from.
+     */
+    public long flush() throws IOException {
+      bufferedWriter.flush();
+      return channel.size();
+    }
+
     public void close() throws IOException {
       bufferedWriter.newLine();
       bufferedWriter.write(CLOSE_TAG_SMSES);
       bufferedWriter.close();
     }
 
+    /**
+     * Rewrites the count in the header, for a backup that was resumed or
+     * whose messages changed while it was written.
+     */
+    public void setCount(int count) throws IOException {
+      String prefix = XML_HEADER + System.getProperty("line.separator") +
+                      CREATED_BY + System.getProperty("line.separator");
+
+      bufferedWriter.flush();
+      channel.write(ByteBuffer.wrap(getCountTag(count).getBytes("UTF-8")), prefix.getBytes("UTF-8").length);
+    }
+
+    private static String getCountTag(int count) {
+      StringBuilder tag = new StringBuilder(String.format(OPEN_TAG_SMSES, count));
+
+      while (tag.length() < COUNT_TAG_WIDTH - 1) {
+        tag.append(' ');
+      }
+
+      return tag.append('>').toString();
+    }
+
     private String escapeXML(String s) {
       if (TextUtils.isEmpty(s)) return s;
 
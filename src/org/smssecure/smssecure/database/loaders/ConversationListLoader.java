@@ -4,26 +4,42 @@ import android.content.Context;
 import android.database.Cursor;
 
 import org.smssecure.smssecure.contacts.ContactAccessor;
+import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.util.AbstractCursorLoader;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 public class ConversationListLoader extends AbstractCursorLoader {
 
-  private final String filter;
+  private final MasterSecret masterSecret;
+  private final String       filter;
 
   public ConversationListLoader(Context context, String filter) {
+    this(context, null, filter);
+  }
+
+  /**
+   * With a master secret, a filter also matches conversations through the
+   * search index over their message bodies.
+   */
+  public ConversationListLoader(Context context, MasterSecret masterSecret, String filter) {
     super(context);
-    this.filter = filter;
+    this.masterSecret = masterSecret;
+    this.filter       = filter;
   }
 
   @Override
   public Cursor getCursor() {
     if (filter != null && filter.trim().length() != 0) {
-      List<String> numbers = ContactAccessor.getInstance().getNumbersForThreadSearchFilter(context, filter);
+      List<String> numbers   = ContactAccessor.getInstance().getNumbersForThreadSearchFilter(context, filter);
+      Set<Long>    threadIds = masterSecret == null ? Collections.<Long>emptySet()
+                                                    : DatabaseFactory.getSearchIndexDatabase(context)
+                                                                     .getMatchingThreadIds(masterSecret, filter);
 
-      return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers);
+      return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers, threadIds);
     } else {
       return DatabaseFactory.getThreadDatabase(context).getConversationList();
     }
@@ -4,10 +4,28 @@ import android.content.Context;
 import android.database.Cursor;
 
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.MmsSmsDatabase;
+import org.smssecure.smssecure.database.MmsSmsDatabase.PageBoundary;
 import org.smssecure.smssecure.util.AbstractCursorLoader;
 
+/**
+ * Loads a conversation one page at a time, newest messages first.
+ *
+ * The loaded window is keyed on its oldest message, by received date and
+ * then id, so reloads triggered by new messages keep the same lower bound and
+ * simply pick up the new rows at the tail.  {@link #loadOlder()} moves
+ * the lower bound back by another page.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long                     threadId;
+
+  public static final int PAGE_SIZE = 500;
+
+  private final long threadId;
+
+  private volatile PageBoundary from      = null;
+  private volatile boolean      loaded    = false;
+  private volatile boolean      loadOlder = false;
+  private volatile boolean      hasOlder  = false;
 
   public ConversationLoader(Context context, long threadId) {
     super(context);
@@ -16,6 +34,28 @@ public class ConversationLoader extends AbstractCursorLoader {
 
   @Override
   public Cursor getCursor() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    if (!loaded || loadOlder) {
+      PageBoundary boundary = database.getConversationPageBoundary(threadId, loaded ? from : null, PAGE_SIZE);
+
+      from      = boundary;
+      hasOlder  = boundary != null && boundary.hasOlder();
+      loaded    = true;
+      loadOlder = false;
+    }
+
+    return database.getConversation(threadId, from);
+  }
+
+  public boolean hasOlder() {
+    return hasOlder;
+  }
+
+  public void loadOlder() {
+    if (hasOlder && !loadOlder) {
+      loadOlder = true;
+      onContentChanged();
+    }
   }
 }
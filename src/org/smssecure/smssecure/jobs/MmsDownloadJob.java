@@ -17,6 +17,7 @@ import org.smssecure.smssecure.mms.ApnUnavailableException;
 import org.smssecure.smssecure.mms.IncomingLollipopMmsConnection;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
 import org.smssecure.smssecure.mms.IncomingLegacyMmsConnection;
+import org.smssecure.smssecure.mms.EncryptedPartSink;
 import org.smssecure.smssecure.mms.IncomingMmsConnection;
 import org.smssecure.smssecure.mms.MmsRadioException;
 import org.smssecure.smssecure.notifications.MessageNotifier;
@@ -36,6 +37,7 @@ import java.util.concurrent.TimeUnit;
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.MultimediaMessagePdu;
 import ws.com.google.android.mms.pdu.NotificationInd;
+import ws.com.google.android.mms.pdu.PduBody;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 public class MmsDownloadJob extends MasterSecretJob {
@@ -87,12 +89,16 @@ public class MmsDownloadJob extends MasterSecretJob {
 
     Log.w(TAG, "Downloading mms at " + Uri.parse(contentLocation).getHost());
 
+    EncryptedPartSink partSink = new EncryptedPartSink(context, masterSecret);
+    PduBody           stored   = null;
+
     try {
-      RetrieveConf retrieveConf = getMmsConnection(context).retrieve(contentLocation, transactionId);
+      RetrieveConf retrieveConf = getMmsConnection(context).retrieve(contentLocation, transactionId, partSink);
       if (retrieveConf == null) {
         throw new MmsException("RetrieveConf was null");
       }
       storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieveConf);
+      stored = retrieveConf.getBody();
     } catch (ApnUnavailableException e) {
       Log.w(TAG, e);
       handleDownloadError(masterSecret, messageId, threadId, MmsDatabase.Status.DOWNLOAD_APN_UNAVAILABLE,
@@ -119,6 +125,8 @@ public class MmsDownloadJob extends MasterSecretJob {
     } catch (InvalidMessageException e) {
       Log.w(TAG, e);
       database.markAsDecryptFailed(messageId, threadId);
+    } finally {
+      partSink.release(stored);
     }
   }
 
@@ -13,6 +13,7 @@ import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.mms.ApnUnavailableException;
+import org.smssecure.smssecure.mms.EncryptedPartSource;
 import org.smssecure.smssecure.mms.MediaConstraints;
 import org.smssecure.smssecure.mms.MmsSendResult;
 import org.smssecure.smssecure.mms.OutgoingLegacyMmsConnection;
@@ -35,6 +36,7 @@ import java.io.IOException;
 import java.util.Arrays;
 
 import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.PduComposer;
 import ws.com.google.android.mms.pdu.PduHeaders;
@@ -71,8 +73,8 @@ public class MmsSendJob extends SendJob {
     try {
       validateDestinations(message);
 
-      final byte[]        pduBytes = getPduBytes(masterSecret, message);
-      final SendConf      sendConf = getMmsConnection(context).send(pduBytes);
+      final ComposedPdu   pdu      = getComposedPdu(masterSecret, message);
+      final SendConf      sendConf = getMmsConnection(context).send(pdu);
       final MmsSendResult result   = getSendResult(sendConf, message);
 
       if (result.isUpgradedSecure()) {
@@ -112,15 +114,21 @@ public class MmsSendJob extends SendJob {
     }
   }
 
-  private byte[] getPduBytes(MasterSecret masterSecret, SendReq message)
+  /**
+   * Secure MMS are encrypted as a whole, so their parts are read into memory.
+   * Otherwise parts stay in storage, and are streamed from it as the PDU is sent,
+   * except for parts that had to be resized, which are sent from memory.
+   */
+  private ComposedPdu getComposedPdu(MasterSecret masterSecret, SendReq message)
       throws IOException, UndeliverableMessageException, InsecureFallbackApprovalException
   {
-    String number = TelephonyUtil.getManager(context).getLine1Number();
+    String  number = TelephonyUtil.getManager(context).getLine1Number();
+    boolean secure = MmsDatabase.Types.isSecureType(message.getDatabaseMessageBox());
 
-    message = getResolvedMessage(masterSecret, message, MediaConstraints.MMS_CONSTRAINTS, true);
+    message = getResolvedMessage(masterSecret, message, MediaConstraints.MMS_CONSTRAINTS, secure);
     message.setBody(SmilUtil.getSmilBody(message.getBody()));
 
-    if (MmsDatabase.Types.isSecureType(message.getDatabaseMessageBox())) {
+    if (secure) {
       Log.w(TAG, "Encrypting MMS...");
       message        = getEncryptedMessage(masterSecret, message);
     }
@@ -128,12 +136,12 @@ public class MmsSendJob extends SendJob {
     if (number != null && number.trim().length() != 0) {
       message.setFrom(new EncodedStringValue(number));
     }
-    byte[] pduBytes = new PduComposer(context, message).make();
-    if (pduBytes == null) {
+    ComposedPdu pdu = new PduComposer(context, message).makeStreaming(new EncryptedPartSource(context, masterSecret));
+    if (pdu == null) {
       throw new UndeliverableMessageException("PDU composition failed, null payload");
     }
 
-    return pduBytes;
+    return pdu;
   }
 
   private MmsSendResult getSendResult(SendConf conf, SendReq message)
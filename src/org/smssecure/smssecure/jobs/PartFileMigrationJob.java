@@ -0,0 +1,42 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+public class PartFileMigrationJob extends MasterSecretJob {
+
+  private static final String TAG = PartFileMigrationJob.class.getSimpleName();
+
+  public PartFileMigrationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withPersistence()
+                                .withGroupId(PartFileMigrationJob.class.getSimpleName())
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    DatabaseFactory.getPartDatabase(context).migrateLegacyParts(masterSecret);
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Legacy part migration canceled, parts will be migrated as they're read.");
+  }
+}
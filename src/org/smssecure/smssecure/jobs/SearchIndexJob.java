@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.SearchIndexDatabase;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Indexes messages the search index doesn't cover yet: everything stored
+ * before the index existed, and messages that were stored while locked.
+ */
+public class SearchIndexJob extends MasterSecretJob {
+
+  private static final String TAG = SearchIndexJob.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 200;
+
+  public SearchIndexJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(SearchIndexJob.class.getSimpleName())
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    SearchIndexDatabase database = DatabaseFactory.getSearchIndexDatabase(context);
+
+    for (int type : new int[] {SearchIndexDatabase.SMS, SearchIndexDatabase.MMS}) {
+      long lastId = 0;
+
+      while ((lastId = database.backfill(masterSecret, type, lastId, BATCH_SIZE)) != -1) {
+        Log.w(TAG, "Indexed through message: " + lastId + " of type: " + type);
+      }
+    }
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Search indexing canceled, it will resume on the next unlock.");
+  }
+}
@@ -73,13 +73,13 @@ public abstract class SendJob extends MasterSecretJob {
       resizedData = getResizedPartData(masterSecret, constraints, part);
     }
 
-    if (toMemory && part.getDataUri() != null) {
-      part.setData(resizedData != null ? resizedData : MediaUtil.getPartData(context, masterSecret, part));
-    }
-
     if (resizedData != null) {
+      part.setData(resizedData);
       part.setDataSize(resizedData.length);
+    } else if (toMemory && part.getDataUri() != null) {
+      part.setData(MediaUtil.getPartData(context, masterSecret, part));
     }
+
     return part;
   }
 
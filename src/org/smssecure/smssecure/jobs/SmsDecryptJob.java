@@ -64,9 +64,13 @@ public class SmsDecryptJob extends MasterSecretJob {
   public void onRun(MasterSecret masterSecret) throws NoSuchMessageException {
     EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
 
+    if (SmsDecryptPipeline.getInstance(context).process(masterSecret, messageId)) {
+      return;
+    }
+
     try {
       SmsMessageRecord    record    = database.getMessage(masterSecret, messageId);
-      IncomingTextMessage message   = createIncomingTextMessage(masterSecret, record);
+      IncomingTextMessage message   = createIncomingTextMessage(context, masterSecret, record);
       long                messageId = record.getId();
       long                threadId  = record.getThreadId();
 
@@ -173,7 +177,7 @@ public class SmsDecryptJob extends MasterSecretJob {
     }
   }
 
-  private String getAsymmetricDecryptedBody(MasterSecret masterSecret, String body)
+  private static String getAsymmetricDecryptedBody(Context context, MasterSecret masterSecret, String body)
       throws InvalidMessageException
   {
     try {
@@ -186,13 +190,13 @@ public class SmsDecryptJob extends MasterSecretJob {
     }
   }
 
-  private IncomingTextMessage createIncomingTextMessage(MasterSecret masterSecret, SmsMessageRecord record)
+  static IncomingTextMessage createIncomingTextMessage(Context context, MasterSecret masterSecret, SmsMessageRecord record)
       throws InvalidMessageException
   {
     String plaintextBody = record.getBody().getBody();
 
     if (record.isAsymmetricEncryption()) {
-      plaintextBody = getAsymmetricDecryptedBody(masterSecret, record.getBody().getBody());
+      plaintextBody = getAsymmetricDecryptedBody(context, masterSecret, record.getBody().getBody());
     }
 
     IncomingTextMessage message = new IncomingTextMessage(record.getRecipients().getPrimaryRecipient().getNumber(),
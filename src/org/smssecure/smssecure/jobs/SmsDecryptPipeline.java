@@ -0,0 +1,330 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.SecurityEvent;
+import org.smssecure.smssecure.crypto.SmsCipher;
+import org.smssecure.smssecure.crypto.storage.SMSSecureAxolotlStore;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.EncryptingSmsDatabase;
+import org.smssecure.smssecure.database.NoSuchMessageException;
+import org.smssecure.smssecure.database.SmsDatabase;
+import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.notifications.MessageNotifier;
+import org.smssecure.smssecure.sms.IncomingEncryptedMessage;
+import org.smssecure.smssecure.sms.IncomingPreKeyBundleMessage;
+import org.smssecure.smssecure.sms.IncomingTextMessage;
+import org.whispersystems.libaxolotl.DuplicateMessageException;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+import org.whispersystems.libaxolotl.InvalidVersionException;
+import org.whispersystems.libaxolotl.LegacyMessageException;
+import org.whispersystems.libaxolotl.NoSessionException;
+import org.whispersystems.libaxolotl.UntrustedIdentityException;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Drains the backlog of secure SMS that arrived while the app was locked.
+ *
+ * The first {@link SmsDecryptJob} to run after unlock decrypts every
+ * pending message in one pass instead of one job at a time.  Messages
+ * are grouped by sender and each sender's messages are decrypted in
+ * order on one thread, so session ratchets advance in the order the
+ * messages arrived, while different senders are decrypted in parallel.
+ * Results are committed in batched transactions, and the notification
+ * is updated once at the end.  The backlog is drained once per unlock:
+ * the remaining jobs for drained messages, including ones left pending
+ * on an untrusted identity, return without touching them again, and
+ * messages that arrive after the drain are processed by their own jobs.
+ *
+ * Key exchange and end session messages can have side effects beyond
+ * their own row, so they are still processed by their own jobs.
+ */
+class SmsDecryptPipeline {
+
+  private static final String TAG = SmsDecryptPipeline.class.getSimpleName();
+
+  private static final int COMMIT_BATCH_SIZE = 32;
+  private static final int WORKER_COUNT      = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private static SmsDecryptPipeline instance;
+
+  private final Context         context;
+  private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_COUNT);
+  private final Set<Long>       drained = new HashSet<>();
+
+  private MasterSecret drainedSecret;
+
+  public static synchronized SmsDecryptPipeline getInstance(Context context) {
+    if (instance == null) {
+      instance = new SmsDecryptPipeline(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private SmsDecryptPipeline(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * @return true if the message was handled by this or an earlier drain of the
+   *         backlog, false if the caller should process it on its own.
+   */
+  public synchronized boolean process(MasterSecret masterSecret, long messageId)
+      throws NoSuchMessageException
+  {
+    if (masterSecret == drainedSecret && drained.contains(messageId)) {
+      return true;
+    }
+
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    SmsMessageRecord      record   = database.getMessage(masterSecret, messageId);
+
+    if (isAlreadyProcessed(record)) {
+      Log.w(TAG, "Message already processed: " + messageId);
+      return true;
+    }
+
+    if (!isPipelined(record) || masterSecret == drainedSecret) {
+      return false;
+    }
+
+    drainedSecret = masterSecret;
+    drained.clear();
+
+    drain(masterSecret);
+    return true;
+  }
+
+  private void drain(final MasterSecret masterSecret) {
+    long                                start   = System.currentTimeMillis();
+    Map<String, List<SmsMessageRecord>> senders = getBacklogBySender(masterSecret);
+    List<Future<List<DecryptResult>>>   pending = new LinkedList<>();
+    Set<Long>                           updated = new HashSet<>();
+    int                                 count   = 0;
+
+    for (final List<SmsMessageRecord> records : senders.values()) {
+      for (SmsMessageRecord record : records) {
+        drained.add(record.getId());
+      }
+
+      pending.add(workers.submit(new Callable<List<DecryptResult>>() {
+        @Override
+        public List<DecryptResult> call() {
+          return decrypt(masterSecret, records);
+        }
+      }));
+    }
+
+    for (Future<List<DecryptResult>> future : pending) {
+      try {
+        List<DecryptResult> results = future.get();
+
+        commit(masterSecret, results, updated);
+        count += results.size();
+      } catch (InterruptedException | ExecutionException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    for (long threadId : updated) {
+      SecurityEvent.broadcastSecurityUpdateEvent(context, threadId);
+    }
+
+    Log.w(TAG, "Drained " + count + " messages from " + senders.size() + " senders in " +
+               (System.currentTimeMillis() - start) + "ms");
+
+    if (count > 0) {
+      MessageNotifier.updateNotification(context, masterSecret);
+    }
+  }
+
+  private Map<String, List<SmsMessageRecord>> getBacklogBySender(MasterSecret masterSecret) {
+    EncryptingSmsDatabase               database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    List<SmsMessageRecord>              backlog  = new LinkedList<>();
+    Map<String, List<SmsMessageRecord>> senders  = new LinkedHashMap<>();
+    SmsDatabase.Reader                  reader   = null;
+    SmsMessageRecord                    record;
+
+    try {
+      reader = database.getDecryptInProgressMessages(masterSecret);
+
+      while ((record = reader.getNext()) != null) {
+        if (isPipelined(record)) backlog.add(record);
+      }
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+
+    Collections.sort(backlog, new Comparator<SmsMessageRecord>() {
+      @Override
+      public int compare(SmsMessageRecord lhs, SmsMessageRecord rhs) {
+        return Long.valueOf(lhs.getId()).compareTo(rhs.getId());
+      }
+    });
+
+    for (SmsMessageRecord pending : backlog) {
+      String                 sender  = pending.getIndividualRecipient().getNumber();
+      List<SmsMessageRecord> records = senders.get(sender);
+
+      if (records == null) {
+        records = new LinkedList<>();
+        senders.put(sender, records);
+      }
+
+      records.add(pending);
+    }
+
+    return senders;
+  }
+
+  private List<DecryptResult> decrypt(MasterSecret masterSecret, List<SmsMessageRecord> records) {
+    SmsCipher           cipher  = new SmsCipher(new SMSSecureAxolotlStore(context, masterSecret));
+    List<DecryptResult> results = new LinkedList<>();
+
+    for (SmsMessageRecord record : records) {
+      results.add(decrypt(masterSecret, cipher, record));
+    }
+
+    return results;
+  }
+
+  private DecryptResult decrypt(MasterSecret masterSecret, SmsCipher cipher, SmsMessageRecord record) {
+    long messageId = record.getId();
+    long threadId  = record.getThreadId();
+
+    try {
+      IncomingTextMessage message = SmsDecryptJob.createIncomingTextMessage(context, masterSecret, record);
+
+      if (message.isPreKeyBundle()) {
+        IncomingEncryptedMessage plaintext = cipher.decrypt(context, (IncomingPreKeyBundleMessage)message);
+        return new DecryptResult(messageId, threadId, DecryptResult.UPDATE_BUNDLE_BODY, plaintext.getMessageBody());
+      } else if (message.isSecureMessage()) {
+        IncomingTextMessage plaintext = cipher.decrypt(context, message);
+        return new DecryptResult(messageId, threadId, DecryptResult.UPDATE_BODY, plaintext.getMessageBody());
+      } else {
+        return new DecryptResult(messageId, threadId, DecryptResult.UPDATE_BODY, message.getMessageBody());
+      }
+    } catch (LegacyMessageException e) {
+      Log.w(TAG, e);
+      return new DecryptResult(messageId, threadId, DecryptResult.MARK_LEGACY, null);
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, e);
+      return new DecryptResult(messageId, threadId, DecryptResult.MARK_FAILED, null);
+    } catch (DuplicateMessageException e) {
+      Log.w(TAG, e);
+      return new DecryptResult(messageId, threadId, DecryptResult.MARK_DUPLICATE, null);
+    } catch (NoSessionException e) {
+      Log.w(TAG, e);
+      return new DecryptResult(messageId, threadId, DecryptResult.MARK_NO_SESSION, null);
+    } catch (InvalidVersionException e) {
+      Log.w(TAG, e);
+      return new DecryptResult(messageId, threadId, DecryptResult.MARK_INVALID_VERSION, null);
+    } catch (UntrustedIdentityException e) {
+      Log.w(TAG, e);
+      return new DecryptResult(messageId, threadId, DecryptResult.NONE, null);
+    }
+  }
+
+  private void commit(MasterSecret masterSecret, List<DecryptResult> results, Set<Long> securityUpdates) {
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+
+    for (int i=0;i<results.size();i+=COMMIT_BATCH_SIZE) {
+      SQLiteDatabase transaction = database.beginTransaction();
+
+      try {
+        for (DecryptResult result : results.subList(i, Math.min(results.size(), i + COMMIT_BATCH_SIZE))) {
+          switch (result.action) {
+            case DecryptResult.UPDATE_BODY:
+              database.updateMessageBody(masterSecret, result.messageId, result.body);
+              break;
+            case DecryptResult.UPDATE_BUNDLE_BODY:
+              database.updateBundleMessageBody(masterSecret, result.messageId, result.body);
+              securityUpdates.add(result.threadId);
+              break;
+            case DecryptResult.MARK_LEGACY:          database.markAsLegacyVersion(result.messageId);             break;
+            case DecryptResult.MARK_FAILED:          database.markAsDecryptFailed(result.messageId);             break;
+            case DecryptResult.MARK_DUPLICATE:       database.markAsDecryptDuplicate(result.messageId);          break;
+            case DecryptResult.MARK_NO_SESSION:      database.markAsNoSession(result.messageId);                 break;
+            case DecryptResult.MARK_INVALID_VERSION: database.markAsInvalidVersionKeyExchange(result.messageId); break;
+          }
+        }
+      } finally {
+        database.endTransaction(transaction);
+      }
+    }
+  }
+
+  /**
+   * Messages drained by the pipeline: secure messages and prekey bundles that are
+   * still waiting on remote decryption, and plaintext messages that were stored
+   * asymmetrically encrypted while locked.
+   */
+  private static boolean isPipelined(SmsMessageRecord record) {
+    return SmsDatabase.Types.isDecryptInProgressType(record.getType()) &&
+           !record.isEndSession()                                     &&
+           (!record.isKeyExchange() || record.isBundleKeyExchange());
+  }
+
+  private static boolean isAlreadyProcessed(SmsMessageRecord record) {
+    return !SmsDatabase.Types.isDecryptInProgressType(record.getType()) &&
+           !record.isEndSession()                                      &&
+           !record.isKeyExchange();
+  }
+
+  private static class DecryptResult {
+    private static final int NONE                 = 0;
+    private static final int UPDATE_BODY          = 1;
+    private static final int UPDATE_BUNDLE_BODY   = 2;
+    private static final int MARK_LEGACY          = 3;
+    private static final int MARK_FAILED          = 4;
+    private static final int MARK_DUPLICATE       = 5;
+    private static final int MARK_NO_SESSION      = 6;
+    private static final int MARK_INVALID_VERSION = 7;
+
+    private final long   messageId;
+    private final long   threadId;
+    private final int    action;
+    private final String body;
+
+    public DecryptResult(long messageId, long threadId, int action, String body) {
+      this.messageId = messageId;
+      this.threadId  = threadId;
+      this.action    = action;
+      this.body      = body;
+    }
+  }
+}
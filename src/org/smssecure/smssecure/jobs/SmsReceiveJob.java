@@ -98,9 +98,10 @@ public class SmsReceiveJob extends ContextJob {
 
     IncomingTextMessage message =  new IncomingTextMessage(messages);
 
-    if (WirePrefix.isEncryptedMessage(message.getMessageBody()) ||
-        WirePrefix.isKeyExchange(message.getMessageBody())      ||
-        WirePrefix.isPreKeyBundle(message.getMessageBody())     ||
+    if (WirePrefix.isEncryptedMessage(message.getMessageBody())     ||
+        WirePrefix.isGsm7EncryptedMessage(message.getMessageBody()) ||
+        WirePrefix.isKeyExchange(message.getMessageBody())          ||
+        WirePrefix.isPreKeyBundle(message.getMessageBody())         ||
         WirePrefix.isEndSession(message.getMessageBody()))
     {
       return Optional.fromNullable(multipartMessageHandler.processPotentialMultipartMessage(message));
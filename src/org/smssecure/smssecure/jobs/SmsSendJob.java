@@ -173,7 +173,7 @@ public class SmsSendJob extends SendJob {
       throws InsecureFallbackApprovalException
   {
     try {
-      return new SmsCipher(new SMSSecureAxolotlStore(context, masterSecret)).encrypt(message);
+      return new SmsCipher(new SMSSecureAxolotlStore(context, masterSecret)).encrypt(context, message);
     } catch (NoSessionException e) {
       throw new InsecureFallbackApprovalException(e);
     }
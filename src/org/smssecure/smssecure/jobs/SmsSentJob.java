@@ -16,6 +16,7 @@ import org.smssecure.smssecure.database.model.SmsMessageRecord;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.service.SmsDeliveryListener;
+import org.smssecure.smssecure.sms.SecureSmsCapabilities;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libaxolotl.state.SessionStore;
 
@@ -84,6 +85,7 @@ public class SmsSentJob extends MasterSecretJob {
             Log.w(TAG, "Ending session...");
             SessionStore sessionStore = new SMSSecureSessionStore(context, masterSecret);
             sessionStore.deleteAllSessions(record.getIndividualRecipient().getNumber());
+            SecureSmsCapabilities.reset(context, record.getIndividualRecipient().getNumber());
             SecurityEvent.broadcastSecurityUpdateEvent(context, record.getThreadId());
           }
 
@@ -50,7 +50,8 @@ public class TrimThreadJob extends Job {
     if (!trimmingEnabled)
       return;
 
-    DatabaseFactory.getThreadDatabase(context).trimThread(threadId, threadLengthLimit);
+    int reclaimed = DatabaseFactory.getThreadDatabase(context).trimThread(threadId, threadLengthLimit);
+    TrimThreadScheduler.getInstance(context).onTrimmed(threadId, reclaimed);
   }
 
   @Override
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.ApplicationContext;
+import org.smssecure.smssecure.util.SMSSecurePreferences;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces thread trim requests.
+ *
+ * Every message insert asks for its thread to be trimmed.  Requests are
+ * collected per thread and only handed to the {@link org.whispersystems.jobqueue.JobManager}
+ * once the burst has quieted down, so a thread receiving hundreds of
+ * messages is trimmed once rather than once per message.
+ */
+public class TrimThreadScheduler {
+
+  private static final String TAG = TrimThreadScheduler.class.getSimpleName();
+
+  private static final long DEBOUNCE_MILLIS  = 2000;
+  private static final long MAX_DELAY_MILLIS = 10000;
+
+  private static TrimThreadScheduler instance;
+
+  private final Context                  context;
+  private final Set<Long>                pending   = new LinkedHashSet<>();
+  private final ScheduledExecutorService timer     = Executors.newSingleThreadScheduledExecutor();
+  private final AtomicLong               reclaimed = new AtomicLong(0);
+
+  private ScheduledFuture<?> flush;
+  private long               firstPendingTime;
+
+  public static synchronized TrimThreadScheduler getInstance(Context context) {
+    if (instance == null) {
+      instance = new TrimThreadScheduler(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private TrimThreadScheduler(Context context) {
+    this.context = context;
+  }
+
+  public synchronized void schedule(long threadId) {
+    if (!SMSSecurePreferences.isThreadLengthTrimmingEnabled(context)) return;
+
+    long now = System.currentTimeMillis();
+
+    if (pending.isEmpty()) firstPendingTime = now;
+    pending.add(threadId);
+
+    if (flush != null) {
+      if (now - firstPendingTime >= MAX_DELAY_MILLIS) return;
+      flush.cancel(false);
+    }
+
+    flush = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the number of messages removed by trims since the process started.
+   */
+  public long getReclaimedCount() {
+    return reclaimed.get();
+  }
+
+  void onTrimmed(long threadId, int count) {
+    if (count > 0) {
+      Log.w(TAG, "Reclaimed " + count + " messages from thread: " + threadId);
+    }
+
+    reclaimed.addAndGet(count);
+  }
+
+  private void flush() {
+    Set<Long> threadIds;
+
+    synchronized (this) {
+      threadIds = new LinkedHashSet<>(pending);
+      pending.clear();
+      flush = null;
+    }
+
+    for (long threadId : threadIds) {
+      ApplicationContext.getInstance(context).getJobManager().add(new TrimThreadJob(context, threadId));
+    }
+  }
+}
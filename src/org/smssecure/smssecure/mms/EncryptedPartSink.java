@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.mms;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.protocol.WirePrefix;
+import org.smssecure.smssecure.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import ws.com.google.android.mms.ContentType;
+import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.EncodedStringValue;
+import ws.com.google.android.mms.pdu.PduBody;
+import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduPart;
+import ws.com.google.android.mms.pdu.PduPartSink;
+
+/**
+ * Writes the media parts of a downloaded MMS straight to encrypted part
+ * storage while the PDU is still being parsed.
+ *
+ * Text parts stay in memory since the message body is read from them, and
+ * secure MMS are left alone entirely since they are decrypted as a whole.
+ * Files written for a download that is never stored must be released.
+ */
+public class EncryptedPartSink implements PduPartSink {
+
+  private static final String TAG = EncryptedPartSink.class.getSimpleName();
+
+  private final Context      context;
+  private final MasterSecret masterSecret;
+  private final List<File>   written = new LinkedList<>();
+
+  public EncryptedPartSink(Context context, MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+  }
+
+  @Override
+  public boolean acceptsPdu(PduHeaders headers) {
+    EncodedStringValue subject = headers.getEncodedStringValue(PduHeaders.SUBJECT);
+    return subject == null || !WirePrefix.isEncryptedMmsSubject(subject.getString());
+  }
+
+  @Override
+  public boolean acceptsPart(PduPart part) {
+    String contentType = Util.toIsoString(part.getContentType());
+
+    return ContentType.isImageType(contentType) ||
+           ContentType.isAudioType(contentType) ||
+           ContentType.isVideoType(contentType);
+  }
+
+  @Override
+  public synchronized void write(PduPart part, InputStream data, int length) throws IOException {
+    try {
+      DatabaseFactory.getPartDatabase(context).writeEncryptedPartData(masterSecret, part, data);
+      written.add(part.getEncryptedDataFile());
+    } catch (MmsException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Deletes every file written for a part that did not end up stored, either
+   * because the download failed or because it was retried.
+   *
+   * @param stored the body that was stored, or null if nothing was.
+   */
+  public synchronized void release(@Nullable PduBody stored) {
+    Set<File> kept = new HashSet<>();
+
+    for (int i=0;stored != null && i<stored.getPartsNum();i++) {
+      File file = stored.getPart(i).getEncryptedDataFile();
+      if (file != null) kept.add(file);
+    }
+
+    for (File file : written) {
+      if (!kept.contains(file) && !file.delete()) {
+        Log.w(TAG, "Failed to delete " + file.getAbsolutePath());
+      }
+    }
+
+    written.clear();
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.mms;
+
+import android.content.Context;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import ws.com.google.android.mms.pdu.PduPart;
+import ws.com.google.android.mms.pdu.PduPartSource;
+
+/**
+ * Decrypts the parts of an outgoing MMS from part storage as the composed
+ * PDU is written to the network.
+ */
+public class EncryptedPartSource implements PduPartSource {
+
+  private final Context      context;
+  private final MasterSecret masterSecret;
+
+  public EncryptedPartSource(Context context, MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+  }
+
+  @Override
+  public InputStream getPartData(PduPart part) throws IOException {
+    InputStream in = PartAuthority.getPartStream(context, masterSecret, part.getDataUri());
+
+    if (in == null) {
+      throw new FileNotFoundException("No data for part: " + part.getDataUri());
+    }
+
+    return in;
+  }
+}
@@ -25,11 +25,11 @@ import android.util.Log;
 import android.util.Pair;
 
 import org.smssecure.smssecure.R;
-import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.util.BitmapDecodingException;
 import org.smssecure.smssecure.util.LRUCache;
 import org.smssecure.smssecure.util.ListenableFutureTask;
 import org.smssecure.smssecure.util.MediaUtil;
+import org.smssecure.smssecure.util.TaskScheduler;
 import org.smssecure.smssecure.crypto.MasterSecret;
 
 import java.io.IOException;
@@ -100,7 +100,7 @@ public class ImageSlide extends Slide {
       }
     };
     ListenableFutureTask<Pair<Drawable,Boolean>> futureTask = new ListenableFutureTask<>(slideCallable);
-    MmsDatabase.slideResolver.execute(futureTask);
+    TaskScheduler.getInstance().execute(TaskScheduler.Domain.SLIDES, TaskScheduler.Priority.VISIBLE, futureTask);
     return futureTask;
   }
 
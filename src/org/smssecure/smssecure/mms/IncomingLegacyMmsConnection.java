@@ -28,6 +28,7 @@ import org.apache.http.client.methods.HttpGetHC4;
 import org.apache.http.client.methods.HttpUriRequest;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
 import ws.com.google.android.mms.InvalidHeaderValueException;
@@ -35,6 +36,7 @@ import ws.com.google.android.mms.pdu.NotifyRespInd;
 import ws.com.google.android.mms.pdu.PduComposer;
 import ws.com.google.android.mms.pdu.PduHeaders;
 import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPartSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 @SuppressWarnings("deprecation")
@@ -58,13 +60,15 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
   }
 
   @Override
-  public @Nullable RetrieveConf retrieve(String contentLocation, byte[] transactionId) throws MmsRadioException, ApnUnavailableException, IOException {
+  public @Nullable RetrieveConf retrieve(String contentLocation, byte[] transactionId, @Nullable PduPartSink partSink)
+      throws MmsRadioException, ApnUnavailableException, IOException
+  {
     MmsRadio radio = MmsRadio.getInstance(context);
     Apn contentApn = new Apn(contentLocation, apn.getProxy(), Integer.toString(apn.getPort()), apn.getUsername(), apn.getPassword());
     if (isCdmaDevice()) {
       Log.w(TAG, "Connecting directly...");
       try {
-        return retrieve(contentApn, transactionId, false, false);
+        return retrieve(contentApn, transactionId, partSink, false, false);
       } catch (IOException | ApnUnavailableException e) {
         Log.w(TAG, e);
       }
@@ -77,48 +81,37 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
       Log.w(TAG, "Downloading in MMS mode with proxy...");
 
       try {
-        return retrieve(contentApn, transactionId, true, true);
+        return retrieve(contentApn, transactionId, partSink, true, true);
       } catch (IOException | ApnUnavailableException e) {
         Log.w(TAG, e);
       }
 
       Log.w(TAG, "Downloading in MMS mode without proxy...");
 
-      return retrieve(contentApn, transactionId, true, false);
+      return retrieve(contentApn, transactionId, partSink, true, false);
 
     } finally {
       radio.disconnect();
     }
   }
 
-  public RetrieveConf retrieve(Apn contentApn, byte[] transactionId, boolean usingMmsRadio, boolean useProxyIfAvailable)
+  public RetrieveConf retrieve(Apn contentApn, byte[] transactionId, @Nullable PduPartSink partSink,
+                               boolean usingMmsRadio, boolean useProxyIfAvailable)
       throws IOException, ApnUnavailableException
   {
-    byte[] pdu = null;
+    RetrieveConf retrieved = null;
 
     final boolean useProxy   = useProxyIfAvailable && contentApn.hasProxy();
     final String  targetHost = useProxy
                              ? contentApn.getProxy()
                              : Uri.parse(contentApn.getMmsc()).getHost();
-    try {
-      if (checkRouteToHost(context, targetHost, usingMmsRadio)) {
-        Log.w(TAG, "got successful route to host " + targetHost);
-        pdu = execute(constructRequest(contentApn, useProxy));
-      }
-    } catch (IOException ioe) {
-      Log.w(TAG, ioe);
-    }
-
-    if (pdu == null) {
-      throw new IOException("Connection manager could not obtain route to host.");
+    if (checkRouteToHost(context, targetHost, usingMmsRadio)) {
+      Log.w(TAG, "got successful route to host " + targetHost);
+      retrieved = execute(constructRequest(contentApn, useProxy), new RetrieveConfParser(partSink));
     }
 
-    RetrieveConf retrieved = (RetrieveConf)new PduParser(pdu).parse();
-
     if (retrieved == null) {
-      Log.w(TAG, "Couldn't parse PDU, byte response: " + Arrays.toString(pdu));
-      Log.w(TAG, "Couldn't parse PDU, ASCII:         " + new String(pdu));
-      throw new IOException("Bad retrieved PDU");
+      throw new IOException("Connection manager could not obtain route to host.");
     }
 
     sendRetrievedAcknowledgement(transactionId, usingMmsRadio, useProxy);
@@ -141,4 +134,41 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
       Log.w(TAG, e);
     }
   }
+
+  /**
+   * Parses the PDU as it downloads when the MMSC reports its length, so that
+   * media parts go straight to the sink rather than being buffered first.
+   */
+  private static class RetrieveConfParser implements ResponseParser<RetrieveConf> {
+    private final @Nullable PduPartSink partSink;
+
+    public RetrieveConfParser(@Nullable PduPartSink partSink) {
+      this.partSink = partSink;
+    }
+
+    @Override
+    public RetrieveConf parse(InputStream in, long contentLength) throws IOException {
+      if (contentLength > 0) {
+        RetrieveConf retrieved = (RetrieveConf)new PduParser(in, contentLength, partSink).parse();
+
+        if (retrieved == null) {
+          Log.w(TAG, "Couldn't parse PDU of " + contentLength + " bytes");
+          throw new IOException("Bad retrieved PDU");
+        }
+
+        return retrieved;
+      }
+
+      byte[]       pdu       = parseResponse(in, contentLength);
+      RetrieveConf retrieved = (RetrieveConf)new PduParser(pdu, partSink).parse();
+
+      if (retrieved == null) {
+        Log.w(TAG, "Couldn't parse PDU, byte response: " + Arrays.toString(pdu));
+        Log.w(TAG, "Couldn't parse PDU, ASCII:         " + new String(pdu));
+        throw new IOException("Bad retrieved PDU");
+      }
+
+      return retrieved;
+    }
+  }
 }
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.Nullable;
 import android.telephony.SmsManager;
 import android.util.Log;
@@ -30,10 +31,12 @@ import org.smssecure.smssecure.util.Util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.TimeoutException;
 
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPartSink;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
 public class IncomingLollipopMmsConnection extends LollipopMmsConnection implements IncomingMmsConnection {
@@ -55,7 +58,9 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
 
   @Override
   @TargetApi(VERSION_CODES.LOLLIPOP)
-  public synchronized @Nullable RetrieveConf retrieve(String contentLocation, byte[] transactionId) throws MmsException {
+  public synchronized @Nullable RetrieveConf retrieve(String contentLocation, byte[] transactionId, @Nullable PduPartSink partSink)
+      throws MmsException
+  {
     beginTransaction();
 
     try {
@@ -70,11 +75,22 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
 
       waitForResult();
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      Util.copy(pointer.getInputStream(), baos);
-      pointer.close();
+      ParcelFileDescriptor descriptor = getContext().getContentResolver().openFileDescriptor(pointer.getUri(), "r");
+      long                 length     = descriptor.getStatSize();
+      InputStream          in         = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
 
-      return (RetrieveConf) new PduParser(baos.toByteArray()).parse();
+      try {
+        if (length < 0) {
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          Util.copy(in, baos);
+          return (RetrieveConf) new PduParser(baos.toByteArray(), partSink).parse();
+        }
+
+        return (RetrieveConf) new PduParser(in, length, partSink).parse();
+      } finally {
+        in.close();
+        pointer.close();
+      }
     } catch (IOException | TimeoutException e) {
       Log.w(TAG, e);
       throw new MmsException(e);
@@ -23,18 +23,10 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import org.apache.http.Header;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.NoConnectionReuseStrategyHC4;
-import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.client.LaxRedirectStrategy;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
 import org.smssecure.smssecure.database.ApnDatabase;
 import org.smssecure.smssecure.util.TelephonyUtil;
@@ -48,7 +40,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.URL;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -63,8 +54,12 @@ public abstract class LegacyMmsConnection {
   protected final Apn     apn;
 
   protected LegacyMmsConnection(Context context) throws ApnUnavailableException {
+    this(context, getApn(context));
+  }
+
+  protected LegacyMmsConnection(Context context, Apn apn) {
     this.context = context;
-    this.apn     = getApn(context);
+    this.apn     = apn;
   }
 
   public static Apn getApn(Context context) throws ApnUnavailableException {
@@ -118,9 +113,10 @@ public abstract class LegacyMmsConnection {
     return routeToHostObtained;
   }
 
-  protected static byte[] parseResponse(InputStream is) throws IOException {
+  protected static byte[] parseResponse(InputStream is, long contentLength) throws IOException {
     InputStream           in   = new BufferedInputStream(is);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(contentLength > 0 && contentLength < Integer.MAX_VALUE
+                                                           ? (int)contentLength : 32);
     Util.copy(in, baos);
 
     Log.w(TAG, "Received full server response, " + baos.size() + " bytes");
@@ -128,54 +124,59 @@ public abstract class LegacyMmsConnection {
     return baos.toByteArray();
   }
 
-  protected CloseableHttpClient constructHttpClient() throws IOException {
-    RequestConfig config = RequestConfig.custom()
-                                        .setConnectTimeout(20 * 1000)
-                                        .setConnectionRequestTimeout(20 * 1000)
-                                        .setSocketTimeout(20 * 1000)
-                                        .setMaxRedirects(20)
-                                        .build();
-
-    URL                 mmsc          = new URL(apn.getMmsc());
-    CredentialsProvider credsProvider = new BasicCredentialsProvider();
-
-    if (apn.hasAuthentication()) {
-      credsProvider.setCredentials(new AuthScope(mmsc.getHost(), mmsc.getPort() > -1 ? mmsc.getPort() : mmsc.getDefaultPort()),
-                                   new UsernamePasswordCredentials(apn.getUsername(), apn.getPassword()));
-    }
-
-    return HttpClients.custom()
-                      .setConnectionReuseStrategy(new NoConnectionReuseStrategyHC4())
-                      .setRedirectStrategy(new LaxRedirectStrategy())
-                      .setUserAgent(SMSSecurePreferences.getMmsUserAgent(context, USER_AGENT))
-                      .setConnectionManager(new BasicHttpClientConnectionManager())
-                      .setDefaultRequestConfig(config)
-                      .setDefaultCredentialsProvider(credsProvider)
-                      .build();
+  protected byte[] execute(HttpUriRequest request) throws IOException {
+    return execute(request, new ResponseParser<byte[]>() {
+      @Override
+      public byte[] parse(InputStream in, long contentLength) throws IOException {
+        return parseResponse(in, contentLength);
+      }
+    });
   }
 
-  protected byte[] execute(HttpUriRequest request) throws IOException {
+  /**
+   * Executes a request on the pooled client for this APN session, handing a
+   * successful response body to the parser as it streams in.  The body is
+   * fully consumed afterwards so that the connection can be reused.
+   */
+  protected <T> T execute(HttpUriRequest request, ResponseParser<T> parser) throws IOException {
     Log.w(TAG, "connecting to " + apn.getMmsc());
 
-    CloseableHttpClient   client   = null;
-    CloseableHttpResponse response = null;
+    MmsConnectionPool     pool      = MmsConnectionPool.getInstance();
+    String                userAgent = SMSSecurePreferences.getMmsUserAgent(context, USER_AGENT);
+    CloseableHttpClient   client    = pool.acquire(apn, userAgent);
+    CloseableHttpResponse response  = null;
+
     try {
-      client   = constructHttpClient();
       response = client.execute(request);
 
       Log.w(TAG, "* response code: " + response.getStatusLine());
 
       if (response.getStatusLine().getStatusCode() == 200) {
-        return parseResponse(response.getEntity().getContent());
+        HttpEntity  entity = response.getEntity();
+        InputStream in     = entity.getContent();
+
+        try {
+          return parser.parse(in, entity.getContentLength());
+        } finally {
+          in.close();
+        }
       }
     } finally {
-      if (response != null) response.close();
-      if (client != null)   client.close();
+      closeQuietly(response);
+      pool.release(apn, userAgent);
     }
 
     throw new IOException("unhandled response code");
   }
 
+  private static void closeQuietly(CloseableHttpResponse response) {
+    try {
+      if (response != null) response.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
   protected List<Header> getBaseHeaders() {
     final String number = TelephonyUtil.getManager(context).getLine1Number();
     return new LinkedList<Header>() {{
@@ -192,6 +193,10 @@ public abstract class LegacyMmsConnection {
 
   }
 
+  protected interface ResponseParser<T> {
+    T parse(InputStream in, long contentLength) throws IOException;
+  }
+
   public static class Apn {
 
     public static Apn EMPTY = new Apn("", "", "", "", "");
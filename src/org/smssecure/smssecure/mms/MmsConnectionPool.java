@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.mms;
+
+import android.util.Log;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.smssecure.smssecure.mms.LegacyMmsConnection.Apn;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one pooled HTTP client between back-to-back MMSC transfers.
+ *
+ * Each APN session (MMSC host, proxy, credentials and user agent) gets
+ * its own keep-alive connection pool.  A session is closed once it has
+ * sat idle for a while, and when the MMS radio is torn down, since
+ * connections routed over the MMS network are useless after that.
+ */
+@SuppressWarnings("deprecation")
+class MmsConnectionPool {
+
+  private static final String TAG = MmsConnectionPool.class.getSimpleName();
+
+  private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final int  TIMEOUT_MILLIS      = 20 * 1000;
+  private static final int  MAX_PER_ROUTE       = 2;
+  private static final int  MAX_TOTAL           = 4;
+
+  private static final MmsConnectionPool instance = new MmsConnectionPool();
+
+  private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "MmsConnectionReaper");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final Map<String, Session> sessions = new HashMap<>();
+
+  public static MmsConnectionPool getInstance() {
+    return instance;
+  }
+
+  public synchronized CloseableHttpClient acquire(Apn apn, String userAgent) throws IOException {
+    String  key     = getSessionKey(apn, userAgent);
+    Session session = sessions.get(key);
+
+    if (session == null) {
+      session = new Session(apn, userAgent);
+      sessions.put(key, session);
+    }
+
+    return session.acquire();
+  }
+
+  /**
+   * Hands back a client taken by {@link #acquire(Apn, String)}.  Called from
+   * finally blocks, so it never throws over the transfer's own exception.
+   */
+  public synchronized void release(Apn apn, String userAgent) {
+    final String key;
+
+    try {
+      key = getSessionKey(apn, userAgent);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return;
+    }
+
+    final Session session = sessions.get(key);
+
+    if (session != null && session.release()) {
+      session.idleClose = reaper.schedule(new Runnable() {
+        @Override
+        public void run() {
+          closeIfIdle(key, session);
+        }
+      }, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Drops all pooled connections, for when the network they were opened on
+   * goes away.  Transfers still in flight keep their client until they finish.
+   */
+  public synchronized void close() {
+    Iterator<Session> iterator = sessions.values().iterator();
+
+    while (iterator.hasNext()) {
+      Session session = iterator.next();
+
+      if (session.active == 0) {
+        session.close();
+        iterator.remove();
+      } else {
+        session.connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private synchronized void closeIfIdle(String key, Session session) {
+    if (session.active == 0 && sessions.get(key) == session) {
+      session.close();
+      sessions.remove(key);
+    }
+  }
+
+  /**
+   * Connections are shared per MMSC host rather than per URL, since each
+   * download is addressed to its own content location.
+   */
+  private static String getSessionKey(Apn apn, String userAgent) throws IOException {
+    URL mmsc = new URL(apn.getMmsc());
+
+    return mmsc.getProtocol() + "://" + mmsc.getAuthority() + "|" + apn.getProxy() + ":" + apn.getPort() + "|" +
+           apn.getUsername() + ":" + apn.getPassword() + "|" + userAgent;
+  }
+
+  private static class Session {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient                client;
+
+    private ScheduledFuture<?> idleClose;
+    private int                active;
+
+    public Session(Apn apn, String userAgent) throws IOException {
+      RequestConfig config = RequestConfig.custom()
+                                          .setConnectTimeout(TIMEOUT_MILLIS)
+                                          .setConnectionRequestTimeout(TIMEOUT_MILLIS)
+                                          .setSocketTimeout(TIMEOUT_MILLIS)
+                                          .setMaxRedirects(20)
+                                          .build();
+
+      URL                 mmsc          = new URL(apn.getMmsc());
+      CredentialsProvider credsProvider = new BasicCredentialsProvider();
+
+      if (apn.hasAuthentication()) {
+        credsProvider.setCredentials(new AuthScope(mmsc.getHost(), mmsc.getPort() > -1 ? mmsc.getPort() : mmsc.getDefaultPort()),
+                                     new UsernamePasswordCredentials(apn.getUsername(), apn.getPassword()));
+      }
+
+      this.connectionManager = new PoolingHttpClientConnectionManager(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      this.connectionManager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+      this.connectionManager.setMaxTotal(MAX_TOTAL);
+
+      this.client = HttpClients.custom()
+                               .setKeepAliveStrategy(new IdleTimeoutKeepAliveStrategy())
+                               .setRedirectStrategy(new LaxRedirectStrategy())
+                               .setUserAgent(userAgent)
+                               .setConnectionManager(connectionManager)
+                               .setDefaultRequestConfig(config)
+                               .setDefaultCredentialsProvider(credsProvider)
+                               .build();
+    }
+
+    public CloseableHttpClient acquire() {
+      if (idleClose != null) {
+        idleClose.cancel(false);
+        idleClose = null;
+      }
+
+      connectionManager.closeExpiredConnections();
+      active++;
+
+      return client;
+    }
+
+    /**
+     * @return true if the session has no transfers left in flight.
+     */
+    public boolean release() {
+      return --active == 0;
+    }
+
+    public void close() {
+      try {
+        client.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  private static class IdleTimeoutKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      return IDLE_TIMEOUT_MILLIS;
+    }
+  }
+}
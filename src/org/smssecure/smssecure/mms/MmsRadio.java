@@ -11,6 +11,12 @@ import android.util.Log;
 
 import org.smssecure.smssecure.util.Util;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 public class MmsRadio {
 
   private static MmsRadio instance;
@@ -28,6 +34,8 @@ public class MmsRadio {
   private static final int APN_ALREADY_ACTIVE    = 0;
   public  static final int TYPE_MOBILE_MMS       = 2;
 
+  private static final long SESSION_LINGER_MILLIS = 10 * 1000;
+
   private final Context context;
 
   private ConnectivityManager   connectivityManager;
@@ -35,6 +43,17 @@ public class MmsRadio {
   private PowerManager.WakeLock wakeLock;
   private int connectedCounter = 0;
 
+  private final ScheduledExecutorService teardownExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "MmsRadioTeardown");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private       ScheduledFuture<?>       pendingTeardown;
+  private       boolean                  lingering;
+
   private MmsRadio(Context context) {
     PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
     this.context             = context;
@@ -45,37 +64,69 @@ public class MmsRadio {
 
   public synchronized void disconnect() {
     Log.w("MmsRadio", "MMS Radio Disconnect Called...");
-    wakeLock.release();
     connectedCounter--;
 
     Log.w("MmsRadio", "Reference count: " + connectedCounter);
 
-    if (connectedCounter == 0) {
-      Log.w("MmsRadio", "Turning off MMS radio...");
-      connectivityManager.stopUsingNetworkFeature(ConnectivityManager.TYPE_MOBILE, FEATURE_ENABLE_MMS);
+    if (connectedCounter != 0) {
+      wakeLock.release();
+    } else {
+      // Keep the APN session up briefly, so back-to-back transfers can reuse
+      // the radio and their pooled MMSC connections.  The last wakelock
+      // reference is held until the linger ends, since the executor's clock
+      // stops while the CPU sleeps and the teardown would be left pending.
+      lingering       = true;
+      pendingTeardown = teardownExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          teardownIfUnused();
+        }
+      }, SESSION_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
 
-      if (connectivityListener != null) {
-        Log.w("MmsRadio", "Unregistering receiver...");
-        context.unregisterReceiver(connectivityListener);
-        connectivityListener = null;
-      }
+  private synchronized void teardownIfUnused() {
+    if (connectedCounter != 0 || !lingering) return;
+
+    Log.w("MmsRadio", "Turning off MMS radio...");
+    connectivityManager.stopUsingNetworkFeature(ConnectivityManager.TYPE_MOBILE, FEATURE_ENABLE_MMS);
+    MmsConnectionPool.getInstance().close();
+    pendingTeardown = null;
+
+    if (connectivityListener != null) {
+      Log.w("MmsRadio", "Unregistering receiver...");
+      context.unregisterReceiver(connectivityListener);
+      connectivityListener = null;
+    }
+
+    endLinger();
+  }
+
+  private void endLinger() {
+    if (lingering) {
+      lingering = false;
+      wakeLock.release();
     }
   }
 
   public synchronized void connect() throws MmsRadioException {
+    if (pendingTeardown != null) {
+      pendingTeardown.cancel(false);
+      pendingTeardown = null;
+    }
+
     int status = connectivityManager.startUsingNetworkFeature(ConnectivityManager.TYPE_MOBILE,
                                                               FEATURE_ENABLE_MMS);
 
     Log.w("MmsRadio", "startUsingNetworkFeature status: " + status);
 
+    wakeLock.acquire();
+    connectedCounter++;
+    endLinger();
+
     if (status == APN_ALREADY_ACTIVE) {
-      wakeLock.acquire();
-      connectedCounter++;
       return;
     } else {
-      wakeLock.acquire();
-      connectedCounter++;
-
       if (connectivityListener == null) {
         IntentFilter filter  = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
         connectivityListener = new ConnectivityListener();
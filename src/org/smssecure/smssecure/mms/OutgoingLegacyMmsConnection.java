@@ -29,11 +29,16 @@ import org.apache.http.HttpHost;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPostHC4;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.ByteArrayEntityHC4;
+import org.apache.http.entity.AbstractHttpEntityHC4;
 import org.smssecure.smssecure.transport.UndeliverableMessageException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -45,7 +50,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
     super(context);
   }
 
-  private HttpUriRequest constructRequest(byte[] pduBytes, boolean useProxy)
+  private HttpUriRequest constructRequest(ComposedPdu pdu, boolean useProxy)
       throws IOException
   {
     try {
@@ -54,7 +59,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
         request.addHeader(header);
       }
 
-      request.setEntity(new ByteArrayEntityHC4(pduBytes));
+      request.setEntity(new ComposedPduEntity(pdu));
       if (useProxy) {
         HttpHost proxy = new HttpHost(apn.getProxy(), apn.getPort());
         request.setConfig(RequestConfig.custom().setProxy(proxy).build());
@@ -68,18 +73,18 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
   public void sendNotificationReceived(byte[] pduBytes, boolean usingMmsRadio, boolean useProxyIfAvailable)
       throws IOException
   {
-    sendBytes(pduBytes, usingMmsRadio, useProxyIfAvailable);
+    sendBytes(new ComposedPdu(pduBytes), usingMmsRadio, useProxyIfAvailable);
   }
 
   @Override
-  public @Nullable SendConf send(@NonNull byte[] pduBytes) throws UndeliverableMessageException {
+  public @Nullable SendConf send(@NonNull ComposedPdu pdu) throws UndeliverableMessageException {
     try {
       MmsRadio radio = MmsRadio.getInstance(context);
 
       if (isCdmaDevice()) {
         Log.w(TAG, "Sending MMS directly without radio change...");
         try {
-          return send(pduBytes, false, false);
+          return send(pdu, false, false);
         } catch (IOException e) {
           Log.w(TAG, e);
         }
@@ -90,7 +95,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
 
       try {
         try {
-          return send(pduBytes, true, true);
+          return send(pdu, true, true);
         } catch (IOException e) {
           Log.w(TAG, e);
         }
@@ -98,7 +103,7 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
         Log.w(TAG, "Sending MMS with radio change and without proxy...");
 
         try {
-          return send(pduBytes, true, false);
+          return send(pdu, true, false);
         } catch (IOException ioe) {
           Log.w(TAG, ioe);
           throw new UndeliverableMessageException(ioe);
@@ -114,25 +119,25 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
 
   }
 
-  private SendConf send(byte[] pduBytes, boolean useMmsRadio, boolean useProxyIfAvailable)  throws IOException {
-    byte[] response = sendBytes(pduBytes, useMmsRadio, useProxyIfAvailable);
+  private SendConf send(ComposedPdu pdu, boolean useMmsRadio, boolean useProxyIfAvailable)  throws IOException {
+    byte[] response = sendBytes(pdu, useMmsRadio, useProxyIfAvailable);
     return (SendConf) new PduParser(response).parse();
   }
 
-  private byte[] sendBytes(byte[] pduBytes, boolean useMmsRadio, boolean useProxyIfAvailable) throws IOException {
+  private byte[] sendBytes(ComposedPdu pdu, boolean useMmsRadio, boolean useProxyIfAvailable) throws IOException {
     final boolean useProxy   = useProxyIfAvailable && apn.hasProxy();
     final String  targetHost = useProxy
                              ? apn.getProxy()
                              : Uri.parse(apn.getMmsc()).getHost();
 
-    Log.w(TAG, "Sending MMS of length: " + pduBytes.length
+    Log.w(TAG, "Sending MMS of length: " + pdu.getLength()
                + (useMmsRadio ? ", using mms radio" : "")
                + (useProxy ? ", using proxy" : ""));
 
     try {
       if (checkRouteToHost(context, targetHost, useMmsRadio)) {
         Log.w(TAG, "got successful route to host " + targetHost);
-        byte[] response = execute(constructRequest(pduBytes, useProxy));
+        byte[] response = execute(constructRequest(pdu, useProxy));
         if (response != null) return response;
       }
     } catch (IOException ioe) {
@@ -158,4 +163,46 @@ public class OutgoingLegacyMmsConnection extends LegacyMmsConnection implements
       return false;
     }
   }
+
+  /**
+   * Writes the composed PDU straight to the connection, streaming any part
+   * bodies it left in storage.  Part bodies are re-read if the request is
+   * retried.  Only callers that ask for the content as a stream get the PDU
+   * composed into memory.
+   */
+  private static class ComposedPduEntity extends AbstractHttpEntityHC4 {
+    private final ComposedPdu pdu;
+
+    public ComposedPduEntity(ComposedPdu pdu) {
+      this.pdu = pdu;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getContentLength() {
+      return pdu.getLength();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) pdu.getLength());
+      pdu.writeTo(out);
+
+      return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      pdu.writeTo(out);
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+  }
 }
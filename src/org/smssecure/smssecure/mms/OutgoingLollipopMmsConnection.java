@@ -28,12 +28,12 @@ import android.util.Log;
 
 import org.smssecure.smssecure.providers.MmsBodyProvider;
 import org.smssecure.smssecure.transport.UndeliverableMessageException;
-import org.smssecure.smssecure.util.Util;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.TimeoutException;
 
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -59,11 +59,17 @@ public class OutgoingLollipopMmsConnection extends LollipopMmsConnection impleme
 
   @Override
   @TargetApi(VERSION_CODES.LOLLIPOP)
-  public @Nullable synchronized SendConf send(@NonNull byte[] pduBytes) throws UndeliverableMessageException {
+  public @Nullable synchronized SendConf send(@NonNull ComposedPdu pdu) throws UndeliverableMessageException {
     beginTransaction();
     try {
       MmsBodyProvider.Pointer pointer = MmsBodyProvider.makeTemporaryPointer(getContext());
-      Util.copy(new ByteArrayInputStream(pduBytes), pointer.getOutputStream());
+      OutputStream            out     = pointer.getOutputStream();
+
+      try {
+        pdu.writeTo(out);
+      } finally {
+        out.close();
+      }
 
       SmsManager.getDefault().sendMultimediaMessage(getContext(),
                                                     pointer.getUri(),
@@ -5,8 +5,9 @@ import android.support.annotation.Nullable;
 
 import org.smssecure.smssecure.transport.UndeliverableMessageException;
 
+import ws.com.google.android.mms.pdu.ComposedPdu;
 import ws.com.google.android.mms.pdu.SendConf;
 
 public interface OutgoingMmsConnection {
-  @Nullable SendConf send(@NonNull byte[] pduBytes) throws UndeliverableMessageException;
+  @Nullable SendConf send(@NonNull ComposedPdu pdu) throws UndeliverableMessageException;
 }
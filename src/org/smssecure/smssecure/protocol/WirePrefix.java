@@ -48,6 +48,10 @@ public abstract class WirePrefix {
     return verifyPrefix("?TSM", message);
   }
 
+  public static boolean isGsm7EncryptedMessage(String message) {
+    return verifyPrefix("?TSG", message);
+  }
+
   public static boolean isPreKeyBundle(String message) {
     return verifyPrefix("?TSP", message);
   }
@@ -64,6 +68,10 @@ public abstract class WirePrefix {
     return calculatePrefix(("?TSM" + message).getBytes(), PREFIX_BYTES);
   }
 
+  public static String calculateGsm7EncryptedMessagePrefix(String message) {
+    return calculatePrefix(("?TSG" + message).getBytes(), PREFIX_BYTES);
+  }
+
   public static String calculatePreKeyBundlePrefix(String message) {
     return calculatePrefix(("?TSP" + message).getBytes(), PREFIX_BYTES);
   }
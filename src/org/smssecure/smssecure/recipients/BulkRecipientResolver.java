@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.recipients;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+
+import org.smssecure.smssecure.contacts.ContactPhotoFactory;
+import org.smssecure.smssecure.recipients.RecipientProvider.RecipientDetails;
+import org.smssecure.smssecure.util.GroupUtil;
+import org.smssecure.smssecure.util.ListenableFutureTask;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects asynchronous recipient lookups for a short window and resolves
+ * them together, with one IN (...) query against the contacts provider
+ * per chunk of numbers instead of one PhoneLookup query per recipient.
+ *
+ * Numbers the bulk query can't match exactly fall back to an individual
+ * PhoneLookup, which does the provider's fuzzy number matching.
+ */
+class BulkRecipientResolver {
+
+  private static final String TAG = BulkRecipientResolver.class.getSimpleName();
+
+  private static final long BATCH_WINDOW_MILLIS = 50;
+  private static final int  MAX_QUERY_NUMBERS   = 200;
+
+  private static final String[] PHONE_PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER
+  };
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final RecipientProvider        provider;
+
+  private final Map<String, PendingLookup> pending = new LinkedHashMap<>();
+
+  private final AtomicLong lookupsSaved = new AtomicLong();
+
+  private Context context;
+  private boolean flushScheduled;
+
+  public BulkRecipientResolver(RecipientProvider provider) {
+    this.provider = provider;
+  }
+
+  public synchronized ListenableFutureTask<RecipientDetails> resolve(Context context, String number) {
+    PendingLookup lookup = pending.get(number);
+
+    if (lookup == null) {
+      lookup = new PendingLookup(number);
+      pending.put(number, lookup);
+    }
+
+    this.context = context.getApplicationContext();
+
+    if (!flushScheduled) {
+      flushScheduled = true;
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    return lookup.future;
+  }
+
+  public long getLookupsSaved() {
+    return lookupsSaved.get();
+  }
+
+  private void flush() {
+    Context             context;
+    List<PendingLookup> lookups;
+
+    synchronized (this) {
+      context        = this.context;
+      lookups        = new LinkedList<>(pending.values());
+      flushScheduled = false;
+      pending.clear();
+    }
+
+    try {
+      resolve(context, lookups);
+    } finally {
+      for (PendingLookup lookup : lookups) {
+        lookup.future.run();
+      }
+    }
+  }
+
+  private void resolve(Context context, List<PendingLookup> lookups) {
+    List<PendingLookup> numberLookups = new LinkedList<>();
+
+    for (PendingLookup lookup : lookups) {
+      if (GroupUtil.isEncodedGroup(lookup.number)) {
+        lookup.details  = provider.getGroupRecipientDetails(context, lookup.number);
+        lookup.resolved = true;
+      } else {
+        numberLookups.add(lookup);
+      }
+    }
+
+    int queries = 0;
+
+    for (int i=0;i<numberLookups.size();i+=MAX_QUERY_NUMBERS) {
+      queries += resolveChunk(context, numberLookups.subList(i, Math.min(numberLookups.size(), i + MAX_QUERY_NUMBERS)));
+    }
+
+    int matched = 0;
+
+    for (PendingLookup lookup : numberLookups) {
+      if (lookup.resolved) {
+        matched++;
+      } else {
+        lookup.details  = provider.getRecipientDetails(context, lookup.number);
+        lookup.resolved = true;
+      }
+    }
+
+    if (matched > queries) lookupsSaved.addAndGet(matched - queries);
+
+    Log.w(TAG, "Resolved " + lookups.size() + " recipients, " + matched + " with " + queries +
+               " bulk queries. Lookups saved so far: " + lookupsSaved.get());
+  }
+
+  private int resolveChunk(Context context, List<PendingLookup> lookups) {
+    Map<String, PendingLookup> byNumber  = new HashMap<>();
+    StringBuilder              inClause  = new StringBuilder();
+    String[]                   arguments = new String[lookups.size()];
+    int                        index     = 0;
+
+    for (PendingLookup lookup : lookups) {
+      byNumber.put(lookup.number, lookup);
+      arguments[index++] = lookup.number;
+      inClause.append(inClause.length() == 0 ? "?" : ",?");
+    }
+
+    String   selection = Phone.NUMBER + " IN (" + inClause + ")";
+    String[] selectionArgs;
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      selection    += " OR " + getNormalizedNumberColumn() + " IN (" + inClause + ")";
+      selectionArgs = new String[arguments.length * 2];
+      System.arraycopy(arguments, 0, selectionArgs, 0, arguments.length);
+      System.arraycopy(arguments, 0, selectionArgs, arguments.length, arguments.length);
+    } else {
+      selectionArgs = arguments;
+    }
+
+    String[] projection = PHONE_PROJECTION;
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      projection = new String[] {PHONE_PROJECTION[0], PHONE_PROJECTION[1], PHONE_PROJECTION[2],
+                                 PHONE_PROJECTION[3], getNormalizedNumberColumn()};
+    }
+
+    Cursor cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, projection, selection, selectionArgs, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        PendingLookup lookup = byNumber.get(cursor.getString(3));
+
+        if (lookup == null && cursor.getColumnCount() > 4) {
+          lookup = byNumber.get(cursor.getString(4));
+        }
+
+        if (lookup == null || lookup.resolved) continue;
+
+        Uri    contactUri   = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
+        Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, Uri.withAppendedPath(Contacts.CONTENT_URI,
+                                                                                                cursor.getLong(2) + ""));
+
+        lookup.details  = new RecipientDetails(cursor.getString(0), cursor.getString(3), contactUri, contactPhoto);
+        lookup.resolved = true;
+      }
+    } catch (SecurityException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return 1;
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private static String getNormalizedNumberColumn() {
+    return Phone.NORMALIZED_NUMBER;
+  }
+
+  private static class PendingLookup {
+    private final String                                 number;
+    private final ListenableFutureTask<RecipientDetails> future;
+
+    private volatile RecipientDetails details;
+    private volatile boolean          resolved;
+
+    public PendingLookup(String number) {
+      this.number = number;
+      this.future = new ListenableFutureTask<>(new Callable<RecipientDetails>() {
+        @Override
+        public RecipientDetails call() throws Exception {
+          return details;
+        }
+      });
+    }
+  }
+}
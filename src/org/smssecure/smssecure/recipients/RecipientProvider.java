@@ -30,21 +30,20 @@ import org.smssecure.smssecure.database.CanonicalAddressDatabase;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.GroupDatabase;
 import org.smssecure.smssecure.util.BitmapUtil;
+import org.smssecure.smssecure.util.FutureTaskListener;
 import org.smssecure.smssecure.util.GroupUtil;
-import org.smssecure.smssecure.util.LRUCache;
-import org.smssecure.smssecure.util.Util;
+import org.smssecure.smssecure.util.StripedLRUCache;
 import org.smssecure.smssecure.util.ListenableFutureTask;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 
 public class RecipientProvider {
 
-  private static final Map<Long,Recipient> recipientCache         = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
-  private static final ExecutorService     asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final long MAX_CACHE_WEIGHT = 4 * 1024 * 1024;
+
+  private static final StripedLRUCache<Long,Recipient> recipientCache         = new StripedLRUCache<>(MAX_CACHE_WEIGHT, 16, new RecipientWeigher());
+
+  private final BulkRecipientResolver bulkResolver = new BulkRecipientResolver(this);
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
@@ -92,17 +91,7 @@ public class RecipientProvider {
     final String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
     final boolean isGroupRecipient = GroupUtil.isEncodedGroup(number);
 
-    Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
-      @Override
-      public RecipientDetails call() throws Exception {
-        if (isGroupRecipient) return getGroupRecipientDetails(context, number);
-        else                  return getRecipientDetails(context, number);
-      }
-    };
-
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<RecipientDetails>(task);
-
-    asyncRecipientResolver.submit(future);
+    ListenableFutureTask<RecipientDetails> future = bulkResolver.resolve(context, number);
 
     Bitmap contactPhoto;
 
@@ -112,9 +101,19 @@ public class RecipientProvider {
       contactPhoto        = ContactPhotoFactory.getDefaultContactPhoto(context);
     }
 
-    Recipient recipient = new Recipient(number, contactPhoto, recipientId, future);
+    final Recipient recipient = new Recipient(number, contactPhoto, recipientId, future);
     recipientCache.put(recipientId, recipient);
 
+    future.addListener(new FutureTaskListener<RecipientDetails>() {
+      @Override
+      public void onSuccess(RecipientDetails result) {
+        if (result != null) recipientCache.reweigh(recipientId, recipient);
+      }
+
+      @Override
+      public void onFailure(Throwable error) {}
+    });
+
     return recipient;
   }
 
@@ -123,11 +122,18 @@ public class RecipientProvider {
   }
 
   public void clearCache(Recipient recipient) {
-    if (recipientCache.containsKey(recipient.getRecipientId()))
-      recipientCache.remove(recipient.getRecipientId());
+    recipientCache.remove(recipient.getRecipientId());
   }
 
-  private RecipientDetails getRecipientDetails(Context context, String number) {
+  /**
+   * @return the number of contacts provider queries avoided by resolving
+   *         asynchronous cache misses in bulk.
+   */
+  public long getLookupsSaved() {
+    return bulkResolver.getLookupsSaved();
+  }
+
+  RecipientDetails getRecipientDetails(Context context, String number) {
     Uri uri       = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
     Cursor cursor = context.getContentResolver().query(uri, CALLER_ID_PROJECTION,
                                                        null, null, null);
@@ -147,7 +153,7 @@ public class RecipientProvider {
     return null;
   }
 
-  private RecipientDetails getGroupRecipientDetails(Context context, String groupId) {
+  RecipientDetails getGroupRecipientDetails(Context context, String groupId) {
     try {
       GroupDatabase.GroupRecord record  = DatabaseFactory.getGroupDatabase(context)
                                                          .getGroup(GroupUtil.getDecodedId(groupId));
@@ -169,6 +175,28 @@ public class RecipientProvider {
     }
   }
 
+  /**
+   * Weighs a recipient by its strings and contact photo.  A recipient cached
+   * before its details resolve only carries the shared default photo, so it
+   * is weighed again once they do.
+   */
+  private static class RecipientWeigher implements StripedLRUCache.Weigher<Long, Recipient> {
+    private static final int ENTRY_OVERHEAD = 128;
+
+    @Override
+    public int weigh(Long recipientId, Recipient recipient) {
+      Bitmap photo  = recipient.getContactPhoto();
+      int    weight = ENTRY_OVERHEAD + StripedLRUCache.getStringWeight(recipient.getNumber()) +
+                                       StripedLRUCache.getStringWeight(recipient.getName());
+
+      if (!ContactPhotoFactory.isDefaultPhoto(photo)) {
+        weight += StripedLRUCache.getBitmapWeight(photo);
+      }
+
+      return weight;
+    }
+  }
+
   public static class RecipientDetails {
     public final String name;
     public final String number;
@@ -40,6 +40,9 @@ import org.smssecure.smssecure.RoutingActivity;
 import org.smssecure.smssecure.crypto.InvalidPassphraseException;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.crypto.MasterSecretUtil;
+import org.smssecure.smssecure.crypto.storage.SMSSecureSessionStore;
+import org.smssecure.smssecure.database.PersistentPlaintextCache;
+import org.smssecure.smssecure.jobs.SearchIndexJob;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.util.DynamicLanguage;
 import org.smssecure.smssecure.util.ParcelUtil;
@@ -110,6 +113,9 @@ public class KeyCachingService extends Service {
             ApplicationContext.getInstance(KeyCachingService.this)
                               .getJobManager()
                               .setEncryptionKeys(new EncryptionKeys(ParcelUtil.serialize(masterSecret)));
+            ApplicationContext.getInstance(KeyCachingService.this)
+                              .getJobManager()
+                              .add(new SearchIndexJob(KeyCachingService.this));
             MessageNotifier.updateNotification(KeyCachingService.this, masterSecret);
           }
           return null;
@@ -189,6 +195,9 @@ public class KeyCachingService extends Service {
     this.masterSecret = null;
     stopForeground(true);
 
+    PersistentPlaintextCache.invalidate(this);
+    SMSSecureSessionStore.clearCache();
+
     Intent intent = new Intent(CLEAR_KEY_EVENT);
     intent.setPackage(getApplicationContext().getPackageName());
 
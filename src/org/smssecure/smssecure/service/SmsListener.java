@@ -119,7 +119,9 @@ public class SmsListener extends BroadcastReceiver {
       return true;
     }
 
-    return WirePrefix.isEncryptedMessage(messageBody) || WirePrefix.isKeyExchange(messageBody);
+    return WirePrefix.isEncryptedMessage(messageBody)     ||
+           WirePrefix.isGsm7EncryptedMessage(messageBody) ||
+           WirePrefix.isKeyExchange(messageBody);
   }
 
   private boolean isChallenge(Context context, Intent intent) {
@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.sms;
+
+import java.io.IOException;
+
+/**
+ * Encodes binary data as text drawn from 91 characters of the GSM 03.38
+ * default alphabet, so that every character still costs one 7-bit septet.
+ *
+ * The alphabet leaves out the escape character and everything that needs
+ * it, '@' (septet 0x00, which some SMSCs treat as a terminator), '$' and
+ * '_', whitespace, and the Greek capitals and other letters that carriers
+ * and gateways commonly transliterate.  91 * 91 >= 2^13, so every pair of
+ * characters carries 13 bits: 6.5 bits per character against Base64's 6.
+ * A trailing group of six bits or fewer is written as a single character.
+ */
+class Gsm7Codec extends SmsTransportCodec {
+
+  private static final int RADIX     = 91;
+  private static final int PAIR_BITS = 13;
+  private static final int PAIR_MASK = (1 << PAIR_BITS) - 1;
+  private static final int LAST_BITS = 6;
+
+  private static final char[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ" +
+                                          "abcdefghijklmnopqrstuvwxyz" +
+                                          "0123456789" +
+                                          "!\"#%&'()*+,-./:;<=>?" +
+                                          "\u00A3\u00A5\u00A7\u00C4\u00D6\u00D1\u00DC\u00E4\u00F6").toCharArray();
+
+  private static final byte[] VALUES = new byte[256];
+
+  static {
+    if (ALPHABET.length != RADIX) {
+      throw new AssertionError("Alphabet has " + ALPHABET.length + " characters");
+    }
+
+    for (int i=0;i<VALUES.length;i++) {
+      VALUES[i] = -1;
+    }
+
+    for (int i=0;i<ALPHABET.length;i++) {
+      VALUES[ALPHABET[i]] = (byte)i;
+    }
+  }
+
+  @Override
+  public String encode(byte[] data) {
+    char[] encoded = new char[getEncodedLength(data.length)];
+    int    index   = 0;
+    int    queue   = 0;
+    int    bits    = 0;
+
+    for (byte b : data) {
+      queue |= (b & 0xFF) << bits;
+      bits  += 8;
+
+      if (bits >= PAIR_BITS) {
+        int value = queue & PAIR_MASK;
+
+        queue >>>= PAIR_BITS;
+        bits     -= PAIR_BITS;
+
+        encoded[index++] = ALPHABET[value % RADIX];
+        encoded[index++] = ALPHABET[value / RADIX];
+      }
+    }
+
+    if (bits > 0) {
+      encoded[index++] = ALPHABET[queue % RADIX];
+
+      if (bits > LAST_BITS) {
+        encoded[index++] = ALPHABET[queue / RADIX];
+      }
+    }
+
+    return new String(encoded, 0, index);
+  }
+
+  @Override
+  public byte[] decode(String encoded) throws IOException {
+    int    length  = encoded.length();
+    byte[] decoded = new byte[getDecodedLength(length)];
+    int    index   = 0;
+    int    queue   = 0;
+    int    bits    = 0;
+
+    for (int i=0;i<length;i+=2) {
+      int value;
+      int valueBits;
+
+      if (i + 1 < length) {
+        value     = getValue(encoded.charAt(i)) + getValue(encoded.charAt(i + 1)) * RADIX;
+        valueBits = PAIR_BITS;
+
+        if (value > PAIR_MASK) {
+          throw new IOException("Invalid character pair at " + i);
+        }
+      } else {
+        value     = getValue(encoded.charAt(i));
+        valueBits = LAST_BITS;
+      }
+
+      queue |= value << bits;
+      bits  += valueBits;
+
+      while (bits >= 8) {
+        decoded[index++] = (byte)queue;
+        queue >>>= 8;
+        bits     -= 8;
+      }
+    }
+
+    return decoded;
+  }
+
+  @Override
+  public int getEncodedLength(int bytes) {
+    int bits      = bytes * 8;
+    int remainder = bits % PAIR_BITS;
+
+    return (bits / PAIR_BITS) * 2 + (remainder == 0 ? 0 : remainder <= LAST_BITS ? 1 : 2);
+  }
+
+  @Override
+  public int getMaxBytesForCharacters(int characters) {
+    return getDecodedLength(characters);
+  }
+
+  private int getDecodedLength(int characters) {
+    return ((characters / 2) * PAIR_BITS + (characters % 2) * LAST_BITS) / 8;
+  }
+
+  private int getValue(char character) throws IOException {
+    int value = character < VALUES.length ? VALUES[character] : -1;
+
+    if (value < 0) {
+      throw new IOException("Invalid character: " + (int)character);
+    }
+
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return "GSM-7";
+  }
+}
@@ -22,38 +22,25 @@ import org.smssecure.smssecure.util.Base64;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 public class MultipartSmsMessageHandler {
 
   private static final String TAG = MultipartSmsMessageHandler.class.getSimpleName();
 
-  private final HashMap<String, MultipartSmsTransportMessageFragments> partialMessages = new HashMap<>();
+  private final MultipartSmsReassemblyBuffer partialMessages = new MultipartSmsReassemblyBuffer();
 
   private IncomingTextMessage processMultipartMessage(MultipartSmsTransportMessage message) {
     Log.w(TAG, "Processing multipart message...");
     Log.w(TAG, "Multipart Count: " + message.getMultipartCount());
     Log.w(TAG, "Multipart ID: " + message.getIdentifier());
     Log.w(TAG, "Multipart Key: " + message.getKey());
-    MultipartSmsTransportMessageFragments container = partialMessages.get(message.getKey());
 
-    Log.w(TAG, "Found multipart container: " + container);
+    byte[] joined = partialMessages.add(message);
 
-    if (container == null || container.getSize() != message.getMultipartCount() || container.isExpired()) {
-      Log.w(TAG, "Constructing new container...");
-      container = new MultipartSmsTransportMessageFragments(message.getMultipartCount());
-      partialMessages.put(message.getKey(), container);
-    }
-
-    container.add(message);
-
-    Log.w(TAG, "Filled buffer at index: " + message.getMultipartIndex());
-
-    if (!container.isComplete())
+    if (joined == null)
       return null;
 
-    partialMessages.remove(message.getKey());
-    String strippedMessage = Base64.encodeBytesWithoutPadding(container.getJoined());
+    String strippedMessage = Base64.encodeBytesWithoutPadding(joined);
 
     if (message.getWireType() == MultipartSmsTransportMessage.WIRETYPE_KEY) {
       return new IncomingKeyExchangeMessage(message.getBaseMessage(), strippedMessage);
@@ -79,7 +66,7 @@ public class MultipartSmsMessageHandler {
     }
   }
 
-  public synchronized IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
+  public IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
     try {
       MultipartSmsTransportMessage transportMessage = new MultipartSmsTransportMessage(message);
 
@@ -92,6 +79,10 @@ public class MultipartSmsMessageHandler {
     }
   }
 
+  public MultipartSmsReassemblyBuffer getReassemblyBuffer() {
+    return partialMessages;
+  }
+
   public synchronized ArrayList<String> divideMessage(OutgoingTextMessage message) {
     String number     = message.getRecipients().getPrimaryRecipient().getNumber();
     byte   identifier = MultipartSmsIdentifier.getInstance().getIdForRecipient(number);
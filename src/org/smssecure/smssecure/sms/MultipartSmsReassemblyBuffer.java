@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.sms;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the fragments of multipart secure SMS until every part has arrived.
+ *
+ * Containers live in a concurrent map and are locked individually, so
+ * fragments of different messages never wait on each other.  Containers
+ * that are never completed are dropped by a sweeper once they expire, and
+ * the oldest containers are evicted whenever the buffered fragments grow
+ * past a fixed byte limit.
+ */
+public class MultipartSmsReassemblyBuffer {
+
+  private static final String TAG = MultipartSmsReassemblyBuffer.class.getSimpleName();
+
+  private static final long VALID_TIME         = TimeUnit.HOURS.toMillis(1);
+  private static final long SWEEP_INTERVAL     = TimeUnit.MINUTES.toMillis(5);
+  private static final long MAX_BUFFERED_BYTES = 256 * 1024;
+
+  private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "MultipartSmsSweeper");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final ConcurrentHashMap<String, MultipartSmsTransportMessageFragments> partialMessages = new ConcurrentHashMap<>();
+
+  private final AtomicLong    bufferedBytes  = new AtomicLong(0);
+  private final AtomicLong    completed      = new AtomicLong(0);
+  private final AtomicLong    expired        = new AtomicLong(0);
+  private final AtomicLong    evicted        = new AtomicLong(0);
+  private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+
+  private final long validTime;
+  private final long maxBufferedBytes;
+
+  public MultipartSmsReassemblyBuffer() {
+    this(VALID_TIME, MAX_BUFFERED_BYTES);
+  }
+
+  MultipartSmsReassemblyBuffer(long validTime, long maxBufferedBytes) {
+    this.validTime        = validTime;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * @return the joined message if this fragment completed it, otherwise null.
+   */
+  public byte[] add(MultipartSmsTransportMessage message) {
+    String key = message.getKey();
+
+    while (true) {
+      MultipartSmsTransportMessageFragments container = getContainer(key, message.getMultipartCount());
+
+      synchronized (container) {
+        if (container.isRetired()) continue;
+
+        bufferedBytes.addAndGet(container.add(message));
+
+        Log.w(TAG, "Filled buffer at index: " + message.getMultipartIndex());
+
+        if (container.isComplete()) {
+          retire(key, container);
+          completed.incrementAndGet();
+          return container.getJoined();
+        }
+      }
+
+      enforceLimit();
+      scheduleSweep();
+
+      return null;
+    }
+  }
+
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  public long getExpiredCount() {
+    return expired.get();
+  }
+
+  public long getEvictedCount() {
+    return evicted.get();
+  }
+
+  public long getBufferedBytes() {
+    return bufferedBytes.get();
+  }
+
+  public int getPendingCount() {
+    return partialMessages.size();
+  }
+
+  private MultipartSmsTransportMessageFragments getContainer(String key, int count) {
+    while (true) {
+      MultipartSmsTransportMessageFragments container = partialMessages.get(key);
+
+      if (container != null && container.getSize() == count && !container.isExpired(validTime)) {
+        return container;
+      }
+
+      Log.w(TAG, "Constructing new container...");
+      MultipartSmsTransportMessageFragments replacement = new MultipartSmsTransportMessageFragments(count);
+
+      if (container == null) {
+        if (partialMessages.putIfAbsent(key, replacement) == null) {
+          return replacement;
+        }
+      } else if (partialMessages.replace(key, container, replacement)) {
+        discard(container, container.isExpired(validTime) ? expired : evicted);
+        return replacement;
+      }
+    }
+  }
+
+  private void retire(String key, MultipartSmsTransportMessageFragments container) {
+    container.retire();
+    partialMessages.remove(key, container);
+    bufferedBytes.addAndGet(-container.getBufferedBytes());
+  }
+
+  private void discard(MultipartSmsTransportMessageFragments container, AtomicLong counter) {
+    synchronized (container) {
+      if (!container.isRetired()) {
+        container.retire();
+        bufferedBytes.addAndGet(-container.getBufferedBytes());
+        counter.incrementAndGet();
+      }
+    }
+  }
+
+  private void remove(String key, MultipartSmsTransportMessageFragments container, AtomicLong counter) {
+    if (partialMessages.remove(key, container)) {
+      discard(container, counter);
+    }
+  }
+
+  private void enforceLimit() {
+    while (bufferedBytes.get() > maxBufferedBytes) {
+      Map.Entry<String, MultipartSmsTransportMessageFragments> oldest = null;
+
+      for (Map.Entry<String, MultipartSmsTransportMessageFragments> entry : partialMessages.entrySet()) {
+        if (oldest == null || entry.getValue().getInitializedTime() < oldest.getValue().getInitializedTime()) {
+          oldest = entry;
+        }
+      }
+
+      if (oldest == null) return;
+
+      Log.w(TAG, "Evicting multipart container: " + oldest.getKey());
+      remove(oldest.getKey(), oldest.getValue(), evicted);
+    }
+  }
+
+  void sweep() {
+    for (Map.Entry<String, MultipartSmsTransportMessageFragments> entry : partialMessages.entrySet()) {
+      if (entry.getValue().isExpired(validTime)) {
+        Log.w(TAG, "Expiring multipart container: " + entry.getKey());
+        remove(entry.getKey(), entry.getValue(), expired);
+      }
+    }
+  }
+
+  private void scheduleSweep() {
+    if (sweepScheduled.compareAndSet(false, true)) {
+      sweeper.schedule(new Runnable() {
+        @Override
+        public void run() {
+          sweep();
+          sweepScheduled.set(false);
+
+          if (!partialMessages.isEmpty()) scheduleSweep();
+        }
+      }, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -3,6 +3,7 @@ package org.smssecure.smssecure.sms;
 import android.util.Log;
 
 import org.smssecure.smssecure.protocol.EndSessionWirePrefix;
+import org.smssecure.smssecure.protocol.Gsm7SecureMessageWirePrefix;
 import org.smssecure.smssecure.protocol.KeyExchangeWirePrefix;
 import org.smssecure.smssecure.protocol.PrekeyBundleWirePrefix;
 import org.smssecure.smssecure.protocol.SecureMessageWirePrefix;
@@ -36,15 +37,26 @@ public class MultipartSmsTransportMessage {
   private final IncomingTextMessage message;
 
   public MultipartSmsTransportMessage(IncomingTextMessage message) throws IOException {
-    this.message         = message;
-    this.decodedMessage  = Base64.decodeWithoutPadding(message.getMessageBody().substring(WirePrefix.PREFIX_SIZE));
+    String            body  = message.getMessageBody();
+    SmsTransportCodec codec = SmsTransportCodec.BASE64;
+
+    if (WirePrefix.isEncryptedMessage(body)) {
+      wireType = WIRETYPE_SECURE;
+    } else if (WirePrefix.isGsm7EncryptedMessage(body)) {
+      wireType = WIRETYPE_SECURE;
+      codec    = SmsTransportCodec.GSM7;
+    } else if (WirePrefix.isPreKeyBundle(body)) {
+      wireType = WIRETYPE_PREKEY;
+    } else if (WirePrefix.isEndSession(body)) {
+      wireType = WIRETYPE_END_SESSION;
+    } else {
+      wireType = WIRETYPE_KEY;
+    }
 
-    if      (WirePrefix.isEncryptedMessage(message.getMessageBody())) wireType = WIRETYPE_SECURE;
-    else if (WirePrefix.isPreKeyBundle(message.getMessageBody()))     wireType = WIRETYPE_PREKEY;
-    else if (WirePrefix.isEndSession(message.getMessageBody()))       wireType = WIRETYPE_END_SESSION;
-    else                                                              wireType = WIRETYPE_KEY;
+    this.message        = message;
+    this.decodedMessage = codec.decode(body.substring(WirePrefix.PREFIX_SIZE));
 
-    Log.w(TAG, "Decoded message with version: " + getCurrentVersion());
+    Log.w(TAG, "Decoded " + codec + " message with version: " + getCurrentVersion());
   }
 
   public int getWireType() {
@@ -154,25 +166,27 @@ public class MultipartSmsTransportMessage {
   public static ArrayList<String> getEncoded(OutgoingTextMessage message, byte identifier)
   {
     try {
-      byte[] decoded = Base64.decodeWithoutPadding(message.getMessageBody());
-      int count      = new SmsTransportDetails().getMessageCountForBytes(decoded.length);
+      SmsTransportDetails transportDetails = new SmsTransportDetails(message.getTransportCodec());
+      byte[]              decoded          = Base64.decodeWithoutPadding(message.getMessageBody());
+      int                 count            = transportDetails.getMessageCountForBytes(decoded.length);
 
       WirePrefix prefix;
 
-      if      (message.isKeyExchange())  prefix = new KeyExchangeWirePrefix();
-      else if (message.isPreKeyBundle()) prefix = new PrekeyBundleWirePrefix();
-      else if (message.isEndSession())   prefix = new EndSessionWirePrefix();
-      else                               prefix = new SecureMessageWirePrefix();
+      if      (message.isKeyExchange())                               prefix = new KeyExchangeWirePrefix();
+      else if (message.isPreKeyBundle())                              prefix = new PrekeyBundleWirePrefix();
+      else if (message.isEndSession())                                prefix = new EndSessionWirePrefix();
+      else if (message.getTransportCodec() == SmsTransportCodec.GSM7) prefix = new Gsm7SecureMessageWirePrefix();
+      else                                                            prefix = new SecureMessageWirePrefix();
 
-      if (count == 1) return getSingleEncoded(decoded, prefix);
-      else            return getMultiEncoded(decoded, prefix, count, identifier);
+      if (count == 1) return getSingleEncoded(decoded, prefix, transportDetails.getCodec());
+      else            return getMultiEncoded(decoded, prefix, transportDetails, count, identifier);
 
     } catch (IOException e) {
       throw new AssertionError(e);
     }
   }
 
-  private static ArrayList<String> getSingleEncoded(byte[] decoded, WirePrefix prefix) {
+  private static ArrayList<String> getSingleEncoded(byte[] decoded, WirePrefix prefix, SmsTransportCodec codec) {
     ArrayList<String> list            = new ArrayList<String>(1);
     byte[] messageWithMultipartHeader = new byte[decoded.length + 1];
     System.arraycopy(decoded, 0, messageWithMultipartHeader, 1, decoded.length);
@@ -180,7 +194,7 @@ public class MultipartSmsTransportMessage {
     messageWithMultipartHeader[VERSION_OFFSET]   = decoded[VERSION_OFFSET];
     messageWithMultipartHeader[MULTIPART_OFFSET] = Conversions.intsToByteHighAndLow(0, 1);
 
-    String encodedMessage = Base64.encodeBytesWithoutPadding(messageWithMultipartHeader);
+    String encodedMessage = codec.encode(messageWithMultipartHeader);
 
     list.add(prefix.calculatePrefix(encodedMessage) + encodedMessage);
 
@@ -190,6 +204,7 @@ public class MultipartSmsTransportMessage {
   }
 
   private static ArrayList<String> getMultiEncoded(byte[] decoded, WirePrefix prefix,
+                                                   SmsTransportDetails transportDetails,
                                                    int segmentCount, byte id)
   {
     ArrayList<String> list            = new ArrayList<String>(segmentCount);
@@ -198,7 +213,7 @@ public class MultipartSmsTransportMessage {
     int segmentIndex                  = 0;
 
     while (messageOffset < decoded.length-1) {
-      int segmentSize = Math.min(SmsTransportDetails.BASE_MAX_BYTES, decoded.length-messageOffset+3);
+      int segmentSize = Math.min(transportDetails.getBaseMaxBytes(), decoded.length-messageOffset+3);
 
       byte[] segment             = new byte[segmentSize];
       segment[VERSION_OFFSET]    = versionByte;
@@ -210,7 +225,7 @@ public class MultipartSmsTransportMessage {
       System.arraycopy(decoded, messageOffset, segment, 3, segmentSize-3);
       messageOffset  += segmentSize-3;
 
-      String encodedSegment = Base64.encodeBytesWithoutPadding(segment);
+      String encodedSegment = transportDetails.getCodec().encode(segment);
       list.add(prefix.calculatePrefix(encodedSegment) + encodedSegment);
 
       Log.w(TAG, "Complete fragment size: " + list.get(list.size()-1).length());
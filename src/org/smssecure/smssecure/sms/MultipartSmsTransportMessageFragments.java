@@ -7,21 +7,59 @@ public class MultipartSmsTransportMessageFragments {
   private final byte[][] fragments;
   private final long initializedTime;
 
+  private int     bufferedBytes;
+  private boolean retired;
+
   public MultipartSmsTransportMessageFragments(int count) {
     this.fragments       = new byte[count][];
     this.initializedTime = System.currentTimeMillis();
   }
 
-  public void add(MultipartSmsTransportMessage fragment) {
-    this.fragments[fragment.getMultipartIndex()] = fragment.getStrippedMessage();
+  /**
+   * @return the change in the number of bytes held by this container.
+   */
+  public int add(MultipartSmsTransportMessage fragment) {
+    byte[] stripped = fragment.getStrippedMessage();
+    byte[] replaced = this.fragments[fragment.getMultipartIndex()];
+
+    this.fragments[fragment.getMultipartIndex()] = stripped;
+
+    int delta = stripped.length - (replaced == null ? 0 : replaced.length);
+    this.bufferedBytes += delta;
+
+    return delta;
   }
 
   public int getSize() {
     return this.fragments.length;
   }
 
+  public int getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  public long getInitializedTime() {
+    return initializedTime;
+  }
+
   public boolean isExpired() {
-    return (System.currentTimeMillis() - initializedTime) >= VALID_TIME;
+    return isExpired(VALID_TIME);
+  }
+
+  public boolean isExpired(long validTime) {
+    return (System.currentTimeMillis() - initializedTime) >= validTime;
+  }
+
+  /**
+   * Marks this container as no longer reachable from its reassembly buffer,
+   * so that a fragment racing with its removal knows to start a new one.
+   */
+  public void retire() {
+    this.retired = true;
+  }
+
+  public boolean isRetired() {
+    return retired;
   }
 
   public boolean isComplete() {
@@ -5,16 +5,21 @@ import org.smssecure.smssecure.recipients.Recipients;
 
 public class OutgoingEncryptedMessage extends OutgoingTextMessage {
 
+  private final SmsTransportCodec transportCodec;
+
   public OutgoingEncryptedMessage(Recipients recipients, String body) {
     super(recipients, body);
+    this.transportCodec = SmsTransportCodec.BASE64;
   }
 
   public OutgoingEncryptedMessage(Recipient recipient, String body) {
     super(recipient, body);
+    this.transportCodec = SmsTransportCodec.BASE64;
   }
 
-  private OutgoingEncryptedMessage(OutgoingEncryptedMessage base, String body) {
+  public OutgoingEncryptedMessage(OutgoingTextMessage base, String body, SmsTransportCodec transportCodec) {
     super(base, body);
+    this.transportCodec = transportCodec;
   }
 
   @Override
@@ -22,8 +27,13 @@ public class OutgoingEncryptedMessage extends OutgoingTextMessage {
     return true;
   }
 
+  @Override
+  public SmsTransportCodec getTransportCodec() {
+    return transportCodec;
+  }
+
   @Override
   public OutgoingTextMessage withBody(String body) {
-    return new OutgoingEncryptedMessage(this, body);
+    return new OutgoingEncryptedMessage(this, body, transportCodec);
   }
 }
@@ -47,6 +47,10 @@ public class OutgoingTextMessage {
     return false;
   }
 
+  public SmsTransportCodec getTransportCodec() {
+    return SmsTransportCodec.BASE64;
+  }
+
   public static OutgoingTextMessage from(SmsMessageRecord record) {
     if (record.isSecure()) {
       return new OutgoingEncryptedMessage(record.getIndividualRecipient(), record.getBody().getBody());
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.sms;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.smssecure.smssecure.util.Util;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+
+/**
+ * Tracks which optional secure SMS features each peer understands.
+ *
+ * Every secure message carries {@link #ADVERTISEMENT} at the very end of its
+ * encrypted padding, listing the features this version can read.  Older
+ * versions stop reading at the zero byte that ends the body, so they never
+ * see it.  What a peer last advertised is remembered here, and a feature is
+ * only used when sending to peers that have advertised it.
+ */
+public class SecureSmsCapabilities {
+
+  private static final String PREFERENCES_NAME = "SecureSmsCapabilities";
+
+  public static final int COMPRESSION   = 1;
+  public static final int GSM7_ENCODING = 1 << 1;
+
+  private static final byte MARKER = (byte)0xC5;
+
+  static final byte[] ADVERTISEMENT = {MARKER, (byte)(COMPRESSION | GSM7_ENCODING)};
+
+  /**
+   * @return the capabilities advertised at the end of a padded body, or 0.
+   */
+  static int getAdvertised(byte[] paddedBody) {
+    if (paddedBody.length < ADVERTISEMENT.length ||
+        paddedBody[paddedBody.length - ADVERTISEMENT.length] != MARKER)
+    {
+      return 0;
+    }
+
+    return paddedBody[paddedBody.length - 1] & 0xFF;
+  }
+
+  public static int get(Context context, String number) {
+    return getPreferences(context).getInt(getKey(context, number), 0);
+  }
+
+  public static boolean isSupported(Context context, String number, int capability) {
+    return (get(context, number) & capability) == capability;
+  }
+
+  /**
+   * Remembers what a peer advertised in its latest message, replacing what it
+   * advertised before.  Messages that fill their padding carry no
+   * advertisement, so those leave the stored value alone, except for prekey
+   * bundles, which start a new session and always replace it.
+   */
+  public static void set(Context context, String number, int capabilities) {
+    SharedPreferences preferences = getPreferences(context);
+    String            key         = getKey(context, number);
+
+    if (preferences.getInt(key, 0) != capabilities) {
+      preferences.edit().putInt(key, capabilities).apply();
+    }
+  }
+
+  /**
+   * Forgets a peer's capabilities when its session ends or is reset, since
+   * the next session may be with a different install.
+   */
+  public static void reset(Context context, String number) {
+    getPreferences(context).edit().remove(getKey(context, number)).apply();
+  }
+
+  private static SharedPreferences getPreferences(Context context) {
+    return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  private static String getKey(Context context, String number) {
+    try {
+      return Util.canonicalizeNumber(context, number);
+    } catch (InvalidNumberException e) {
+      return number;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.sms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses secure SMS bodies with a raw deflate stream primed with a static
+ * dictionary of common SMS text, so that short messages compress too.
+ *
+ * A compressed body starts with a 0x00 byte, which no text body does,
+ * followed by a format byte and the deflate stream.  Bodies are only
+ * compressed for peers that advertise {@link SecureSmsCapabilities#COMPRESSION}.
+ */
+public class SmsCompression {
+
+  private static final byte COMPRESSED_MARKER = 0x00;
+  private static final byte FORMAT_DEFLATE_V1 = 0x01;
+  private static final int  HEADER_LENGTH     = 2;
+
+  private static final int MAX_INFLATED_LENGTH = 64 * 1024;
+
+  private static final byte[] DICTIONARY;
+
+  static {
+    // Deflate reaches the end of the dictionary with the shortest distances,
+    // so the most common fragments come last.
+    String dictionary =
+        "http://www. https:// .com .org .net @gmail.com " +
+        "Monday Tuesday Wednesday Thursday Friday Saturday Sunday " +
+        "morning afternoon evening tonight tomorrow yesterday weekend minutes hours " +
+        "birthday dinner lunch breakfast coffee work school home office phone number address " +
+        "please thanks thank you sorry okay sure maybe probably actually really " +
+        "I'm not sure. Let me know. Talk to you later. See you soon. On my way. " +
+        "Can you call me when you get a chance? I'll call you back. " +
+        "Are you coming? What time? Where are you? How are you? Love you " +
+        "don't can't won't didn't isn't it's that's there's what's I'll I've I'd you're we're they're " +
+        "would could should about after again also because before been being from have here " +
+        "just know like make more need only other over some still than them then there these " +
+        "they think this time want well were what when where which while will with your " +
+        "the and for you that are but not all can was get has had our out his her she him " +
+        "going to be at the in the on the of the to the for the is the I am I was I will " +
+        "you are do you have you are you Hi Hey Yes No OK ok lol haha :) ";
+
+    try {
+      DICTIONARY = dictionary.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return the compressed body, or null if compressing does not make it
+   *         any shorter.
+   */
+  public static byte[] compress(byte[] body) {
+    if (body.length <= HEADER_LENGTH) {
+      return null;
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(body);
+      deflater.finish();
+
+      byte[] compressed = new byte[body.length];
+      int    length     = HEADER_LENGTH;
+
+      compressed[0] = COMPRESSED_MARKER;
+      compressed[1] = FORMAT_DEFLATE_V1;
+
+      while (!deflater.finished() && length < compressed.length) {
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+
+      if (!deflater.finished()) {
+        return null;
+      }
+
+      byte[] result = new byte[length];
+      System.arraycopy(compressed, 0, result, 0, length);
+      return result;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @return the number of bytes body takes up once compressed, if that
+   *         makes it shorter, or its length otherwise.
+   */
+  public static int getCompressedLength(byte[] body) {
+    byte[] compressed = compress(body);
+    return compressed == null ? body.length : compressed.length;
+  }
+
+  public static boolean isCompressed(byte[] paddedBody) {
+    return paddedBody.length > HEADER_LENGTH  &&
+           paddedBody[0] == COMPRESSED_MARKER &&
+           paddedBody[1] == FORMAT_DEFLATE_V1;
+  }
+
+  /**
+   * Inflates a compressed body.  Anything after the end of the deflate
+   * stream is padding and is ignored.
+   */
+  public static byte[] decompress(byte[] paddedBody) throws IOException {
+    Inflater inflater = new Inflater(true);
+
+    try {
+      inflater.setInput(paddedBody, HEADER_LENGTH, paddedBody.length - HEADER_LENGTH);
+      inflater.setDictionary(DICTIONARY);
+
+      ByteArrayOutputStream out    = new ByteArrayOutputStream(paddedBody.length * 3);
+      byte[]                buffer = new byte[1024];
+
+      while (!inflater.finished()) {
+        int read = inflater.inflate(buffer);
+
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated compressed body");
+        }
+
+        out.write(buffer, 0, read);
+
+        if (out.size() > MAX_INFLATED_LENGTH) {
+          throw new IOException("Compressed body inflates past " + MAX_INFLATED_LENGTH + " bytes");
+        }
+      }
+
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.sms;
+
+import org.smssecure.smssecure.util.Base64;
+
+import java.io.IOException;
+
+/**
+ * Turns the binary fragments of a secure SMS into text that survives the
+ * trip through the SMS network, and back.
+ */
+public abstract class SmsTransportCodec {
+
+  public static final SmsTransportCodec BASE64 = new Base64Codec();
+  public static final SmsTransportCodec GSM7   = new Gsm7Codec();
+
+  public abstract String encode(byte[] data);
+
+  public abstract byte[] decode(String encoded) throws IOException;
+
+  /**
+   * @return the number of characters data of the given length encodes to.
+   */
+  public abstract int getEncodedLength(int bytes);
+
+  /**
+   * @return the largest number of bytes that encode to no more than the
+   *         given number of characters.
+   */
+  public abstract int getMaxBytesForCharacters(int characters);
+
+  private static class Base64Codec extends SmsTransportCodec {
+
+    @Override
+    public String encode(byte[] data) {
+      return Base64.encodeBytesWithoutPadding(data);
+    }
+
+    @Override
+    public byte[] decode(String encoded) throws IOException {
+      return Base64.decodeWithoutPadding(encoded);
+    }
+
+    @Override
+    public int getEncodedLength(int bytes) {
+      return (bytes * 4 + 2) / 3;
+    }
+
+    @Override
+    public int getMaxBytesForCharacters(int characters) {
+      return Base64.getEncodedBytesForTarget(characters);
+    }
+
+    @Override
+    public String toString() {
+      return "Base64";
+    }
+  }
+}
@@ -30,13 +30,47 @@ public class SmsTransportDetails {
   public static final int SMS_SIZE           = 160;
   public static final int MULTIPART_SMS_SIZE = 153;
 
-  public static final int BASE_MAX_BYTES                = Base64.getEncodedBytesForTarget(SMS_SIZE - WirePrefix.PREFIX_SIZE);
-  public static final int SINGLE_MESSAGE_MAX_BYTES      = BASE_MAX_BYTES - MultipartSmsTransportMessage.SINGLE_MESSAGE_MULTIPART_OVERHEAD;
-  public static final int MULTI_MESSAGE_MAX_BYTES       = BASE_MAX_BYTES - MultipartSmsTransportMessage.MULTI_MESSAGE_MULTIPART_OVERHEAD;
-  public static final int FIRST_MULTI_MESSAGE_MAX_BYTES = BASE_MAX_BYTES - MultipartSmsTransportMessage.FIRST_MULTI_MESSAGE_MULTIPART_OVERHEAD;
+  private final SmsTransportCodec codec;
 
-  public static final int ENCRYPTED_SINGLE_MESSAGE_BODY_MAX_SIZE = SINGLE_MESSAGE_MAX_BYTES - CiphertextMessage.ENCRYPTED_MESSAGE_OVERHEAD;
+  private final int baseMaxBytes;
+  private final int singleMessageMaxBytes;
+  private final int multiMessageMaxBytes;
+  private final int firstMultiMessageMaxBytes;
+  private final int encryptedSingleMessageBodyMaxSize;
 
+  public SmsTransportDetails() {
+    this(SmsTransportCodec.BASE64);
+  }
+
+  public SmsTransportDetails(SmsTransportCodec codec) {
+    this.codec                             = codec;
+    this.baseMaxBytes                      = codec.getMaxBytesForCharacters(SMS_SIZE - WirePrefix.PREFIX_SIZE);
+    this.singleMessageMaxBytes             = baseMaxBytes - MultipartSmsTransportMessage.SINGLE_MESSAGE_MULTIPART_OVERHEAD;
+    this.multiMessageMaxBytes              = baseMaxBytes - MultipartSmsTransportMessage.MULTI_MESSAGE_MULTIPART_OVERHEAD;
+    this.firstMultiMessageMaxBytes         = baseMaxBytes - MultipartSmsTransportMessage.FIRST_MULTI_MESSAGE_MULTIPART_OVERHEAD;
+    this.encryptedSingleMessageBodyMaxSize = singleMessageMaxBytes - CiphertextMessage.ENCRYPTED_MESSAGE_OVERHEAD;
+  }
+
+  public SmsTransportCodec getCodec() {
+    return codec;
+  }
+
+  public int getBaseMaxBytes() {
+    return baseMaxBytes;
+  }
+
+  public int getMultiMessageMaxBytes() {
+    return multiMessageMaxBytes;
+  }
+
+  public int getEncryptedSingleMessageBodyMaxSize() {
+    return encryptedSingleMessageBodyMaxSize;
+  }
+
+  /**
+   * Ciphertext is kept as Base64 between the cipher and the multipart
+   * layer, whatever codec eventually carries it over the air.
+   */
   public byte[] getEncodedMessage(byte[] messageWithMac) {
     String encodedMessage = Base64.encodeBytesWithoutPadding(messageWithMac);
     Log.w("SmsTransportDetails", "Encoded Message Length: " + encodedMessage.length());
@@ -48,16 +82,37 @@ public class SmsTransportDetails {
     return Base64.decodeWithoutPadding(encodedMessage);
   }
 
-  public byte[] getStrippedPaddingMessageBody(byte[] messageWithPadding) {
-    int paddingBeginsIndex = 0;
+  /**
+   * @return the message body, decompressed if it was sent compressed.
+   */
+  public byte[] getMessageBody(byte[] messageWithPadding) throws IOException {
+    if (SmsCompression.isCompressed(messageWithPadding)) {
+      return SmsCompression.decompress(messageWithPadding);
+    }
 
-    for (int i=1;i<messageWithPadding.length;i++) {
-      if (messageWithPadding[i] == (byte)0x00) {
-        paddingBeginsIndex = i;
-        break;
+    return getStrippedPaddingMessageBody(messageWithPadding);
+  }
+
+  /**
+   * @return the {@link SecureSmsCapabilities} the sender advertised, or 0.
+   */
+  public int getAdvertisedCapabilities(byte[] messageWithPadding) {
+    if (!SmsCompression.isCompressed(messageWithPadding)) {
+      int paddingBeginsIndex = getPaddingBeginsIndex(messageWithPadding);
+
+      if (paddingBeginsIndex == 0 ||
+          paddingBeginsIndex + SecureSmsCapabilities.ADVERTISEMENT.length >= messageWithPadding.length)
+      {
+        return 0;
       }
     }
 
+    return SecureSmsCapabilities.getAdvertised(messageWithPadding);
+  }
+
+  public byte[] getStrippedPaddingMessageBody(byte[] messageWithPadding) {
+    int paddingBeginsIndex = getPaddingBeginsIndex(messageWithPadding);
+
     if (paddingBeginsIndex == 0)
       return messageWithPadding;
 
@@ -74,31 +129,49 @@ public class SmsTransportDetails {
     byte[] paddedBody = new byte[paddedBodySize];
     System.arraycopy(messageBody, 0, paddedBody, 0, messageBody.length);
 
+    if (messageBody.length > 0 &&
+        messageBody.length + 1 + SecureSmsCapabilities.ADVERTISEMENT.length <= paddedBodySize)
+    {
+      System.arraycopy(SecureSmsCapabilities.ADVERTISEMENT, 0,
+                       paddedBody, paddedBodySize - SecureSmsCapabilities.ADVERTISEMENT.length,
+                       SecureSmsCapabilities.ADVERTISEMENT.length);
+    }
+
     return paddedBody;
   }
 
+  private int getPaddingBeginsIndex(byte[] messageWithPadding) {
+    for (int i=1;i<messageWithPadding.length;i++) {
+      if (messageWithPadding[i] == (byte)0x00) {
+        return i;
+      }
+    }
+
+    return 0;
+  }
+
   private int getMaxBodySizeForBytes(int bodyLength) {
     int encryptedBodyLength   = bodyLength + CiphertextMessage.ENCRYPTED_MESSAGE_OVERHEAD;
     int messageRecordsForBody = getMessageCountForBytes(encryptedBodyLength);
 
     if (messageRecordsForBody == 1) {
-      return ENCRYPTED_SINGLE_MESSAGE_BODY_MAX_SIZE;
+      return encryptedSingleMessageBodyMaxSize;
     } else {
       return
-          FIRST_MULTI_MESSAGE_MAX_BYTES +
-          (MULTI_MESSAGE_MAX_BYTES * (messageRecordsForBody-1)) -
+          firstMultiMessageMaxBytes +
+          (multiMessageMaxBytes * (messageRecordsForBody-1)) -
               CiphertextMessage.ENCRYPTED_MESSAGE_OVERHEAD;
     }
   }
 
   public int getMessageCountForBytes(int bytes) {
-    if (bytes <= SINGLE_MESSAGE_MAX_BYTES)
+    if (bytes <= singleMessageMaxBytes)
       return 1;
 
-    bytes = Math.max(bytes - FIRST_MULTI_MESSAGE_MAX_BYTES, 0);
+    bytes = Math.max(bytes - firstMultiMessageMaxBytes, 0);
 
-    int messageCount = 1 + (bytes / MULTI_MESSAGE_MAX_BYTES);
-    int remainder    = bytes % MULTI_MESSAGE_MAX_BYTES;
+    int messageCount = 1 + (bytes / multiMessageMaxBytes);
+    int remainder    = bytes % multiMessageMaxBytes;
 
     if (remainder > 0)
       messageCount++;
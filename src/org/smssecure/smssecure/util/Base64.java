@@ -1255,7 +1255,61 @@ public class Base64
 		return decode(source);
     }
 
-    
+
+    /**
+     * Decodes standard Base64 notation straight into a caller supplied
+     * buffer, without the intermediate arrays (or gzip detection) of
+     * {@link #decode(String)}. The destination must have room for
+     * <tt>source.length() * 3 / 4</tt> bytes past <var>destOffset</var>.
+     *
+     * @param source the string to decode
+     * @param destination the array to hold the decoded bytes
+     * @param destOffset the index where output will be put
+     * @return the number of decoded bytes written
+     * @throws java.io.IOException If bogus characters exist in source data
+     */
+    public static int decode( String source, byte[] destination, int destOffset )
+    throws java.io.IOException {
+
+        byte[] DECODABET   = getDecodabet( NO_OPTIONS );
+        byte[] b4          = new byte[4];
+        int    b4Posn      = 0;
+        int    outBuffPosn = destOffset;
+
+        for( int i = 0; i < source.length(); i++ ) {
+            char c = source.charAt( i );
+
+            if( c > 0x7f ) {
+                throw new java.io.IOException( String.format(
+                "Bad Base64 input character '%c' in string position %d", c, i ) );
+            }   // end if
+
+            byte sbiCrop   = (byte)c;
+            byte sbiDecode = DECODABET[ sbiCrop ];
+
+            if( sbiDecode >= WHITE_SPACE_ENC ) {
+                if( sbiDecode >= EQUALS_SIGN_ENC ) {
+                    b4[ b4Posn++ ] = sbiCrop;
+                    if( b4Posn > 3 ) {
+                        outBuffPosn += decode4to3( b4, 0, destination, outBuffPosn, NO_OPTIONS );
+                        b4Posn = 0;
+
+                        if( sbiCrop == EQUALS_SIGN ) {
+                            break;
+                        }   // end if: equals sign
+                    }   // end if: quartet built
+                }   // end if: equals sign or better
+            }   // end if: white space, equals sign or better
+            else {
+                throw new java.io.IOException( String.format(
+                "Bad Base64 input character '%c' in string position %d", c, i ) );
+            }   // end else
+        }   // each input character
+
+        return outBuffPosn - destOffset;
+    }   // end decode
+
+
     
     /**
      * Decodes data from Base64 notation, automatically
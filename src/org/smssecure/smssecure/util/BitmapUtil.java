@@ -23,6 +23,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import com.android.gallery3d.data.Exif;
 
@@ -31,55 +32,88 @@ public class BitmapUtil {
 
   private static final int MAX_COMPRESSION_QUALITY  = 95;
   private static final int MIN_COMPRESSION_QUALITY  = 50;
-  private static final int MAX_COMPRESSION_ATTEMPTS = 4;
+  private static final int MAX_COMPRESSION_ATTEMPTS = 6;
+
+  private static final float COMPRESSION_TARGET_RATIO   = 0.9f;
+  private static final int   MAX_BUFFERED_IMAGE_SIZE    = 16 * 1024 * 1024;
+  private static final int   MAX_BUFFERED_HEAP_FRACTION = 8;
+  private static final int   INITIAL_BUFFER_SIZE        = 256 * 1024;
 
   public static byte[] createScaledBytes(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight, int maxSize)
       throws IOException, BitmapDecodingException
   {
-    Bitmap bitmap;
+    Bitmap bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight);
+
     try {
-      bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight, false);
-    } catch(OutOfMemoryError oome) {
-      Log.w(TAG, "OutOfMemoryError when scaling precisely, doing rough scale to save memory instead");
-      bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight, true);
+      return compressToSize(bitmap, maxSize, uri);
+    } finally {
+      bitmap.recycle();
     }
-    int quality         = MAX_COMPRESSION_QUALITY;
-    int attempts        = 0;
-
-    ByteArrayOutputStream baos;
+  }
 
-    do {
-      baos = new ByteArrayOutputStream();
+  /**
+   * Finds the highest JPEG quality whose output fits in maxSize by binary search,
+   * stopping early once an encoding lands close enough to the limit.
+   */
+  @VisibleForTesting
+  static byte[] compressToSize(Bitmap bitmap, int maxSize, Uri uri) throws IOException {
+    ByteArrayOutputStream baos        = new ByteArrayOutputStream(maxSize);
+    byte[]                best        = null;
+    int                   bestQuality = 0;
+    int                   low         = MIN_COMPRESSION_QUALITY;
+    int                   high        = MAX_COMPRESSION_QUALITY;
+    int                   quality     = MAX_COMPRESSION_QUALITY;
+    int                   attempts    = 0;
+
+    while (low <= high && attempts < MAX_COMPRESSION_ATTEMPTS) {
+      baos.reset();
       bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
+      attempts++;
 
-      quality = Math.max((quality * maxSize) / baos.size(), MIN_COMPRESSION_QUALITY);
-    } while (baos.size() > maxSize && attempts++ < MAX_COMPRESSION_ATTEMPTS);
+      if (baos.size() <= maxSize) {
+        best        = baos.toByteArray();
+        bestQuality = quality;
+        low         = quality + 1;
 
-    Log.w(TAG, "createScaledBytes(" + uri + ") -> quality " + Math.min(quality, MAX_COMPRESSION_QUALITY) + ", " + attempts + " attempt(s)");
+        if (quality == MAX_COMPRESSION_QUALITY || baos.size() >= maxSize * COMPRESSION_TARGET_RATIO) break;
+      } else {
+        high = quality - 1;
+      }
 
-    bitmap.recycle();
+      quality = (low + high) / 2;
+    }
 
-    if (baos.size() <= maxSize) return baos.toByteArray();
-    else                        throw new IOException("Unable to scale image below: " + baos.size());
+    Log.w(TAG, "createScaledBytes(" + uri + ") -> quality " + bestQuality + ", " + attempts + " attempt(s)");
+
+    if (best != null) return best;
+    else              throw new IOException("Unable to scale image below: " + maxSize);
   }
 
   public static Bitmap createScaledBitmap(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight)
       throws BitmapDecodingException, IOException
   {
-    Bitmap bitmap;
+    DecryptedImage image = DecryptedImage.read(context, masterSecret, uri);
+    Bitmap         bitmap;
+
     try {
-      bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight, false);
+      bitmap = createScaledBitmap(context, masterSecret, uri, image, maxWidth, maxHeight, false);
     } catch(OutOfMemoryError oome) {
       Log.w(TAG, "OutOfMemoryError when scaling precisely, doing rough scale to save memory instead");
-      bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight, true);
+      bitmap = createScaledBitmap(context, masterSecret, uri, image, maxWidth, maxHeight, true);
     }
 
     return bitmap;
   }
 
-  private static Bitmap createScaledBitmap(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight, boolean constrainedMemory)
+  private static Bitmap createScaledBitmap(Context context, MasterSecret masterSecret, Uri uri, DecryptedImage image,
+                                           int maxWidth, int maxHeight, boolean constrainedMemory)
       throws IOException, BitmapDecodingException
   {
+    if (image != null) {
+      return createScaledBitmap(image.newInputStream(), image.newInputStream(), image.newInputStream(),
+                                maxWidth, maxHeight, constrainedMemory);
+    }
+
     InputStream is = PartAuthority.getPartStream(context, masterSecret, uri);
     if (is == null) throw new IOException("Couldn't obtain InputStream");
     return createScaledBitmap(is,
@@ -230,4 +264,63 @@ public class BitmapUtil {
     bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
     return stream.toByteArray();
   }
+
+  /**
+   * An image part decrypted once into memory, so that measuring, reading the
+   * EXIF orientation and decoding don't each decrypt the part again.  The
+   * buffer is allocated per image and only grows as far as the image needs,
+   * up to a limit that shrinks with the heap.
+   */
+  private static class DecryptedImage {
+
+    private final byte[] data;
+    private final int    length;
+
+    private DecryptedImage(byte[] data, int length) {
+      this.data   = data;
+      this.length = length;
+    }
+
+    /**
+     * @return the decrypted image, or null if it's larger than the buffer limit
+     *         and should be streamed from storage instead.
+     */
+    public static DecryptedImage read(Context context, MasterSecret masterSecret, Uri uri) throws IOException {
+      InputStream in = PartAuthority.getPartStream(context, masterSecret, uri);
+      if (in == null) throw new IOException("Couldn't obtain InputStream");
+
+      int    limit  = getBufferLimit();
+      byte[] buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, limit)];
+      int    length = 0;
+
+      try {
+        int read;
+
+        while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+          length += read;
+
+          if (length == buffer.length) {
+            if (buffer.length >= limit) {
+              Log.w(TAG, "Image too large to buffer, streaming instead: " + uri);
+              return null;
+            }
+
+            buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, limit));
+          }
+        }
+      } finally {
+        in.close();
+      }
+
+      return new DecryptedImage(buffer, length);
+    }
+
+    public InputStream newInputStream() {
+      return new ByteArrayInputStream(data, 0, length);
+    }
+
+    private static int getBufferLimit() {
+      return (int)Math.min(MAX_BUFFERED_IMAGE_SIZE, Runtime.getRuntime().maxMemory() / MAX_BUFFERED_HEAP_FRACTION);
+    }
+  }
 }
@@ -20,6 +20,10 @@ public abstract class CharacterCalculator {
 
   public abstract CharacterState calculateCharacters(int charactersSpent);
 
+  public CharacterState calculateCharacters(String messageBody) {
+    return calculateCharacters(messageBody.length());
+  }
+
   public class CharacterState {
     public int charactersRemaining;
     public int messagesSpent;
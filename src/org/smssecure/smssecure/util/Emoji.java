@@ -27,7 +27,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,8 +34,6 @@ public class Emoji {
 
   private static final String TAG = Emoji.class.getSimpleName();
 
-  private static ExecutorService executor = Util.newSingleThreadedLifoExecutor();
-
   public static final int[][] PAGES = {
       {
           0x263a,  0x1f60a, 0x1f600, 0x1f601, 0x1f602, 0x1f603, 0x1f604, 0x1f605,
@@ -200,7 +197,7 @@ public class Emoji {
   }
 
   private void preloadPage(final int page, final PageLoadedListener pageLoadListener) {
-    executor.submit(new Runnable() {
+    TaskScheduler.getInstance().execute(TaskScheduler.Domain.EMOJI, TaskScheduler.Priority.VISIBLE, new Runnable() {
       @Override
       public void run() {
         try {
@@ -16,32 +16,65 @@
  */
 package org.smssecure.smssecure.util;
 
+import org.smssecure.smssecure.sms.SecureSmsCapabilities;
+import org.smssecure.smssecure.sms.SmsCompression;
+import org.smssecure.smssecure.sms.SmsTransportCodec;
 import org.smssecure.smssecure.sms.SmsTransportDetails;
 
 public class EncryptedSmsCharacterCalculator extends CharacterCalculator {
 
+  private SmsTransportDetails transportDetails = new SmsTransportDetails();
+  private boolean             compressionSupported;
+
+  /**
+   * Measures messages the way they will be sent to a peer with the given
+   * {@link SecureSmsCapabilities}: compressed bodies are counted by their
+   * compressed size, and the GSM-7 codec fits more bytes in each segment.
+   */
+  public void setPeerCapabilities(int capabilities) {
+    SmsTransportCodec codec = (capabilities & SecureSmsCapabilities.GSM7_ENCODING) != 0
+                              ? SmsTransportCodec.GSM7 : SmsTransportCodec.BASE64;
+
+    if (transportDetails.getCodec() != codec) {
+      transportDetails = new SmsTransportDetails(codec);
+    }
+
+    this.compressionSupported = (capabilities & SecureSmsCapabilities.COMPRESSION) != 0;
+  }
+
   private CharacterState calculateSingleRecordCharacters(int charactersSpent) {
-    int charactersRemaining = SmsTransportDetails.ENCRYPTED_SINGLE_MESSAGE_BODY_MAX_SIZE - charactersSpent;
+    int maxSize             = transportDetails.getEncryptedSingleMessageBodyMaxSize();
+    int charactersRemaining = maxSize - charactersSpent;
 
-    return new CharacterState(1, charactersRemaining, SmsTransportDetails.ENCRYPTED_SINGLE_MESSAGE_BODY_MAX_SIZE);
+    return new CharacterState(1, charactersRemaining, maxSize);
   }
 
   private CharacterState calculateMultiRecordCharacters(int charactersSpent) {
-    int charactersInFirstRecord = SmsTransportDetails.ENCRYPTED_SINGLE_MESSAGE_BODY_MAX_SIZE;
+    int charactersInFirstRecord = transportDetails.getEncryptedSingleMessageBodyMaxSize();
+    int multiMessageMaxBytes    = transportDetails.getMultiMessageMaxBytes();
     int spillover               = charactersSpent - charactersInFirstRecord;
-    int spilloverMessagesSpent  = spillover / SmsTransportDetails.MULTI_MESSAGE_MAX_BYTES;
+    int spilloverMessagesSpent  = spillover / multiMessageMaxBytes;
 
-    if ((spillover % SmsTransportDetails.MULTI_MESSAGE_MAX_BYTES) > 0)
+    if ((spillover % multiMessageMaxBytes) > 0)
       spilloverMessagesSpent++;
 
-    int charactersRemaining = (SmsTransportDetails.MULTI_MESSAGE_MAX_BYTES * spilloverMessagesSpent) - spillover;
+    int charactersRemaining = (multiMessageMaxBytes * spilloverMessagesSpent) - spillover;
+
+    return new CharacterState(spilloverMessagesSpent+1, charactersRemaining, multiMessageMaxBytes);
+  }
+
+  @Override
+  public CharacterState calculateCharacters(String messageBody) {
+    if (compressionSupported) {
+      return calculateCharacters(SmsCompression.getCompressedLength(messageBody.getBytes()));
+    }
 
-    return new CharacterState(spilloverMessagesSpent+1, charactersRemaining, SmsTransportDetails.MULTI_MESSAGE_MAX_BYTES);
+    return super.calculateCharacters(messageBody);
   }
 
   @Override
   public CharacterState calculateCharacters(int charactersSpent) {
-    if (charactersSpent <= SmsTransportDetails.ENCRYPTED_SINGLE_MESSAGE_BODY_MAX_SIZE) {
+    if (charactersSpent <= transportDetails.getEncryptedSingleMessageBodyMaxSize()) {
       return calculateSingleRecordCharacters(charactersSpent);
     } else {
       return calculateMultiRecordCharacters(charactersSpent);
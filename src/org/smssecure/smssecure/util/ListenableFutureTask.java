@@ -19,13 +19,20 @@ package org.smssecure.smssecure.util;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ListenableFutureTask<V> extends FutureTask<V> {
 
   private final List<FutureTaskListener<V>> listeners = new LinkedList<>();
 
+  private TaskScheduler        scheduler;
+  private TaskScheduler.Domain domain;
+  private boolean              withdrawn;
+
   public ListenableFutureTask(Callable<V> callable) {
     super(callable);
   }
@@ -45,11 +52,61 @@ public class ListenableFutureTask<V> extends FutureTask<V> {
       callback(listener);
     } else {
       this.listeners.add(listener);
+      reschedule();
     }
   }
 
+  /**
+   * Removing the last listener of a task that is still queued on a
+   * {@link TaskScheduler} withdraws it, until it is observed again.
+   */
   public synchronized void removeListener(FutureTaskListener<V> listener) {
     this.listeners.remove(listener);
+
+    if (listeners.isEmpty() && scheduler != null && !withdrawn && !isDone()) {
+      withdrawn = scheduler.withdraw(domain, this);
+    }
+  }
+
+  @Override
+  public V get() throws InterruptedException, ExecutionException {
+    reclaim();
+    return super.get();
+  }
+
+  @Override
+  public V get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+  {
+    reclaim();
+    return super.get(timeout, unit);
+  }
+
+  synchronized void setScheduler(TaskScheduler scheduler, TaskScheduler.Domain domain) {
+    this.scheduler = scheduler;
+    this.domain    = domain;
+  }
+
+  private void reclaim() {
+    TaskScheduler        scheduler;
+    TaskScheduler.Domain domain;
+
+    synchronized (this) {
+      reschedule();
+      scheduler = this.scheduler;
+      domain    = this.domain;
+    }
+
+    if (scheduler != null && !isDone()) {
+      scheduler.runIfQueued(domain, this);
+    }
+  }
+
+  private void reschedule() {
+    if (withdrawn) {
+      withdrawn = false;
+      scheduler.execute(domain, TaskScheduler.Priority.VISIBLE, this);
+    }
   }
 
   @Override
@@ -71,6 +128,8 @@ public class ListenableFutureTask<V> extends FutureTask<V> {
         throw new AssertionError(e);
       } catch (ExecutionException e) {
         listener.onFailure(e);
+      } catch (CancellationException e) {
+        // nothing to report
       }
     }
   }
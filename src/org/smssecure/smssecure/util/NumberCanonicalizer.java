@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.util;
+
+import android.content.Context;
+
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Memoizes {@link PhoneNumberFormatter#formatNumber(String, String)}, which
+ * does a full libphonenumber parse and is called for every address that is
+ * looked up, grouped or compared.
+ *
+ * Results are keyed by the raw number and the local number it was formatted
+ * against, and numbers that fail to parse are remembered as well.  The table
+ * is dropped whenever the local number or the device country changes.
+ */
+public class NumberCanonicalizer {
+
+  private static final int MAX_CACHE_WEIGHT = 256 * 1024;
+  private static final int ENTRY_OVERHEAD   = 32;
+
+  private static final NumberCanonicalizer instance = new NumberCanonicalizer();
+
+  public static NumberCanonicalizer getInstance() {
+    return instance;
+  }
+
+  private final StripedLRUCache<String, Optional<String>> cache =
+      new StripedLRUCache<>(MAX_CACHE_WEIGHT, 8, new StripedLRUCache.Weigher<String, Optional<String>>() {
+        @Override
+        public int weigh(String key, Optional<String> value) {
+          return ENTRY_OVERHEAD + StripedLRUCache.getStringWeight(key) +
+                 (value.isPresent() ? StripedLRUCache.getStringWeight(value.get()) : 0);
+        }
+      });
+
+  private volatile String country;
+
+  private NumberCanonicalizer() {}
+
+  public String canonicalize(Context context, String number) throws InvalidNumberException {
+    return canonicalize(number, SMSSecurePreferences.getLocalNumber(context));
+  }
+
+  public String canonicalize(String number, String localNumber) throws InvalidNumberException {
+    checkCountry();
+
+    String           key    = localNumber + '\u0000' + number;
+    Optional<String> cached = cache.get(key);
+
+    if (cached == null) {
+      try {
+        cached = Optional.of(PhoneNumberFormatter.formatNumber(number, localNumber));
+      } catch (InvalidNumberException e) {
+        cached = Optional.absent();
+      }
+
+      cache.put(key, cached);
+    }
+
+    if (!cached.isPresent()) {
+      throw new InvalidNumberException("Invalid number: " + number);
+    }
+
+    return cached.get();
+  }
+
+  /**
+   * Canonicalizes a batch of numbers against the same local number, which is
+   * only read once.
+   *
+   * @return each valid input number mapped to its canonical form; numbers
+   *         that fail to parse are left out.
+   */
+  public Map<String, String> canonicalize(Context context, Collection<String> numbers) {
+    String              localNumber = SMSSecurePreferences.getLocalNumber(context);
+    Map<String, String> results     = new HashMap<>(numbers.size());
+
+    for (String number : numbers) {
+      if (results.containsKey(number)) continue;
+
+      try {
+        results.put(number, canonicalize(number, localNumber));
+      } catch (InvalidNumberException e) {
+        // left out
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Drops every memoized result.  Called when the local number changes.
+   */
+  public void invalidate() {
+    cache.clear();
+  }
+
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+
+  public double getHitRate() {
+    long hits  = getHitCount();
+    long total = hits + getMissCount();
+
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public String toString() {
+    return "NumberCanonicalizer[hitRate=" + getHitRate() + ", " + cache + "]";
+  }
+
+  private void checkCountry() {
+    String current = Locale.getDefault().getCountry();
+
+    if (current.equals(country)) return;
+
+    synchronized (this) {
+      if (!current.equals(country)) {
+        if (country != null) cache.clear();
+        country = current;
+      }
+    }
+  }
+}
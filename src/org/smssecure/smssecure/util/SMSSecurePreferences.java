@@ -44,6 +44,7 @@ public class SMSSecurePreferences {
   private static final String PASSPHRASE_TIMEOUT_PREF          = "pref_timeout_passphrase";
   private static final String AUTO_KEY_EXCHANGE_PREF           = "pref_auto_complete_key_exchange";
   public  static final String SCREEN_SECURITY_PREF             = "pref_screen_security";
+  public  static final String PERSISTENT_PLAINTEXT_CACHE_PREF  = "pref_persistent_plaintext_cache";
   private static final String ENTER_SENDS_PREF                 = "pref_enter_sends";
   private static final String ENTER_PRESENT_PREF               = "pref_enter_key";
   private static final String SMS_DELIVERY_REPORT_PREF         = "pref_delivery_report_sms";
@@ -189,6 +190,7 @@ public class SMSSecurePreferences {
 
   public static void setLocalNumber(Context context, String localNumber) {
     setStringPreference(context, LOCAL_NUMBER_PREF, localNumber);
+    NumberCanonicalizer.getInstance().invalidate();
   }
 
   public static String getPushServerPassword(Context context) {
@@ -331,6 +333,10 @@ public class SMSSecurePreferences {
     return getBooleanPreference(context, SCREEN_SECURITY_PREF, true);
   }
 
+  public static boolean isPersistentPlaintextCacheEnabled(Context context) {
+    return getBooleanPreference(context, PERSISTENT_PLAINTEXT_CACHE_PREF, false);
+  }
+
   public static boolean isLegacyUseLocalApnsEnabled(Context context) {
     return getBooleanPreference(context, ENABLE_MANUAL_MMS_PREF, false);
   }
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.util;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe LRU cache bounded by total weight (usually an estimate of
+ * bytes) rather than entry count.
+ *
+ * Keys are spread over independently locked segments, each holding an
+ * equal share of the weight budget, so concurrent readers of different
+ * keys rarely contend.  Hit, miss and eviction counts are kept for
+ * diagnostics.
+ */
+public class StripedLRUCache<K,V> {
+
+  public interface Weigher<K,V> {
+    public int weigh(K key, V value);
+  }
+
+  private final Segment<K,V>[] segments;
+  private final Weigher<K,V>   weigher;
+  private final long           maxWeight;
+
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  public StripedLRUCache(long maxWeight, int concurrencyLevel, Weigher<K,V> weigher) {
+    int segmentCount = Integer.highestOneBit(Math.max(1, concurrencyLevel));
+
+    this.segments  = new Segment[segmentCount];
+    this.weigher   = weigher;
+    this.maxWeight = maxWeight;
+
+    for (int i=0;i<segmentCount;i++) {
+      segments[i] = new Segment<>(Math.max(1, maxWeight / segmentCount));
+    }
+  }
+
+  public V get(K key) {
+    V value = segmentFor(key).get(key);
+
+    if (value != null) hits.incrementAndGet();
+    else               misses.incrementAndGet();
+
+    return value;
+  }
+
+  public void put(K key, V value) {
+    evictions.addAndGet(segmentFor(key).put(key, value, weigher.weigh(key, value)));
+  }
+
+  /**
+   * Weighs an entry again after its value has changed in place, such as a
+   * recipient whose details resolved after it was cached.  Does nothing if
+   * the key has since been evicted or mapped to another value.
+   */
+  public void reweigh(K key, V value) {
+    evictions.addAndGet(segmentFor(key).reweigh(key, value, weigher.weigh(key, value)));
+  }
+
+  public V remove(K key) {
+    return segmentFor(key).remove(key);
+  }
+
+  public boolean containsKey(K key) {
+    return segmentFor(key).containsKey(key);
+  }
+
+  public void clear() {
+    for (Segment<K,V> segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public long getWeight() {
+    long weight = 0;
+
+    for (Segment<K,V> segment : segments) {
+      weight += segment.getWeight();
+    }
+
+    return weight;
+  }
+
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "[weight: " + getWeight() + "/" + maxWeight +
+           ", hits: " + hits.get() + ", misses: " + misses.get() +
+           ", evictions: " + evictions.get() + "]";
+  }
+
+  private Segment<K,V> segmentFor(K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+    return segments[hash & (segments.length - 1)];
+  }
+
+  public static int getStringWeight(String string) {
+    return string == null ? 0 : string.length() * 2;
+  }
+
+  public static int getBitmapWeight(Bitmap bitmap) {
+    return bitmap == null ? 0 : bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  private static class Segment<K,V> {
+
+    private final LinkedHashMap<K, WeightedValue<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long                               maxWeight;
+
+    private long weight;
+
+    public Segment(long maxWeight) {
+      this.maxWeight = maxWeight;
+    }
+
+    public synchronized V get(K key) {
+      WeightedValue<V> entry = entries.get(key);
+      return entry == null ? null : entry.value;
+    }
+
+    public synchronized int put(K key, V value, int valueWeight) {
+      WeightedValue<V> previous = entries.put(key, new WeightedValue<>(value, valueWeight));
+
+      if (previous != null) weight -= previous.weight;
+      weight += valueWeight;
+
+      int                                      evicted  = 0;
+      Iterator<Map.Entry<K, WeightedValue<V>>> iterator = entries.entrySet().iterator();
+
+      while (weight > maxWeight && iterator.hasNext()) {
+        weight -= iterator.next().getValue().weight;
+        iterator.remove();
+        evicted++;
+      }
+
+      return evicted;
+    }
+
+    public synchronized int reweigh(K key, V value, int valueWeight) {
+      WeightedValue<V> entry = entries.get(key);
+
+      if (entry == null || entry.value != value) return 0;
+      else                                        return put(key, value, valueWeight);
+    }
+
+    public synchronized V remove(K key) {
+      WeightedValue<V> entry = entries.remove(key);
+
+      if (entry == null) return null;
+
+      weight -= entry.weight;
+      return entry.value;
+    }
+
+    public synchronized boolean containsKey(K key) {
+      return entries.containsKey(key);
+    }
+
+    public synchronized void clear() {
+      entries.clear();
+      weight = 0;
+    }
+
+    public synchronized long getWeight() {
+      return weight;
+    }
+  }
+
+  private static class WeightedValue<V> {
+    private final V   value;
+    private final int weight;
+
+    public WeightedValue(V value, int weight) {
+      this.value  = value;
+      this.weight = weight;
+    }
+  }
+}
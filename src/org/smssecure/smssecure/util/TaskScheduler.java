@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.util;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the decode, decrypt and lookup work behind list rows on one shared
+ * pool of low priority threads, sized to the device's cores.
+ *
+ * Work is queued per {@link Domain}, each with a lane for rows that are on
+ * screen and a lane for prefetching.  Both lanes are LIFO, so the rows
+ * scrolled to most recently are served first, and visible work from any
+ * domain is taken before prefetch work.  Serial domains never run more than
+ * one task at a time.
+ *
+ * A queued {@link ListenableFutureTask} that loses its last listener is
+ * withdrawn rather than run, and is queued again as visible work as soon as
+ * anything observes it.  Cancelled futures are dropped without running.
+ */
+public class TaskScheduler {
+
+  private static final String TAG = TaskScheduler.class.getSimpleName();
+
+  public enum Domain {
+    SLIDES(false), THUMBNAILS(true), EMOJI(true), CONTACT_PHOTOS(false);
+
+    private final boolean serial;
+
+    Domain(boolean serial) {
+      this.serial = serial;
+    }
+  }
+
+  public enum Priority {
+    VISIBLE, PREFETCH
+  }
+
+  private static TaskScheduler instance;
+
+  public static synchronized TaskScheduler getInstance() {
+    if (instance == null) {
+      instance = new TaskScheduler(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    return instance;
+  }
+
+  private final DomainQueue[] queues;
+  private final int           workerCount;
+
+  private int nextDomain;
+
+  private TaskScheduler(int workerCount) {
+    this.workerCount = workerCount;
+    this.queues      = new DomainQueue[Domain.values().length];
+
+    for (Domain domain : Domain.values()) {
+      queues[domain.ordinal()] = new DomainQueue(domain.serial ? 1 : workerCount);
+    }
+
+    for (int i=0;i<workerCount;i++) {
+      Worker worker = new Worker("TaskScheduler-" + i);
+      worker.setDaemon(true);
+      worker.setPriority(Thread.MIN_PRIORITY);
+      worker.start();
+    }
+  }
+
+  public void execute(Domain domain, Priority priority, Runnable task) {
+    if (task instanceof ListenableFutureTask) {
+      ((ListenableFutureTask<?>)task).setScheduler(this, domain);
+    }
+
+    synchronized (this) {
+      queues[domain.ordinal()].getLane(priority).addFirst(new Entry(task, domain.ordinal()));
+      notify();
+    }
+  }
+
+  public <V> ListenableFutureTask<V> submit(Domain domain, Priority priority, Callable<V> callable) {
+    ListenableFutureTask<V> task = new ListenableFutureTask<>(callable);
+    execute(domain, priority, task);
+    return task;
+  }
+
+  public synchronized int getQueueDepth(Domain domain) {
+    DomainQueue queue = queues[domain.ordinal()];
+    return queue.visible.size() + queue.prefetch.size();
+  }
+
+  public synchronized long getAverageWaitMillis(Domain domain) {
+    DomainQueue queue = queues[domain.ordinal()];
+    return queue.completed == 0 ? 0 : queue.totalWaitMillis / queue.completed;
+  }
+
+  public synchronized long getAverageRunMillis(Domain domain) {
+    DomainQueue queue = queues[domain.ordinal()];
+    return queue.completed == 0 ? 0 : queue.totalRunMillis / queue.completed;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder("TaskScheduler[workers=" + workerCount);
+
+    for (Domain domain : Domain.values()) {
+      builder.append(", ").append(domain)
+             .append("[queued=").append(getQueueDepth(domain))
+             .append(", wait=").append(getAverageWaitMillis(domain)).append("ms")
+             .append(", run=").append(getAverageRunMillis(domain)).append("ms]");
+    }
+
+    return builder.append("]").toString();
+  }
+
+  /**
+   * Removes a task that has not started yet from its queue.
+   *
+   * @return true if the task was queued and will no longer run.
+   */
+  synchronized boolean withdraw(Domain domain, Runnable task) {
+    DomainQueue queue = queues[domain.ordinal()];
+    return queue.remove(queue.visible, task) || queue.remove(queue.prefetch, task);
+  }
+
+  /**
+   * Lets a worker that blocks on another queued task run it itself, since
+   * the task might otherwise wait behind the very workers blocking on it.
+   */
+  void runIfQueued(Domain domain, Runnable task) {
+    if (!(Thread.currentThread() instanceof Worker) || !withdraw(domain, task)) {
+      return;
+    }
+
+    task.run();
+  }
+
+  private synchronized Entry take() throws InterruptedException {
+    while (true) {
+      Entry entry = poll(Priority.VISIBLE);
+
+      if (entry == null) {
+        entry = poll(Priority.PREFETCH);
+      }
+
+      if (entry != null) {
+        return entry;
+      }
+
+      wait();
+    }
+  }
+
+  private Entry poll(Priority priority) {
+    for (int i=0;i<queues.length;i++) {
+      int         index = (nextDomain + i) % queues.length;
+      DomainQueue queue = queues[index];
+
+      if (queue.running >= queue.concurrency) continue;
+
+      ArrayDeque<Entry> lane = queue.getLane(priority);
+
+      while (!lane.isEmpty()) {
+        Entry entry = lane.pollFirst();
+
+        if (entry.task instanceof Future && ((Future<?>)entry.task).isCancelled()) {
+          continue;
+        }
+
+        queue.running++;
+        nextDomain = (index + 1) % queues.length;
+
+        return entry;
+      }
+    }
+
+    return null;
+  }
+
+  private synchronized void complete(Entry entry, long startTime, long endTime) {
+    DomainQueue queue = queues[entry.domain];
+
+    queue.running--;
+    queue.completed++;
+    queue.totalWaitMillis += startTime - entry.queuedTime;
+    queue.totalRunMillis  += endTime - startTime;
+
+    notify();
+  }
+
+  private class Worker extends Thread {
+
+    public Worker(String name) {
+      super(name);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Entry entry;
+
+        try {
+          entry = take();
+        } catch (InterruptedException e) {
+          Log.w(TAG, e);
+          return;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        try {
+          entry.task.run();
+        } catch (RuntimeException e) {
+          Log.w(TAG, e);
+        } finally {
+          complete(entry, startTime, System.currentTimeMillis());
+        }
+      }
+    }
+  }
+
+  private static class DomainQueue {
+    private final ArrayDeque<Entry> visible  = new ArrayDeque<>();
+    private final ArrayDeque<Entry> prefetch = new ArrayDeque<>();
+    private final int               concurrency;
+
+    private int  running;
+    private long completed;
+    private long totalWaitMillis;
+    private long totalRunMillis;
+
+    public DomainQueue(int concurrency) {
+      this.concurrency = concurrency;
+    }
+
+    public ArrayDeque<Entry> getLane(Priority priority) {
+      return priority == Priority.VISIBLE ? visible : prefetch;
+    }
+
+    public boolean remove(ArrayDeque<Entry> lane, Runnable task) {
+      Iterator<Entry> iterator = lane.iterator();
+
+      while (iterator.hasNext()) {
+        if (iterator.next().task == task) {
+          iterator.remove();
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+  private static class Entry {
+    private final Runnable task;
+    private final int      domain;
+    private final long     queuedTime = System.currentTimeMillis();
+
+    public Entry(Runnable task, int domain) {
+      this.task   = task;
+      this.domain = domain;
+    }
+  }
+}
@@ -40,7 +40,6 @@ import org.smssecure.smssecure.BuildConfig;
 import org.smssecure.smssecure.SMSSecureExpiredException;
 import org.smssecure.smssecure.mms.OutgoingLegacyMmsConnection;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
-import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -53,8 +52,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.pdu.CharacterSets;
@@ -76,20 +73,6 @@ public class Util {
     return result.toString();
   }
 
-  public static ExecutorService newSingleThreadedLifoExecutor() {
-    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<Runnable>());
-
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-//        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-      }
-    });
-
-    return executor;
-  }
-
   public static boolean isEmpty(EncodedStringValue[] value) {
     return value == null || value.length == 0;
   }
@@ -142,8 +125,7 @@ public class Util {
   public static String canonicalizeNumber(Context context, String number)
       throws InvalidNumberException
   {
-    String localNumber = SMSSecurePreferences.getLocalNumber(context);
-    return PhoneNumberFormatter.formatNumber(number, localNumber);
+    return NumberCanonicalizer.getInstance().canonicalize(context, number);
   }
 
   public static String canonicalizeNumberOrGroup(Context context, String number)
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A composed PDU whose large part bodies are left in storage until the PDU
+ * is written out.
+ *
+ * The composer lays out everything but those bodies up front, using the
+ * part sizes to fill in the lengths, so the PDU length is known before any
+ * body is read.  Writing the PDU then copies each body from its
+ * {@link PduPartSource} into the gap left for it.
+ */
+public class ComposedPdu {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] mMessage;
+    private final List<StreamedPart> mStreamedParts;
+    private final PduPartSource mPartSource;
+    private final long mLength;
+
+    /**
+     * Constructor for a PDU composed entirely in memory.
+     *
+     * @param message the composed PDU
+     */
+    public ComposedPdu(byte[] message) {
+        this(message, Collections.<StreamedPart>emptyList(), null);
+    }
+
+    ComposedPdu(byte[] message, List<StreamedPart> streamedParts, PduPartSource partSource) {
+        long length = message.length;
+        for (StreamedPart streamedPart : streamedParts) {
+            length += streamedPart.length;
+        }
+
+        mMessage = message;
+        mStreamedParts = streamedParts;
+        mPartSource = partSource;
+        mLength = length;
+    }
+
+    /**
+     * @return the length of the PDU in bytes
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Write the PDU, reading each streamed part body from the part source.
+     *
+     * @param out the stream to write to
+     * @throws IOException if a part body could not be read, or was not the
+     *         size it was composed with
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int offset = 0;
+
+        for (StreamedPart streamedPart : mStreamedParts) {
+            out.write(mMessage, offset, streamedPart.offset - offset);
+            offset = streamedPart.offset;
+
+            InputStream in = mPartSource.getPartData(streamedPart.part);
+            try {
+                long remaining = streamedPart.length;
+                int read;
+
+                while (remaining > 0 &&
+                        (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+
+                if (remaining != 0 || in.read() != -1) {
+                    throw new IOException("Part data does not match its size of " + streamedPart.length);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        out.write(mMessage, offset, mMessage.length - offset);
+    }
+
+    /**
+     * A part body left out of the composed message.
+     */
+    static class StreamedPart {
+        final int offset;
+        final PduPart part;
+        final long length;
+
+        /**
+         * @param offset where the body belongs in the composed message
+         * @param part the part
+         * @param length the length of the body
+         */
+        StreamedPart(int offset, PduPart part, long length) {
+            this.offset = offset;
+            this.part = part;
+            this.length = length;
+        }
+    }
+}
@@ -26,8 +26,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 public class PduComposer {
     /**
@@ -112,6 +114,17 @@ public class PduComposer {
      */
     private PduHeaders mPduHeader = null;
 
+    /**
+     * Supplies the bodies of parts that are streamed rather than composed
+     * in memory, if set.
+     */
+    private PduPartSource mPartSource = null;
+
+    /**
+     * Part bodies left out of mMessage, to be streamed from mPartSource.
+     */
+    private List<ComposedPdu.StreamedPart> mStreamedParts = null;
+
     /**
      * Map of all content type
      */
@@ -149,38 +162,59 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
+        if (compose() != PDU_COMPOSE_SUCCESS) {
+            return null;
+        }
+
+        Log.w("PduComposer", "Returning: " + mMessage.size() + " bytes...");
+
+        return mMessage.toByteArray();
+    }
+
+    /**
+     * Make the message without reading the bodies of parts whose data is
+     * not in memory.  Their lengths are taken from the part sizes, and
+     * their bodies are read from the part source only once the returned
+     * pdu is written out.
+     *
+     * @param partSource supplies the bodies of parts not held in memory
+     * @return the composed pdu. Return null if the PDU is invalid.
+     */
+    public ComposedPdu makeStreaming(PduPartSource partSource) {
+        mPartSource = partSource;
+        mStreamedParts = new ArrayList<ComposedPdu.StreamedPart>();
+
+        if (compose() != PDU_COMPOSE_SUCCESS) {
+            return null;
+        }
+
+        ComposedPdu composed = new ComposedPdu(mMessage.toByteArray(), mStreamedParts, partSource);
+        Log.w("PduComposer", "Returning: " + composed.getLength() + " bytes, " +
+                mStreamedParts.size() + " parts streamed...");
+
+        return composed;
+    }
+
+    /**
+     * Compose the message into mMessage.
+     */
+    private int compose() {
         // Get Message-type.
         int type = mPdu.getMessageType();
 
         /* make the message */
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeSendReqPdu();
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotifyResp();
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeAckInd();
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeReadRecInd();
             default:
-                return null;
+                return PDU_COMPOSE_CONTENT_ERROR;
         }
-
-        Log.w("PduComposer", "Returning: " + mMessage.size() + " bytes...");
-
-        return mMessage.toByteArray();
     }
 
     /**
@@ -985,15 +1019,24 @@ public class PduComposer {
 
             int dataLength = 0; // Just for safety...
             byte[] partData = part.getData();
+            boolean streamed = false;
 
             if (partData != null) {
                 arraycopy(partData, 0, partData.length);
                 dataLength = partData.length;
+            } else if (mPartSource != null && part.getDataSize() > 0) {
+                // Leave the body out, it is streamed once the pdu is written.
+                if (part.getDataSize() > Integer.MAX_VALUE) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                dataLength = (int) part.getDataSize();
+                streamed = true;
             } else {
                 InputStream cr;
                 try {
                     byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
+                    cr = mPartSource != null ? mPartSource.getPartData(part)
+                                             : mResolver.openInputStream(part.getDataUri());
                     int len = 0;
                     while ((len = cr.read(buffer)) != -1) {
                         mMessage.write(buffer, 0, len);
@@ -1009,7 +1052,7 @@ public class PduComposer {
                 }
             }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
+            if (!streamed && dataLength != (attachment.getLength() - headerLength)) {
                 throw new RuntimeException("BUG: Length sanity check failed");
             }
 
@@ -1017,6 +1060,15 @@ public class PduComposer {
             appendUintvarInteger(headerLength);
             appendUintvarInteger(dataLength);
             mStack.copy();
+
+            if (streamed) {
+                // Parts are composed straight into the outermost buffer,
+                // so mPosition is the body's offset in the final message.
+                if (mStack.stackSize != 0) {
+                    throw new RuntimeException("BUG: Streamed part inside a nested buffer");
+                }
+                mStreamedParts.add(new ComposedPdu.StreamedPart(mPosition, part, dataLength));
+            }
         }
 
         return PDU_COMPOSE_SUCCESS;
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Presents a PDU of known length arriving on an arbitrary stream with the
+ * contract the parser expects from a ByteArrayInputStream: reads never
+ * throw, available() is the number of bytes left in the PDU, and the
+ * short lookbacks done with mark()/reset() always succeed.
+ *
+ * An I/O error ends the stream early and is kept for the parser to check
+ * once it is done, since the parser itself has no way to surface it.
+ */
+class PduInputStream extends ByteArrayInputStream {
+
+    /**
+     * The parser never looks back more than a few bytes.
+     */
+    private static final int MARK_LIMIT = 64;
+
+    private final InputStream mInput;
+    private final long mLength;
+
+    private long mPosition = 0;
+    private long mMarkPosition = 0;
+    private IOException mException = null;
+
+    PduInputStream(InputStream input, long length) {
+        super(new byte[0]);
+        mInput = new BufferedInputStream(input);
+        mLength = length;
+    }
+
+    /**
+     * @return the error that ended the stream early, or null.
+     */
+    IOException getException() {
+        return mException;
+    }
+
+    @Override
+    public synchronized int read() {
+        if (mException != null || mPosition >= mLength) {
+            return -1;
+        }
+
+        try {
+            int value = mInput.read();
+
+            if (value == -1) {
+                mException = new EOFException("PDU truncated at " + mPosition + " of " + mLength);
+                return -1;
+            }
+
+            mPosition++;
+            return value;
+        } catch (IOException e) {
+            mException = e;
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int count) {
+        if (count == 0) {
+            return 0;
+        }
+
+        if (mException != null || mPosition >= mLength) {
+            return -1;
+        }
+
+        int wanted = (int) Math.min(count, mLength - mPosition);
+        int total = 0;
+
+        try {
+            while (total < wanted) {
+                int read = mInput.read(buffer, offset + total, wanted - total);
+
+                if (read == -1) {
+                    mException = new EOFException("PDU truncated at " + (mPosition + total) + " of " + mLength);
+                    break;
+                }
+
+                total += read;
+            }
+        } catch (IOException e) {
+            mException = e;
+        }
+
+        mPosition += total;
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public synchronized long skip(long count) {
+        long wanted = Math.max(0, Math.min(count, mLength - mPosition));
+        long total = 0;
+
+        while (mException == null && total < wanted) {
+            try {
+                long skipped = mInput.skip(wanted - total);
+
+                if (skipped > 0) {
+                    total += skipped;
+                } else if (mInput.read() != -1) {
+                    total++;
+                } else {
+                    mException = new EOFException("PDU truncated at " + (mPosition + total) + " of " + mLength);
+                }
+            } catch (IOException e) {
+                mException = e;
+            }
+        }
+
+        mPosition += total;
+        return total;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, mLength - mPosition));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mInput.mark(Math.max(readLimit, MARK_LIMIT));
+        mMarkPosition = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() {
+        try {
+            mInput.reset();
+            mPosition = mMarkPosition;
+        } catch (IOException e) {
+            mException = e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+}
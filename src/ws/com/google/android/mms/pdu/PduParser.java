@@ -25,6 +25,8 @@ import ws.com.google.android.mms.InvalidHeaderValueException;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -69,6 +71,11 @@ public class PduParser {
      */
     private PduBody mBody = null;
 
+    /**
+     * Receives part bodies as they are parsed, if set.
+     */
+    private PduPartSink mPartSink = null;
+
     /**
      * Store the "type" parameter in "Content-Type" header field.
      */
@@ -91,7 +98,32 @@ public class PduParser {
      * @param pduDataStream pdu data to be parsed
      */
     public PduParser(byte[] pduDataStream) {
+        this(pduDataStream, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param partSink receives part bodies as they are parsed, may be null
+     */
+    public PduParser(byte[] pduDataStream, PduPartSink partSink) {
         mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPartSink = partSink;
+    }
+
+    /**
+     * Constructor for parsing a pdu as it arrives, without first buffering
+     * the whole of it.  Combined with a part sink, part bodies are never
+     * held in memory.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param length length of the pdu in bytes
+     * @param partSink receives part bodies as they are parsed, may be null
+     */
+    public PduParser(InputStream pduDataStream, long length, PduPartSink partSink) {
+        mPduDataStream = new PduInputStream(pduDataStream, length);
+        mPartSink = partSink;
     }
 
     /**
@@ -108,7 +140,7 @@ public class PduParser {
 
         /* parse headers */
         mHeaders = parseHeaders(mPduDataStream);
-        if (null == mHeaders) {
+        if (null == mHeaders || hasReadError()) {
             // Parse headers failed.
             return null;
         }
@@ -127,8 +159,9 @@ public class PduParser {
                 (PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF == messageType)) {
             /* need to parse the parts */
             Log.w("PduParser", "Parsing parts...");
-            mBody = parseParts(mPduDataStream);
-            if (null == mBody) {
+            PduPartSink partSink = (null != mPartSink && mPartSink.acceptsPdu(mHeaders)) ? mPartSink : null;
+            mBody = parseParts(mPduDataStream, partSink);
+            if (null == mBody || hasReadError()) {
                 // Parse parts failed.
                 return null;
             }
@@ -196,6 +229,22 @@ public class PduParser {
         }
     }
 
+    /**
+     * Check whether the underlying stream failed while parsing.
+     *
+     * @return true if the pdu could not be read completely
+     */
+    private boolean hasReadError() {
+        if (mPduDataStream instanceof PduInputStream) {
+            IOException exception = ((PduInputStream) mPduDataStream).getException();
+            if (null != exception) {
+                Log.w(LOG_TAG, exception);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Parse pdu headers.
      *
@@ -735,6 +784,18 @@ public class PduParser {
      * @return parts in PduBody structure
      */
     protected static PduBody parseParts(ByteArrayInputStream pduDataStream) {
+        return parseParts(pduDataStream, null);
+    }
+
+    /**
+     * Parse pdu parts, handing the bodies of parts the sink accepts
+     * straight to it.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param partSink receives part bodies, may be null
+     * @return parts in PduBody structure
+     */
+    protected static PduBody parseParts(ByteArrayInputStream pduDataStream, PduPartSink partSink) {
         if (pduDataStream == null) {
             return null;
         }
@@ -798,7 +859,11 @@ public class PduParser {
             }
 
             /* get part's data */
-            if (dataLength > 0) {
+            if (dataLength > 0 && isStreamable(part, partSink)) {
+                if (false == writePartData(pduDataStream, part, dataLength, partSink)) {
+                    return null;
+                }
+            } else if (dataLength > 0) {
                 byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
                 pduDataStream.read(partData, 0, dataLength);
@@ -843,6 +908,62 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Check whether a part's body can be handed to the sink as it is read.
+     *
+     * @param part the part, with its headers parsed
+     * @param partSink the sink, may be null
+     * @return true if the body is binary and the sink accepts it
+     */
+    private static boolean isStreamable(PduPart part, PduPartSink partSink) {
+        if (null == partSink) {
+            return false;
+        }
+
+        if (new String(part.getContentType()).equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
+            return false;
+        }
+
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if (null != partDataEncoding) {
+            String encoding = new String(partDataEncoding);
+            if (encoding.equalsIgnoreCase(PduPart.P_BASE64) ||
+                    encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
+                return false;
+            }
+        }
+
+        return partSink.acceptsPart(part);
+    }
+
+    /**
+     * Hand a part's body to the sink, then skip whatever it left unread.
+     *
+     * @param pduDataStream pdu data input stream, positioned at the body
+     * @param part the part the body belongs to
+     * @param dataLength length of the body
+     * @param partSink the sink
+     * @return true if the whole body was consumed
+     */
+    private static boolean writePartData(ByteArrayInputStream pduDataStream, PduPart part,
+            int dataLength, PduPartSink partSink) {
+        if (pduDataStream.available() < dataLength) {
+            log("Part data is truncated!");
+            return false;
+        }
+
+        PartDataInputStream partData = new PartDataInputStream(pduDataStream, dataLength);
+        try {
+            partSink.write(part, partData, dataLength);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+            return false;
+        }
+
+        int remaining = partData.getRemaining();
+        return pduDataStream.skip(remaining) == remaining;
+    }
+
     /**
      * Log status.
      *
@@ -1916,4 +2037,63 @@ public class PduParser {
 
         return true;
     }
+
+    /**
+     * A view of one part body within the pdu data stream.
+     */
+    private static class PartDataInputStream extends InputStream {
+        private final ByteArrayInputStream mPduDataStream;
+        private int mRemaining;
+
+        public PartDataInputStream(ByteArrayInputStream pduDataStream, int length) {
+            mPduDataStream = pduDataStream;
+            mRemaining = length;
+        }
+
+        public int getRemaining() {
+            return mRemaining;
+        }
+
+        @Override
+        public int read() {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int value = mPduDataStream.read();
+            if (value != -1) {
+                mRemaining--;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int read = mPduDataStream.read(buffer, offset, Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) {
+            long skipped = mPduDataStream.skip(Math.min(count, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return Math.min(mRemaining, mPduDataStream.available());
+        }
+    }
 }
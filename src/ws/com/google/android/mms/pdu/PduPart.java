@@ -26,6 +26,7 @@ import org.smssecure.smssecure.util.BitmapDecodingException;
 import org.smssecure.smssecure.util.BitmapUtil;
 import org.smssecure.smssecure.util.Util;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -136,6 +137,7 @@ public class PduPart {
      private boolean isPendingPush;
      private long    dataSize;
      private Bitmap  thumbnail;
+     private File    encryptedDataFile;
      
      /**
       * Empty Constructor.
@@ -161,6 +163,20 @@ public class PduPart {
      }
 
 
+     /**
+      * Set the file the part body was already written to, encrypted,
+      * while the PDU was being parsed.
+      *
+      * @param encryptedDataFile the file
+      */
+     public void setEncryptedDataFile(File encryptedDataFile) {
+       this.encryptedDataFile = encryptedDataFile;
+     }
+
+     public File getEncryptedDataFile() {
+       return encryptedDataFile;
+     }
+
      public void setPendingPush(boolean isPendingPush) {
        this.isPendingPush = isPendingPush;
      }
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives part bodies from {@link PduParser} as they are parsed, instead of
+ * the parser buffering each one into {@link PduPart#setData(byte[])}.
+ *
+ * Only parts stored in binary transfer encoding can be streamed; parts the
+ * parser has to decode or descend into are always buffered.
+ */
+public interface PduPartSink {
+
+    /**
+     * Called once the PDU headers are parsed.
+     *
+     * @return false to buffer every part of this PDU.
+     */
+    public boolean acceptsPdu(PduHeaders headers);
+
+    /**
+     * Called once a part's headers are parsed.
+     *
+     * @return false to buffer this part.
+     */
+    public boolean acceptsPart(PduPart part);
+
+    /**
+     * Consumes the body of an accepted part.  Whatever the sink leaves unread
+     * is skipped.  The sink is expected to record where the body went on the
+     * part itself.
+     *
+     * @param part the part the body belongs to
+     * @param data the part body, ending after exactly length bytes
+     * @param length the length of the part body
+     */
+    public void write(PduPart part, InputStream data, int length) throws IOException;
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Supplies part bodies to {@link PduComposer} while a composed PDU is being
+ * written out, for parts whose data is not held in memory.
+ */
+public interface PduPartSource {
+
+    /**
+     * Opens the body of a part.  It may be opened more than once if the
+     * composed PDU is written more than once.
+     *
+     * @param part the part
+     * @return the part body, exactly {@link PduPart#getDataSize()} bytes long
+     */
+    public InputStream getPartData(PduPart part) throws IOException;
+}